@@ -0,0 +1,62 @@
+/**
+ * RollingChecksum is the weak block checksum used by rsync: two 16-bit
+ * sums over a window of bytes that can be slid forward one byte at a
+ * time in constant time, so every offset of a file can be checked
+ * against a set of block checksums in a single pass.
+ */
+public class RollingChecksum {
+    private final int window; // Bytes covered by the checksum
+    private int a; // Sum of the bytes, mod 2^16
+    private int b; // Sum of the bytes weighted by distance from the end, mod 2^16
+
+    /**
+     * Constructs a checksum over the first bytes of a block.
+     *
+     * @param block  the bytes to start from
+     * @param offset where the window starts in the block
+     * @param window the number of bytes in the window
+     */
+    public RollingChecksum(byte[] block, int offset, int window) {
+        this.window = window;
+        for (int i = 0; i < window; i++) {
+            int x = block[offset + i] & 0xFF;
+            a += x;
+            b += (window - i) * x;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    /**
+     * Gets the checksum of a whole block.
+     *
+     * @param block  the bytes
+     * @param offset where the block starts
+     * @param length the block length
+     * @return the checksum
+     */
+    public static int of(byte[] block, int offset, int length) {
+        return new RollingChecksum(block, offset, length).value();
+    }
+
+    /**
+     * Slides the window forward by one byte.
+     *
+     * @param out the byte leaving the window
+     * @param in  the byte entering it
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xFF;
+        a = (a - x + (in & 0xFF)) & 0xFFFF;
+        b = (b - window * x + a) & 0xFFFF;
+    }
+
+    /**
+     * Gets the checksum of the current window.
+     *
+     * @return both sums packed into one int
+     */
+    public int value() {
+        return a | (b << 16);
+    }
+}
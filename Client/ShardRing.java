@@ -0,0 +1,126 @@
+/**
+ * ShardRing splits the node registry between several server instances
+ * with consistent hashing, so each node is owned by exactly one shard and
+ * any process can work out which without asking.
+ *
+ * <p>Every shard is placed on a 64-bit ring at {@code shards.vnodes}
+ * pseudo-random points (virtual nodes), and a node belongs to the shard
+ * at the first point at or after the node's own hash. With many points
+ * per shard the nodes spread evenly, and adding or removing a shard only
+ * moves the nodes between it and its neighbours. The points are kept in
+ * sorted primitive arrays, so a lookup is one binary search.</p>
+ *
+ * <p>The shards are the server entries of nodes.config named by
+ * {@code -Dserver.shards}, e.g. {@code 6,7,8}. Servers and clients must be
+ * given the same list. A shard always owns its own entry.</p>
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ShardRing {
+    private static final int VIRTUAL_NODES = Integer.getInteger("shards.vnodes", 128); // Ring points per shard
+
+    private final List<Integer> shards; // Shard node IDs, in the configured order
+    private final long[] points; // Ring positions, ascending
+    private final int[] owners; // Shard at each position
+
+    /**
+     * Builds the ring for a set of shards.
+     *
+     * @param shards the node IDs of the server instances
+     */
+    public ShardRing(List<Integer> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A shard ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        long[][] placed = new long[shards.size() * VIRTUAL_NODES][];
+        int n = 0;
+        for (int shard : shards) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                placed[n++] = new long[] { mix(((long) shard << 32) | v), shard };
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compareUnsigned(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    /**
+     * Builds the ring named by {@code -Dserver.shards}.
+     *
+     * @return the ring, or null if the registry is not sharded
+     */
+    public static ShardRing fromProperties() {
+        String configured = System.getProperty("server.shards");
+        if (configured == null || configured.isBlank()) {
+            return null;
+        }
+        List<Integer> shards = new ArrayList<>();
+        for (String id : configured.split(",")) {
+            shards.add(Integer.parseInt(id.trim()));
+        }
+        return new ShardRing(shards);
+    }
+
+    /**
+     * Finds the shard that owns a node.
+     *
+     * @param nodeId the node
+     * @return the node ID of the owning shard
+     */
+    public int ownerOf(int nodeId) {
+        if (shards.contains(nodeId)) {
+            return nodeId;
+        }
+        long hash = mix(nodeId);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[mid], hash) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return owners[(low == points.length) ? 0 : low]; // Past the last point wraps to the first
+    }
+
+    /**
+     * Gets the shards on the ring.
+     *
+     * @return the shard node IDs, in the configured order
+     */
+    public List<Integer> getShards() {
+        return shards;
+    }
+
+    /**
+     * Gets a shard's position in the configured list, which tells shards
+     * on one host apart, e.g. in their multicast ports.
+     *
+     * @param shard the shard's node ID
+     * @return its index, or -1 if it is not on the ring
+     */
+    public int indexOf(int shard) {
+        return shards.indexOf(shard);
+    }
+
+    /**
+     * Scrambles a key over all 64 bits (the SplitMix64 finalizer), so
+     * consecutive node IDs land far apart on the ring.
+     */
+    private static long mix(long key) {
+        long z = key + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
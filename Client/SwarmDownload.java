@@ -0,0 +1,365 @@
+/**
+ * SwarmDownload fetches one file from every node holding it at once.
+ *
+ * <p>The file is cut into fixed-size pieces, and the SHA-256 of every
+ * piece is first asked of one of the holders. Each holder then works
+ * through the pieces, a few at a time, as byte-range transfers written
+ * straight into the destination. Pieces are handed out fastest holder
+ * first, using a moving average of each holder's measured throughput, so
+ * a fast holder takes on more of the file than a slow one.</p>
+ *
+ * <p>Once every piece has been handed out, a holder that runs out of work
+ * steals: it starts the same piece as a slow holder whenever it would
+ * finish it well before the slow holder would. Whichever copy completes
+ * first wins and the other is cancelled. A piece is only done when its
+ * hash matches; a holder that serves bad pieces, or keeps failing, is
+ * dropped from the swarm.</p>
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class SwarmDownload {
+    static final int PIECE_SIZE = Integer.getInteger("swarm.pieceSize", 4 << 20); // Bytes per piece
+    private static final int SLOTS_PER_HOLDER = 2; // Pieces fetched from one holder at a time
+    private static final int MAX_FAILURES = 3; // Failed or bad pieces before a holder is dropped
+    private static final double STEAL_FACTOR = 2.0; // Steal when the slow copy would take this much longer
+    private static final double EWMA_WEIGHT = 0.3; // Weight of the newest throughput sample
+    private static final long HASH_TIMEOUT_MS = 5000; // How long one holder gets to send the piece hashes
+
+    private final String fileName; // Name of the file on the holders
+    private final Path destination; // Where the file is written
+    private final List<Holder> holders = new ArrayList<>(); // Everyone serving the file
+    private final BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>(); // Attempts that ended
+    private final ExecutorService workers = TaskExecutors.newPerTaskExecutor(); // Runs the range transfers
+
+    private long fileSize; // Size of the file, from the hash list
+    private byte[] hashes; // 32-byte SHA-256 of every piece
+    private Piece[] pieces; // Every piece of the file
+    private final Deque<Piece> pending = new ArrayDeque<>(); // Pieces nobody is fetching, in file order
+
+    /**
+     * One node serving the file.
+     */
+    private static class Holder {
+        final int nodeId; // The holder's node ID
+        final InetSocketAddress address; // The holder's transfer port
+        double bytesPerMs; // Moving average of measured throughput, 0 until measured
+        int active; // Pieces being fetched from it
+        int failures; // Failed or bad pieces so far
+        long bytes; // Bytes of verified pieces it delivered
+
+        Holder(int nodeId, InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.address = address;
+        }
+
+        boolean usable() {
+            return failures < MAX_FAILURES;
+        }
+    }
+
+    /**
+     * One piece of the file and the transfers working on it.
+     */
+    private static class Piece {
+        final int index; // Position in the file
+        final long offset; // First byte
+        final long length; // Bytes in the piece
+        final List<Attempt> attempts = new ArrayList<>(); // Transfers still running for it
+        Holder deliveredBy; // Holder whose transfer completed, awaiting verification
+        boolean done; // Whether the piece is written and verified
+
+        Piece(int index, long offset, long length) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * One transfer of a piece from a holder.
+     */
+    private static class Attempt {
+        final Piece piece; // Piece being fetched
+        final Holder holder; // Holder it is fetched from
+        final long startedAt = System.currentTimeMillis(); // When the transfer began
+        volatile boolean cancelled; // Set when another copy of the piece won
+        long elapsedMs; // Duration, once finished
+        IOException failure; // Why it failed, or null on success
+
+        Attempt(Piece piece, Holder holder) {
+            this.piece = piece;
+            this.holder = holder;
+        }
+    }
+
+    /**
+     * Constructs a swarm download.
+     *
+     * @param fileName    the name of the file on the holders
+     * @param holders     the transfer port of every node holding the file, by node ID
+     * @param destination where to write the file
+     */
+    public SwarmDownload(String fileName, Map<Integer, InetSocketAddress> holders, Path destination) {
+        this.fileName = fileName;
+        this.destination = destination;
+        for (Map.Entry<Integer, InetSocketAddress> entry : holders.entrySet()) {
+            this.holders.add(new Holder(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    /**
+     * Downloads the file.
+     *
+     * @return the number of bytes downloaded
+     * @throws FileNotFoundException if no holder has the file
+     * @throws IOException           if every holder failed before the file was complete
+     */
+    public long run() throws IOException {
+        try {
+            fetchHashes();
+            try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "rw")) {
+                file.setLength(fileSize);
+            }
+            pieces = new Piece[hashes.length / 32];
+            for (int i = 0; i < pieces.length; i++) {
+                long offset = (long) i * PIECE_SIZE;
+                pieces[i] = new Piece(i, offset, Math.min(PIECE_SIZE, fileSize - offset));
+                pending.add(pieces[i]);
+            }
+
+            int done = 0;
+            while (done < pieces.length) {
+                schedule();
+                if (holders.stream().noneMatch(h -> h.active > 0)) {
+                    throw new IOException("Every holder of " + fileName + " failed");
+                }
+                Attempt attempt = finished.take();
+                if (complete(attempt)) {
+                    done++;
+                }
+            }
+            return fileSize;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Swarm download of " + fileName + " interrupted");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets how many verified bytes each holder delivered, for reporting.
+     *
+     * @return bytes delivered by node ID
+     */
+    public Map<Integer, Long> bytesByHolder() {
+        Map<Integer, Long> result = new TreeMap<>();
+        for (Holder holder : holders) {
+            result.put(holder.nodeId, holder.bytes);
+        }
+        return result;
+    }
+
+    /**
+     * Hands out pending pieces to holders with free slots, fastest first,
+     * then lets idle holders steal from slow ones.
+     */
+    private void schedule() {
+        List<Holder> bySpeed = new ArrayList<>();
+        for (Holder holder : holders) {
+            if (holder.usable()) {
+                bySpeed.add(holder);
+            }
+        }
+        // Unmeasured holders sort first so every holder gets a first sample
+        bySpeed.sort(Comparator.comparingDouble((Holder h) -> h.bytesPerMs == 0 ? Double.MAX_VALUE : h.bytesPerMs)
+                .reversed());
+
+        boolean assigned = true;
+        while (!pending.isEmpty() && assigned) {
+            assigned = false;
+            for (Holder holder : bySpeed) {
+                if (holder.active < SLOTS_PER_HOLDER && !pending.isEmpty()) {
+                    start(pending.poll(), holder);
+                    assigned = true;
+                }
+            }
+        }
+
+        if (pending.isEmpty()) {
+            for (Holder holder : bySpeed) {
+                if (holder.active == 0 && holder.bytesPerMs > 0) {
+                    Piece victim = stealable(holder);
+                    if (victim != null) {
+                        start(victim, holder);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the in-flight piece a holder could finish soonest relative to
+     * the holder fetching it now, if the gain is worth a second transfer.
+     */
+    private Piece stealable(Holder thief) {
+        long now = System.currentTimeMillis();
+        Piece best = null;
+        double bestGain = 0;
+        for (Piece piece : pieces) {
+            if (piece.done || piece.attempts.size() != 1 || piece.deliveredBy != null) {
+                continue;
+            }
+            Attempt running = piece.attempts.get(0);
+            Holder slow = running.holder;
+            if (slow == thief) {
+                continue;
+            }
+            double slowRemaining = (slow.bytesPerMs > 0)
+                    ? piece.length / slow.bytesPerMs - (now - running.startedAt)
+                    : Double.MAX_VALUE;
+            double thiefTime = piece.length / thief.bytesPerMs;
+            double gain = slowRemaining - thiefTime;
+            if (slowRemaining > STEAL_FACTOR * thiefTime && gain > bestGain) {
+                best = piece;
+                bestGain = gain;
+            }
+        }
+        return best;
+    }
+
+    private void start(Piece piece, Holder holder) {
+        Attempt attempt = new Attempt(piece, holder);
+        piece.attempts.add(attempt);
+        holder.active++;
+        workers.execute(() -> {
+            try {
+                FileDownload.fetchRange(holder.address, fileName, piece.offset, piece.length, destination,
+                        () -> attempt.cancelled);
+            } catch (IOException e) {
+                attempt.failure = e;
+            } catch (RuntimeException e) {
+                attempt.failure = new IOException(e);
+            }
+            attempt.elapsedMs = Math.max(1, System.currentTimeMillis() - attempt.startedAt);
+            finished.add(attempt);
+        });
+    }
+
+    /**
+     * Applies the end of one transfer.
+     *
+     * @return true if this completed and verified its piece
+     */
+    private boolean complete(Attempt attempt) throws IOException {
+        Piece piece = attempt.piece;
+        Holder holder = attempt.holder;
+        piece.attempts.remove(attempt);
+        holder.active--;
+
+        if (attempt.failure == null && !attempt.cancelled) {
+            double sample = (double) piece.length / attempt.elapsedMs;
+            holder.bytesPerMs = (holder.bytesPerMs == 0) ? sample
+                    : EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * holder.bytesPerMs;
+            if (piece.deliveredBy == null && !piece.done) {
+                piece.deliveredBy = holder;
+                for (Attempt other : piece.attempts) {
+                    other.cancelled = true; // This copy won
+                }
+            }
+        } else if (!attempt.cancelled) {
+            holder.failures++;
+            System.err.println("Node " + holder.nodeId + " failed piece " + piece.index + ": "
+                    + attempt.failure.getMessage());
+        }
+
+        // Verify once no other transfer can still be writing the piece
+        if (!piece.attempts.isEmpty() || piece.done) {
+            return false;
+        }
+        if (piece.deliveredBy == null) {
+            pending.addFirst(piece); // Every copy failed, try again elsewhere
+            return false;
+        }
+        if (verify(piece)) {
+            piece.done = true;
+            piece.deliveredBy.bytes += piece.length;
+            return true;
+        }
+        piece.deliveredBy.failures++;
+        System.err.println("Node " + piece.deliveredBy.nodeId + " sent a bad copy of piece " + piece.index);
+        piece.deliveredBy = null;
+        pending.addFirst(piece);
+        return false;
+    }
+
+    private boolean verify(Piece piece) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(destination.toFile(), "r")) {
+            MessageDigest digest = FileTransferService.sha256();
+            digest.update(file.getChannel().map(FileChannel.MapMode.READ_ONLY, piece.offset, piece.length));
+            byte[] expected = Arrays.copyOfRange(hashes, piece.index * 32, piece.index * 32 + 32);
+            return MessageDigest.isEqual(expected, digest.digest());
+        }
+    }
+
+    /**
+     * Asks the holders in turn for the file's piece hashes until one answers.
+     */
+    private void fetchHashes() throws IOException {
+        IOException last = new FileNotFoundException("No holders for " + fileName);
+        for (Holder holder : holders) {
+            try {
+                fetchHashes(holder.address);
+                return;
+            } catch (IOException e) {
+                last = e;
+                holder.failures++;
+            }
+        }
+        throw last;
+    }
+
+    private void fetchHashes(InetSocketAddress address) throws IOException {
+        int requestId = new SecureRandom().nextInt();
+        ByteBuffer request = ByteBuffer.allocate(2 + 4 + 4 + 4 + Packet.utf8Length(fileName));
+        request.put(Packet.WIRE_VERSION).put(Packet.KIND_HASH_REQUEST).putInt(requestId).putInt(PIECE_SIZE);
+        Packet.putString(request, fileName);
+        request.flip();
+
+        ByteBuffer frame = FileTransferService.request(address, request, requestId, Packet.KIND_HASH_LIST,
+                HASH_TIMEOUT_MS);
+        if (frame.remaining() < 8 + 4 + 4) {
+            throw new IOException("Malformed piece hash list for " + fileName);
+        }
+        fileSize = frame.getLong();
+        if (frame.getInt() != PIECE_SIZE) {
+            throw new IOException("Holder used a different piece size");
+        }
+        int count = frame.getInt();
+        if (count != FileTransferService.chunkCount(fileSize, PIECE_SIZE) || frame.remaining() != count * 32) {
+            throw new IOException("Malformed piece hash list for " + fileName);
+        }
+        hashes = new byte[count * 32];
+        frame.get(hashes);
+    }
+}
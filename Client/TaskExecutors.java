@@ -0,0 +1,128 @@
+/**
+ * TaskExecutors creates the executors the nodes run their tasks on, in one
+ * of two modes chosen at startup.
+ *
+ * <p>By default long-lived tasks get a fixed pool of platform threads and
+ * short tasks a cached pool, as before. With {@code -Dthreads.virtual=true}
+ * every task gets a virtual thread of its own, so a node can afford a
+ * thread per request, per peer or per transfer by the tens of thousands.
+ * Virtual threads need Java 21. The factory is looked up reflectively so
+ * the code still builds and runs on older runtimes, where the mode falls
+ * back to cached platform pools and says so.</p>
+ *
+ * <p>Every executor made here is shut down when the JVM exits: running
+ * tasks are interrupted and given a moment to finish, so a node stops as a
+ * whole instead of leaving threads behind.</p>
+ */
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TaskExecutors {
+    public static final boolean VIRTUAL_REQUESTED = Boolean.getBoolean("threads.virtual"); // Mode asked for
+    private static final long SHUTDOWN_GRACE_MS = 2000; // How long exiting waits for interrupted tasks
+    private static final Method VIRTUAL_FACTORY = findVirtualFactory(); // Null unless virtual threads are usable
+
+    // Executors to stop on exit; weak so finished per-download executors are not kept
+    private static final Set<ExecutorService> executors = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<>()));
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(TaskExecutors::shutdownAll, "executor-shutdown"));
+    }
+
+    private TaskExecutors() {
+    }
+
+    /**
+     * Tells whether tasks run on virtual threads.
+     *
+     * @return true if virtual threads were asked for and are available
+     */
+    public static boolean isVirtual() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Creates an executor for a node's long-lived tasks.
+     *
+     * @param platformThreads the pool size when running on platform threads
+     * @return a fixed pool, or one virtual thread per task in virtual mode
+     */
+    public static ExecutorService newNodeExecutor(int platformThreads) {
+        return register(isVirtual() ? newVirtualExecutor() : Executors.newFixedThreadPool(platformThreads));
+    }
+
+    /**
+     * Creates an executor for short tasks started on demand, such as one
+     * request, one peer's send or one transfer.
+     *
+     * @return a cached pool, or one virtual thread per task in virtual mode
+     */
+    public static ExecutorService newPerTaskExecutor() {
+        return register(isVirtual() ? newVirtualExecutor() : Executors.newCachedThreadPool());
+    }
+
+    private static ExecutorService register(ExecutorService executor) {
+        executors.add(executor);
+        return executor;
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) VIRTUAL_FACTORY.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual thread executor failed", e); // Checked in findVirtualFactory
+        }
+    }
+
+    /**
+     * Finds Executors.newVirtualThreadPerTaskExecutor if virtual threads
+     * were asked for, and checks it actually works on this runtime.
+     */
+    private static Method findVirtualFactory() {
+        if (!VIRTUAL_REQUESTED) {
+            return null;
+        }
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ((ExecutorService) factory.invoke(null)).shutdown(); // Throws if they are a disabled preview
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Virtual threads are not available on Java " + System.getProperty("java.version")
+                    + ", using platform threads.");
+            return null;
+        }
+    }
+
+    /**
+     * Interrupts the tasks of every executor still running and waits a
+     * little for them to finish.
+     */
+    private static void shutdownAll() {
+        List<ExecutorService> running;
+        synchronized (executors) {
+            running = new ArrayList<>(executors);
+        }
+        for (ExecutorService executor : running) {
+            executor.shutdownNow();
+        }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MS;
+        try {
+            for (ExecutorService executor : running) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0 || !executor.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,26 +1,70 @@
 /**
  * UDPClient2 is a UDP-based client that communicates with a UDP server.
  * 
- * <p>This client periodically sends its node information to the server and
- * listens for broadcasts from the server containing updated node statuses.</p>
+ * <p>This client tells the server about changes to its shared directory as
+ * soon as they happen, sends a small heartbeat while nothing changes, and
+ * listens for broadcasts from the server containing updated node statuses.
+ * With {@code -Dmulticast.group} set it also subscribes to the group the
+ * server publishes node lists to.</p>
+ * 
+ * <p>When the server relays node lists ({@code -Drelay.fanout}), a client
+ * may be handed one to pass down part of the relay tree; it forwards each
+ * epoch to its children once before applying it.</p>
+ * 
+ * <p>When the registry is split between server shards
+ * ({@code -Dserver.shards}), the client reports to the shard that owns it
+ * on the {@link ShardRing} and sends file queries and searches to every
+ * shard, merging their answers.</p>
  * 
  * @author Ethan Kulawiak
  * @date 3/6/2025
  */
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 public class UDPClient2 {
     private DatagramSocket socket; // UDP socket for communication
+    private MulticastSocket subscription; // Receives node lists published to the multicast group, null if not subscribed
     private ExecutorService executor; // Thread pool for handling sending/receiving
     private int nodeId; // Unique identifier for this node
     private InetAddress serverAddress; // Server address
     private int serverPort = 9876; // Port used for server communication
+    private int serverAddressVersion; // Membership version the server address was looked up at
+    private int serverNodeId; // Registry entry of the server, or of the shard owning this node
+    private static final int SERVER_NODE_ID = Integer.getInteger("server.nodeId", 6); // Registry entry describing the server
+    private static final int SEARCH_PAGE_SIZE = 20; // Results per page of the search command
+    private static final int MAX_SEARCH_PAGE = 500; // Largest page the server answers, larger requests are dropped
+    private static final ShardRing SHARDS = ShardRing.fromProperties(); // How servers split the registry, null when there is one server
+    private static final String MULTICAST_GROUP = System.getProperty("multicast.group"); // Group the server publishes node lists to, unset if it only unicasts
+    private static final int MULTICAST_PORT = Integer.getInteger("multicast.port", 9880); // Port the group is received on
+    private static final long HEARTBEAT_MS = Long.getLong("node.heartbeatMs", 10_000); // Idle time between heartbeats, the period the server learns to expect
+    private Map<Integer, Packet> knownNodes = new TreeMap<>(); // Latest entry the server sent for each node
+    private long appliedEpoch; // Last node list epoch applied from the server
+    private long relayedEpoch; // Last node list epoch passed down the relay tree
+    private FragmentLayer fragments = new FragmentLayer(); // Reassembles frames split across datagrams
+    private Map<Integer, CompletableFuture<Object>> pendingRequests = new ConcurrentHashMap<>(); // Queries awaiting an answer
+    private AtomicInteger nextRequestId = new AtomicInteger(); // Matches answers to queries
+    private ConfigLoader configLoader; // Addresses of the other nodes
+    private FileTransferService transfers; // Serves our shared files to other nodes
+    private SharedDirectory shared; // Catalog of our shared files, kept in step with the directory
 
     /**
      * Constructs a UDPClient2 instance, initializing the socket and executor.
@@ -31,48 +75,535 @@ public class UDPClient2 {
     public UDPClient2(int nodeId, ConfigLoader configLoader) {
         try {
             this.nodeId = nodeId;
+            this.configLoader = configLoader;
+            this.serverNodeId = (SHARDS == null) ? SERVER_NODE_ID : SHARDS.ownerOf(nodeId);
             ConfigLoader.NodeInfo nodeInfo = configLoader.getNodes().get(nodeId);
-            ConfigLoader.NodeInfo serverNode = configLoader.getNodes().get(6); // Get Node 6 (server)
+            ConfigLoader.NodeInfo serverNode = configLoader.getNodes().get(serverNodeId);
     
             if (nodeInfo == null || serverNode == null) {
                 throw new IllegalArgumentException("Node information not found.");
             }
+            if (SHARDS != null) {
+                serverPort = serverNode.port; // Shards listen on the ports in the config
+                System.out.println("Reporting to shard " + serverNodeId);
+            }
 
             socket = new DatagramSocket(nodeInfo.port); // Bind to the specified port
-            executor = Executors.newFixedThreadPool(2); // Use two threads for handling tasks
+            transfers = new FileTransferService(FileTransferService.SHARED_DIR,
+                    nodeInfo.port + FileTransferService.PORT_OFFSET); // Serve files beside the heartbeat port
+            shared = new SharedDirectory(nodeId, FileTransferService.SHARED_DIR, nodeInfo.files);
+            subscription = subscribe(MULTICAST_PORT + ((SHARDS == null) ? 0 : SHARDS.indexOf(serverNodeId)));
+            executor = TaskExecutors.newNodeExecutor(6); // Sender, receivers, file transfers, directory and config watchers
             serverAddress = InetAddress.getByName(serverNode.ip); // Server IP address
-        } catch (SocketException | UnknownHostException e) {
+            serverAddressVersion = configLoader.getMembershipVersion();
+            Metrics.start("client-" + nodeId);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Serializes an object into a byte array for sending over UDP.
+     * Joins the multicast group the server publishes node lists to, on the
+     * interface named by {@code -Dmulticast.interface} or the system's
+     * default one.
+     * 
+     * @param port The port the group is published on.
+     * @return The joined socket, or null if no group is configured or it cannot be joined.
+     */
+    private static MulticastSocket subscribe(int port) {
+        if (MULTICAST_GROUP == null) {
+            return null;
+        }
+        try {
+            String interfaceName = System.getProperty("multicast.interface");
+            NetworkInterface networkInterface = null;
+            if (interfaceName != null) {
+                networkInterface = NetworkInterface.getByName(interfaceName);
+                if (networkInterface == null) {
+                    throw new IOException("No network interface named " + interfaceName);
+                }
+            }
+            MulticastSocket joined = new MulticastSocket(port); // Shareable by every client on the host
+            joined.joinGroup(new InetSocketAddress(InetAddress.getByName(MULTICAST_GROUP), port),
+                    networkInterface);
+            return joined;
+        } catch (IOException e) {
+            System.err.println("Could not join " + MULTICAST_GROUP + ", node lists will come by unicast: "
+                    + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Applies a node list delta from the server and acknowledges it.
+     * 
+     * <p>If the delta builds on an epoch this client never applied, some
+     * changes were missed and a full snapshot is requested instead. A delta
+     * already applied, e.g. one that came both from the multicast group and
+     * by unicast, is only acknowledged again.</p>
+     * 
+     * @param delta The changes sent by the server.
+     * @throws IOException If the acknowledgement cannot be sent.
+     */
+    private synchronized void applyNodeListDelta(Packet.NodeListDelta delta) throws IOException {
+        if (!delta.isSnapshot() && delta.getBaseEpoch() > appliedEpoch) {
+            System.err.println("Missed node list changes, requesting a snapshot.");
+            sendAck(0);
+            return;
+        }
+        if (!delta.isSnapshot() && delta.getEpoch() <= appliedEpoch) {
+            sendAck(appliedEpoch);
+            return;
+        }
+
+        if (delta.isSnapshot()) {
+            knownNodes.clear();
+            appliedEpoch = delta.getEpoch();
+            System.out.println("Received updated node list from server:");
+        } else {
+            appliedEpoch = Math.max(appliedEpoch, delta.getEpoch());
+            System.out.println("Received node list changes from server:");
+        }
+        for (Packet pkt : delta.getPackets()) {
+            knownNodes.put(pkt.getNodeId(), pkt);
+            printNodeEntry(pkt);
+        }
+        sendAck(appliedEpoch);
+    }
+
+    /**
+     * Passes a relayed node list on to this client's children in the relay
+     * tree, then applies it.
+     * 
+     * <p>Each epoch is forwarded only once, so a frame that arrives twice
+     * does not flood the subtree again. A snapshot older than the last
+     * epoch relayed is still forwarded, since it means the server restarted
+     * and counts epochs afresh.</p>
+     * 
+     * @param relay The relayed frame.
+     * @throws IOException If the acknowledgement cannot be sent.
+     */
+    private void relay(Packet.Relay relay) throws IOException {
+        Object payload;
+        try {
+            payload = Packet.decode(relay.getPayload(), 0, relay.getPayload().length);
+        } catch (IOException e) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Dropped malformed relayed node list: " + e.getMessage());
+            return;
+        }
+        if (!(payload instanceof Packet.NodeListDelta)) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Relayed frame does not carry a node list.");
+            return;
+        }
+        Packet.NodeListDelta delta = (Packet.NodeListDelta) payload;
+        boolean seen;
+        synchronized (this) {
+            seen = (delta.getEpoch() < relayedEpoch) ? !delta.isSnapshot() : delta.getEpoch() == relayedEpoch;
+            if (!seen) {
+                relayedEpoch = delta.getEpoch();
+            }
+        }
+        if (!seen) {
+            for (Packet.Relay child : relay.children()) {
+                int childId = child.getTargets()[0];
+                ConfigLoader.NodeInfo node = configLoader.getNodes().get(childId);
+                if (node == null) {
+                    System.err.println("Cannot relay node list to unknown Node " + childId);
+                    continue;
+                }
+                try {
+                    sendFrame(Packet.encode(child), InetAddress.getByName(node.ip), node.port);
+                } catch (IOException e) {
+                    System.err.println("Failed to relay node list to Node " + childId + ": " + e.getMessage());
+                }
+            }
+        }
+        applyNodeListDelta(delta);
+    }
+
+    /**
+     * Tells the server which node list epoch this client has applied.
+     * 
+     * @param epoch The applied epoch, or 0 to request a full snapshot.
+     * @throws IOException If the acknowledgement cannot be sent.
+     */
+    private void sendAck(long epoch) throws IOException {
+        sendFrame(Packet.encodeAck(nodeId, epoch));
+    }
+
+    /**
+     * Sends an encoded frame to the server, split into MTU-sized fragments
+     * when it does not fit in a single datagram.
+     * 
+     * @param frame The encoded frame.
+     * @throws IOException If a datagram cannot be sent.
+     */
+    private void sendFrame(byte[] frame) throws IOException {
+        if (configLoader.getMembershipVersion() != serverAddressVersion) {
+            // The config was reloaded, the server may have moved
+            serverAddressVersion = configLoader.getMembershipVersion();
+            ConfigLoader.NodeInfo serverNode = configLoader.getNodes().get(serverNodeId);
+            if (serverNode != null) {
+                serverAddress = InetAddress.getByName(serverNode.ip);
+                if (SHARDS != null) {
+                    serverPort = serverNode.port;
+                }
+            }
+        }
+        sendFrame(frame, serverAddress, serverPort);
+    }
+
+    /**
+     * Sends an encoded frame to any address, in fragments if need be.
+     * 
+     * @param frame The encoded frame.
+     * @param address The destination host.
+     * @param port The destination port.
+     * @throws IOException If a datagram cannot be sent.
+     */
+    private void sendFrame(byte[] frame, InetAddress address, int port) throws IOException {
+        for (ByteBuffer datagram : FragmentLayer.split(frame)) {
+            socket.send(new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(),
+                    datagram.remaining(), address, port));
+            Metrics.DATAGRAMS_SENT.increment();
+        }
+    }
+
+    /**
+     * Asks the server which online nodes hold a file.
+     * 
+     * @param fileName The exact file name to look up.
+     * @param timeoutMs How long to wait for the answer.
+     * @return The IDs of the online nodes holding the file, possibly empty.
+     * @throws IOException If the query cannot be sent or is not answered in time.
+     */
+    public int[] findFile(String fileName, long timeoutMs) throws IOException {
+        if (SHARDS != null) {
+            // Each shard knows only the nodes it owns
+            TreeSet<Integer> holders = new TreeSet<>();
+            for (Object answer : scatter(requestId -> Packet.encode(new Packet.FileQuery(nodeId, requestId, fileName)),
+                    timeoutMs)) {
+                for (int holder : ((Packet.FileQueryResult) answer).getHolders()) {
+                    holders.add(holder);
+                }
+            }
+            return holders.stream().mapToInt(Integer::intValue).toArray();
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        byte[] frame = Packet.encode(new Packet.FileQuery(nodeId, requestId, fileName));
+        return ((Packet.FileQueryResult) request(requestId, frame, timeoutMs)).getHolders();
+    }
+
+    /**
+     * Asks the server for one page of the file names matching a glob pattern.
+     * 
+     * @param pattern The pattern, where * matches any run of characters and ? any one character.
+     * @param offset The number of matches to skip.
+     * @param limit The largest number of matches wanted.
+     * @param timeoutMs How long to wait for the answer.
+     * @return The page of matches, each with its holders and their status.
+     * @throws IOException If the search cannot be sent or is not answered in time.
+     */
+    public Packet.FileSearchResult searchFiles(String pattern, int offset, int limit, long timeoutMs)
+            throws IOException {
+        if (SHARDS != null) {
+            return searchShards(pattern, offset, limit, timeoutMs);
+        }
+        int requestId = nextRequestId.incrementAndGet();
+        byte[] frame = Packet.encode(new Packet.FileSearch(nodeId, requestId, pattern, Math.max(0, offset),
+                Math.max(0, Math.min(limit, MAX_SEARCH_PAGE)))); // The server drops pages out of bounds
+        return (Packet.FileSearchResult) request(requestId, frame, timeoutMs);
+    }
+
+    /**
+     * Searches every shard and merges their pages into one.
+     * 
+     * <p>Each shard is asked for every match up to the end of the wanted
+     * page, up to the largest page a server answers, sorted by name, and
+     * the names are merged with the holders reported for each. A name can be held in several shards, so the total
+     * is exact only when every shard's matches fit in what was fetched;
+     * otherwise it may count such names more than once.</p>
+     * 
+     * @param pattern The glob pattern.
+     * @param offset The number of merged matches to skip.
+     * @param limit The largest number of matches wanted.
+     * @param timeoutMs How long to wait for the shards.
+     * @return The page of merged matches.
+     * @throws IOException If no shard answers in time.
+     */
+    private Packet.FileSearchResult searchShards(String pattern, int offset, int limit, long timeoutMs)
+            throws IOException {
+        int wanted = (int) Math.min((long) Math.max(0, offset) + limit, MAX_SEARCH_PAGE);
+        TreeMap<String, List<Packet.SearchHit>> byName = new TreeMap<>();
+        int total = 0;
+        boolean complete = true;
+        for (Object answer : scatter(requestId -> Packet.encode(new Packet.FileSearch(nodeId, requestId, pattern, 0,
+                wanted)), timeoutMs)) {
+            Packet.FileSearchResult page = (Packet.FileSearchResult) answer;
+            total += page.getTotal();
+            complete &= page.getHits().size() >= page.getTotal();
+            for (Packet.SearchHit hit : page.getHits()) {
+                byName.computeIfAbsent(hit.getFileName(), name -> new ArrayList<>()).add(hit);
+            }
+        }
+        int duplicates = 0;
+        List<Packet.SearchHit> merged = new ArrayList<>();
+        int index = 0;
+        for (Map.Entry<String, List<Packet.SearchHit>> entry : byName.entrySet()) {
+            duplicates += entry.getValue().size() - 1;
+            if (index++ < offset || merged.size() >= limit) {
+                continue;
+            }
+            TreeMap<Integer, String> holders = new TreeMap<>();
+            for (Packet.SearchHit hit : entry.getValue()) {
+                for (int i = 0; i < hit.getNodeIds().length; i++) {
+                    holders.put(hit.getNodeIds()[i], hit.getStatuses()[i]);
+                }
+            }
+            merged.add(new Packet.SearchHit(entry.getKey(), holders.keySet().stream().mapToInt(Integer::intValue)
+                    .toArray(), holders.values().toArray(new String[0])));
+        }
+        return new Packet.FileSearchResult(0, Math.max(0, offset), complete ? byName.size() : total - duplicates,
+                merged);
+    }
+
+    /**
+     * Sends a query to every shard at once and waits for their answers,
+     * each matched by a request ID of its own.
+     * 
+     * @param query Encodes the query for a given request ID.
+     * @param timeoutMs How long to wait for all the answers.
+     * @return The answers of the shards that replied in time.
+     * @throws IOException If no shard replied in time.
+     */
+    private List<Object> scatter(IntFunction<byte[]> query, long timeoutMs) throws IOException {
+        Map<Integer, CompletableFuture<Object>> answers = new TreeMap<>(); // By shard
+        List<Integer> requestIds = new ArrayList<>();
+        List<Integer> silent = new ArrayList<>();
+        List<Object> replies = new ArrayList<>();
+        try {
+            for (int shard : SHARDS.getShards()) {
+                ConfigLoader.NodeInfo shardNode = configLoader.getNodes().get(shard);
+                if (shardNode == null) {
+                    silent.add(shard);
+                    continue;
+                }
+                int requestId = nextRequestId.incrementAndGet();
+                CompletableFuture<Object> answer = new CompletableFuture<>();
+                pendingRequests.put(requestId, answer);
+                requestIds.add(requestId);
+                try {
+                    sendFrame(query.apply(requestId), InetAddress.getByName(shardNode.ip), shardNode.port);
+                    answers.put(shard, answer);
+                } catch (IOException e) {
+                    silent.add(shard);
+                }
+            }
+
+            // One deadline for the whole gather, the shards answer in parallel
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            for (Map.Entry<Integer, CompletableFuture<Object>> entry : answers.entrySet()) {
+                try {
+                    replies.add(entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException | ExecutionException e) {
+                    silent.add(entry.getKey());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the shards");
+        } finally {
+            requestIds.forEach(pendingRequests::remove);
+        }
+        if (replies.isEmpty()) {
+            throw new IOException("No answer from any shard");
+        }
+        if (!silent.isEmpty()) {
+            System.err.println("No answer from shards " + silent + ", results may be incomplete.");
+        }
+        return replies;
+    }
+
+    /**
+     * Sends a query to the server and waits for the answer carrying its request ID.
+     * 
+     * @param requestId The ID the answer will carry.
+     * @param frame The encoded query.
+     * @param timeoutMs How long to wait for the answer.
+     * @return The decoded answer.
+     * @throws IOException If the query cannot be sent or is not answered in time.
+     */
+    private Object request(int requestId, byte[] frame, long timeoutMs) throws IOException {
+        CompletableFuture<Object> answer = new CompletableFuture<>();
+        pendingRequests.put(requestId, answer);
+        try {
+            sendFrame(frame);
+            return answer.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException("No answer from server to request " + requestId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for request " + requestId);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            pendingRequests.remove(requestId);
+        }
+    }
+
+    /**
+     * Hands an answer from the server to the query waiting for it.
+     * 
+     * @param requestId The request ID the answer carries.
+     * @param answer The decoded answer.
+     */
+    private void completeRequest(int requestId, Object answer) {
+        CompletableFuture<Object> pending = pendingRequests.get(requestId);
+        if (pending != null) {
+            pending.complete(answer);
+        }
+    }
+
+    /**
+     * Downloads a file from another node into the download directory,
+     * fetching only the blocks that differ from any copy already there.
      * 
-     * @param obj The object to serialize.
-     * @return The serialized byte array.
-     * @throws IOException If an I/O error occurs during serialization.
+     * @param sourceId The node to download from.
+     * @param fileName The name of the file on that node.
+     * @return Where the file was written.
+     * @throws IOException If the node is unknown, does not have the file, or the transfer fails.
      */
-    private byte[] serialize(Object obj) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(obj);
-        oos.flush();
-        return bos.toByteArray();
+    public Path downloadFile(int sourceId, String fileName) throws IOException {
+        ConfigLoader.NodeInfo source = configLoader.getNodes().get(sourceId);
+        if (source == null) {
+            throw new IOException("No configuration found for Node " + sourceId);
+        }
+        Files.createDirectories(FileTransferService.DOWNLOAD_DIR);
+        Path destination = FileTransferService.DOWNLOAD_DIR.resolve(Path.of(fileName).getFileName());
+        DeltaSync.Result result = DeltaSync.sync(FileTransferService.transferAddress(source), fileName, destination);
+        System.out.println("Reused " + result.getReusedBytes() + " bytes locally, fetched " + result.getFetchedBytes());
+        return destination;
+    }
+
+    /**
+     * Downloads a file from every online node holding it at once, as told by
+     * the server, into the download directory.
+     * 
+     * @param fileName The name of the file.
+     * @return Where the file was written.
+     * @throws IOException If no other node holds the file or the download fails.
+     */
+    public Path swarmDownload(String fileName) throws IOException {
+        Map<Integer, InetSocketAddress> holders = new TreeMap<>();
+        for (int holderId : findFile(fileName, 2000)) {
+            ConfigLoader.NodeInfo holder = configLoader.getNodes().get(holderId);
+            if (holderId != nodeId && holder != null) {
+                holders.put(holderId, FileTransferService.transferAddress(holder));
+            }
+        }
+        if (holders.isEmpty()) {
+            throw new IOException("No other online node has " + fileName);
+        }
+        holders = DeltaSync.sameContentHolders(fileName, holders); // Never mix two versions of the file
+        if (holders.isEmpty()) {
+            throw new IOException("No node listing " + fileName + " is serving it");
+        }
+        Files.createDirectories(FileTransferService.DOWNLOAD_DIR);
+        Path destination = FileTransferService.DOWNLOAD_DIR.resolve(Path.of(fileName).getFileName());
+        SwarmDownload swarm = new SwarmDownload(fileName, holders, destination);
+        swarm.run();
+        System.out.println("Bytes from each node: " + swarm.bytesByHolder());
+        return destination;
+    }
+
+    /**
+     * Prints one node entry of a node list received from the server.
+     * 
+     * @param pkt The entry, holding "status|files" as its data.
+     */
+    private void printNodeEntry(Packet pkt) {
+        int id = pkt.getNodeId();
+        String[] parts = pkt.getData().split("\\|", 2);
+        String status = (parts.length > 1) ? parts[0] : "Unknown";
+        String files = (parts.length > 1) ? parts[1] : "No files";
+        System.out.println("Node " + id + ": Status = " + status + ", Files = " + files);
+    }
+
+    /**
+     * Receives and handles datagrams from one socket until it fails.
+     * 
+     * @param from The socket to read, the node's own or the multicast subscription.
+     */
+    private void receiveFrom(DatagramSocket from) {
+        try {
+            byte[] incomingData = new byte[Packet.MAX_DATAGRAM];
+            while (true) {
+                DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
+                from.receive(incomingPacket);
+                Metrics.DATAGRAMS_RECEIVED.increment();
+
+                ByteBuffer frame = ByteBuffer.wrap(incomingPacket.getData(), incomingPacket.getOffset(),
+                        incomingPacket.getLength());
+                if (FragmentLayer.isFragment(frame)) {
+                    frame = fragments.accept(frame, incomingPacket.getSocketAddress());
+                    if (frame == null) continue; // Wait for the remaining fragments
+                }
+
+                Object receivedObject;
+                long decodeStart = System.nanoTime();
+                try {
+                    receivedObject = Packet.decode(frame);
+                } catch (IOException e) {
+                    Metrics.DATAGRAMS_DROPPED.increment();
+                    System.err.println("Dropped malformed packet: " + e.getMessage());
+                    continue;
+                }
+                Metrics.DECODE_NANOS.record(System.nanoTime() - decodeStart);
+
+                if (receivedObject instanceof List<?>) {
+                    List<?> rawList = (List<?>) receivedObject;
+
+                    if (!rawList.isEmpty() && rawList.get(0) instanceof Packet) {
+                        List<Packet> packetList = (List<Packet>) rawList;
+                        System.out.println("Received updated node list from server:");
+                        for (Packet pkt : packetList) {
+                            printNodeEntry(pkt);
+                        }
+                    } else {
+                        Metrics.DATAGRAMS_DROPPED.increment();
+                        System.err.println("List received but does not contain Packet objects.");
+                    }
+                } else if (receivedObject instanceof Packet.NodeListDelta) {
+                    applyNodeListDelta((Packet.NodeListDelta) receivedObject);
+                } else if (receivedObject instanceof Packet.Relay) {
+                    relay((Packet.Relay) receivedObject);
+                } else if (receivedObject instanceof Packet.FilesResync) {
+                    sendFrame(listingFrame()); // The server missed a change
+                } else if (receivedObject instanceof Packet.FileQueryResult) {
+                    completeRequest(((Packet.FileQueryResult) receivedObject).getRequestId(), receivedObject);
+                } else if (receivedObject instanceof Packet.FileSearchResult) {
+                    completeRequest(((Packet.FileSearchResult) receivedObject).getRequestId(), receivedObject);
+                } else {
+                    Metrics.DATAGRAMS_DROPPED.increment();
+                    System.err.println("Invalid packet format received.");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Deserializes a byte array back into an object.
+     * Encodes this node's whole file listing: a snapshot delta, or the legacy
+     * packet when sending the legacy wire format, which has no deltas.
      * 
-     * @param data The byte array to deserialize.
-     * @return The deserialized object.
-     * @throws IOException If an I/O error occurs during deserialization.
-     * @throws ClassNotFoundException If the class of the serialized object cannot be found.
+     * @return The encoded frame.
+     * @throws IOException If the legacy encoder fails.
      */
-    private Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return ois.readObject();
+    private byte[] listingFrame() throws IOException {
+        return Packet.isLegacyWire() ? Packet.encode(shared.legacyPacket()) : Packet.encode(shared.snapshot());
     }
 
     /**
@@ -80,8 +611,9 @@ public class UDPClient2 {
      * 
      * <p>The client performs two concurrent tasks:</p>
      * <ul>
-     * <li>Sender Task - Sends periodic updates to the server.</li>
-     * <li>Receiver Task - Listens for broadcast updates from the server.</li>
+     * <li>Sender Task - Sends shared file changes, and heartbeats in between.</li>
+     * <li>Receiver Task - Listens for broadcast updates from the server, and a
+     * second one on the multicast group when subscribed.</li>
      * </ul>
      * 
      * @param nodeInfo The configuration details for this node.
@@ -92,93 +624,150 @@ public class UDPClient2 {
             return;
         }
 
-        // Task for sending packets to the server
+        // Task for sending file changes and heartbeats to the server
         Runnable senderTask = () -> {
-            SecureRandom random = new SecureRandom();
-            byte version = 1;
-
             try {
+                configLoader.setNodeFiles(nodeId, shared.getFiles());
+                sendFrame(listingFrame());
+                System.out.println("Node " + nodeId + " information sent.");
                 while (true) {
-                    String fileList = String.join(",", nodeInfo.files);
-                    Packet packet = new Packet(version, nodeId, fileList.length(), fileList);
-
+                    Packet.FilesDelta change = shared.poll(HEARTBEAT_MS);
                     try {
-                        byte[] data = serialize(packet);
-                        DatagramPacket sendPacket = new DatagramPacket(data, data.length, serverAddress, serverPort);
-                        socket.send(sendPacket);
-                        System.out.println("Node " + nodeId + " information sent.");
+                        if (change != null) {
+                            configLoader.setNodeFiles(nodeId, shared.getFiles());
+                        }
+                        if (Packet.isLegacyWire()) {
+                            sendFrame(listingFrame()); // Legacy servers only take the full list, as the heartbeat
+                        } else if (change != null) {
+                            sendFrame(Packet.encode(change));
+                        } else {
+                            sendFrame(Packet.encode(new Packet.Heartbeat(nodeId, shared.getVersion())));
+                        }
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
-
-                    int delay = 1 + random.nextInt(30); // Wait between 1 and 30 seconds
-                    System.out.println("Next send in " + delay + " seconds.");
-                    Thread.sleep(delay * 1000);
                 }
-            } catch (Exception e) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         };
 
         // Task for receiving packets from the server
-        Runnable receiverTask = () -> {
-            try {
-                while (true) {
-                    byte[] incomingData = new byte[4096];
-                    DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
-                    socket.receive(incomingPacket);
-
-                    Object receivedObject = deserialize(incomingPacket.getData());
-
-                    if (receivedObject instanceof List<?>) {
-                        List<?> rawList = (List<?>) receivedObject;
-
-                        if (!rawList.isEmpty() && rawList.get(0) instanceof Packet) {
-                            List<Packet> packetList = (List<Packet>) rawList;
-                            System.out.println("Received updated node list from server:");
-                            for (Packet pkt : packetList) {
-                                int id = pkt.getNodeId();
-                                String[] parts = pkt.getData().split("\\|", 2);
-                                String status = (parts.length > 1) ? parts[0] : "Unknown";
-                                String files = (parts.length > 1) ? parts[1] : "No files";
-                                System.out.println("Node " + id + ": Status = " + status + ", Files = " + files);
-                            }
-                        } else {
-                            System.err.println("List received but does not contain Packet objects.");
-                        }
-                    } else {
-                        System.err.println("Invalid packet format received.");
-                    }
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-            }
-        };
+        Runnable receiverTask = () -> receiveFrom(socket);
 
         executor.execute(senderTask);
         executor.execute(receiverTask);
+        if (subscription != null) {
+            executor.execute(() -> receiveFrom(subscription)); // Node lists published to the group
+        }
+        executor.execute(transfers);
+        executor.execute(shared);
+        executor.execute(configLoader::watch);
         executor.shutdown();
     }
 
+    /**
+     * Tells whether a node ID belongs to a server rather than a client.
+     * 
+     * @param id The node ID.
+     * @return True for the server, or any shard when the registry is sharded.
+     */
+    private static boolean isServer(int id) {
+        return (SHARDS == null) ? id == SERVER_NODE_ID : SHARDS.indexOf(id) >= 0;
+    }
+
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
     ConfigLoader configLoader = new ConfigLoader();
     int nodeId;
 
-    // Prompt user for a Node ID
+    // Prompt user for a Node ID listed in the config
     while (true) {
-        System.out.print("Enter a Node ID (1-5): ");
+        System.out.print("Enter a Node ID: ");
         try {
             nodeId = Integer.parseInt(scanner.nextLine().trim());
-            if (nodeId >= 1 && nodeId <= 5) break;
-            else System.err.println("Invalid Node ID! Please enter a number between 1 and 5.");
+            if (!isServer(nodeId) && configLoader.getNodes().containsKey(nodeId)) break;
+            else System.err.println("Invalid Node ID! Please enter a client node listed in nodes.config.");
         } catch (NumberFormatException e) {
-            System.err.println("Invalid input! Please enter a number between 1 and 5.");
+            System.err.println("Invalid input! Please enter a number.");
         }
     }
 
     UDPClient2 client = new UDPClient2(nodeId, configLoader);
     client.createAndListenSocket(configLoader.getNodes().get(nodeId));
+
+    // Commands typed while the client runs, e.g. "find report.txt"
+    while (scanner.hasNextLine()) {
+        String line = scanner.nextLine().trim();
+        if (line.startsWith("find ")) {
+            String fileName = line.substring(5).trim();
+            try {
+                int[] holders = client.findFile(fileName, 2000);
+                if (holders.length == 0) {
+                    System.out.println("No online node has " + fileName);
+                } else {
+                    System.out.println(fileName + " is on nodes " + Arrays.toString(holders));
+                }
+            } catch (IOException e) {
+                System.err.println("File query failed: " + e.getMessage());
+            }
+        } else if (line.startsWith("search ")) {
+            // "search <pattern> [page]", pages counted from 1
+            String[] parts = line.substring(7).trim().split("\\s+");
+            int page = 1;
+            try {
+                page = (parts.length > 1) ? Math.max(1, Integer.parseInt(parts[1])) : 1;
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid page number, showing page 1.");
+            }
+            try {
+                Packet.FileSearchResult result = client.searchFiles(parts[0], (page - 1) * SEARCH_PAGE_SIZE,
+                        SEARCH_PAGE_SIZE, 2000);
+                int pages = Math.max(1, (result.getTotal() + SEARCH_PAGE_SIZE - 1) / SEARCH_PAGE_SIZE);
+                System.out.println(result.getTotal() + " matches for " + parts[0] + ", page " + page + " of " + pages);
+                for (Packet.SearchHit hit : result.getHits()) {
+                    StringBuilder holders = new StringBuilder();
+                    for (int i = 0; i < hit.getNodeIds().length; i++) {
+                        holders.append(i == 0 ? "" : ", ").append("Node ").append(hit.getNodeIds()[i])
+                                .append(" (").append(hit.getStatuses()[i]).append(")");
+                    }
+                    System.out.println("  " + hit.getFileName() + ": " + holders);
+                }
+            } catch (IOException e) {
+                System.err.println("File search failed: " + e.getMessage());
+            }
+        } else if (line.startsWith("get ")) {
+            // "get <node id> <file>"
+            String[] parts = line.substring(4).trim().split("\\s+", 2);
+            try {
+                long start = System.nanoTime();
+                Path saved = client.downloadFile(Integer.parseInt(parts[0]), parts[1]);
+                long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+                long bytes = Files.size(saved);
+                System.out.println("Saved " + saved + " (" + bytes + " bytes, " + (bytes / 1024 * 1000 / ms) + " KB/s)");
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Usage: get <node id> <file>");
+            } catch (IOException e) {
+                System.err.println("Download failed: " + e.getMessage());
+            }
+        } else if (line.startsWith("swarm ")) {
+            // "swarm <file>", fetched from every online holder at once
+            try {
+                long start = System.nanoTime();
+                Path saved = client.swarmDownload(line.substring(6).trim());
+                long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+                long bytes = Files.size(saved);
+                System.out.println("Saved " + saved + " (" + bytes + " bytes, " + (bytes / 1024 * 1000 / ms) + " KB/s)");
+            } catch (IOException e) {
+                System.err.println("Download failed: " + e.getMessage());
+            }
+        } else if (!line.isEmpty()) {
+            System.err.println("Unknown command. Usage: find <file> | search <pattern> [page] | get <node id> <file>"
+                    + " | swarm <file>");
+        }
+    }
     }
 }
 
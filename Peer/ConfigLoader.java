@@ -3,24 +3,78 @@
  * from a configuration file. It provides functionality to retrieve, update, and 
  * display node information.
  * 
+ * <p>The registry is safe to share between threads. Each NodeInfo is an
+ * immutable snapshot, and an update swaps in a new snapshot under the
+ * per-bin lock of a ConcurrentHashMap. A reader therefore always sees a
+ * status and a file list that belong together.</p>
+ * 
+ * <p>The node set is not fixed: {@link #watch} reloads the file when it
+ * changes and adds, removes or readdresses nodes one entry at a time, so
+ * callers should iterate {@link #getNodes} rather than assume a range of
+ * IDs, and can use the membership version to tell when it changed.</p>
+ * 
+ * <p>A registry can be limited to some of the nodes in the file, as a
+ * server shard is to the nodes it owns; the others are left out of every
+ * load and reload.</p>
+ * 
  * @author Omar Fofana
  */
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+import java.util.function.UnaryOperator;
 
 public class ConfigLoader {
     private static final String CONFIG_FILE = "nodes.config";
-    private Map<Integer, NodeInfo> nodes = new HashMap<>();
+    private static final int READ_BUFFER_BYTES = 64 << 10; // Config file bytes read at a time
+    private static final long RELOAD_SETTLE_MS = 200; // Quiet time after a config write before reloading
+    private static final String[] KNOWN_STATUSES = { "Online", "Offline" }; // Shared rather than one String per line
+    private static final byte[][] KNOWN_STATUS_BYTES = { "Online".getBytes(StandardCharsets.US_ASCII),
+            "Offline".getBytes(StandardCharsets.US_ASCII) }; // KNOWN_STATUSES as matched against the file
+    private final String configFile; // Path of the configuration file
+    private final IntPredicate keep; // Nodes of the file this registry holds, all of them when null
+    private Map<Integer, NodeInfo> nodes = new ConcurrentHashMap<>();
+    private AtomicLong epoch = new AtomicLong(1); // Bumped on every change to any node, 0 is never used
+    private volatile int membershipVersion; // Bumped when nodes are added, removed or readdressed
+    private List<NodeListener> listeners = new CopyOnWriteArrayList<>(); // Notified of every change
+    private Map<Integer, Long> catalogVersions = new ConcurrentHashMap<>(); // Last file catalog version applied per node
+
+    // Updates share this lock while they bump the epoch and publish the new
+    // snapshot; getEpoch takes it exclusively so every change up to the
+    // epoch it returns is already visible in the map.
+    private ReadWriteLock publishLock = new ReentrantReadWriteLock();
 
     /**
      * NodeInfo class stores information about a node, including IP address, port,
-     * status, and a list of associated files.
+     * status, and a list of associated files. The version is the registry epoch
+     * of the node's last change. Instances are immutable; use {@link #withStatus}
+     * and {@link #withFiles} to derive an updated copy.
+     * 
+     * <p>The files are a {@link FileSet} of interned names, listed in name ID
+     * order. Copies that keep the files share the same set.</p>
      */
     public static class NodeInfo {
-        String ip;
-        int port;
-        String status;
-        List<String> files;
+        final String ip;
+        final int port;
+        final String status;
+        final FileSet files;
+        final long version;
 
         /**
          * Constructs a NodeInfo object.
@@ -31,69 +85,370 @@ public class ConfigLoader {
          * @param files  A list of files associated with the node
          */
         public NodeInfo(String ip, int port, String status, List<String> files) {
+            this(ip, port, status, files, 0);
+        }
+
+        private NodeInfo(String ip, int port, String status, List<String> files, long version) {
             this.ip = ip;
             this.port = port;
             this.status = status;
-            this.files = files;
+            this.files = FileSet.of(files);
+            this.version = version;
         }
 
         /**
-         * Updates the status of the node.
+         * Returns a copy of this node with a different status.
          * 
-         * @param status The new status to set
+         * @param status The new status
+         * @return The updated node
          */
-        public void setStatus(String status) {
-            this.status = status;
+        public NodeInfo withStatus(String status) {
+            return new NodeInfo(ip, port, status, files, version);
+        }
+
+        /**
+         * Returns a copy of this node with a different list of files.
+         * 
+         * @param files The new list of files
+         * @return The updated node
+         */
+        public NodeInfo withFiles(List<String> files) {
+            return new NodeInfo(ip, port, status, files, version);
         }
 
         /**
-         * Updates the list of files associated with the node.
+         * Returns a copy of this node at a different address.
          * 
-         * @param files The new list of files to set
+         * @param ip   The new IP address
+         * @param port The new port
+         * @return The updated node
+         */
+        public NodeInfo withAddress(String ip, int port) {
+            return new NodeInfo(ip, port, status, files, version);
+        }
+
+        /**
+         * Returns a copy of this node stamped with a registry epoch.
          */
-        public void setFiles(List<String> files) {
-            this.files = files;
+        private NodeInfo withVersion(long version) {
+            return new NodeInfo(ip, port, status, files, version);
         }
     }
 
+    /**
+     * NodeListener is notified whenever a node's snapshot is replaced, so
+     * derived structures can be kept up to date incrementally.
+     */
+    public interface NodeListener {
+        /**
+         * Called for every change while the node's entry is locked, so calls
+         * for one node arrive in order. Implementations must be quick and
+         * must not update the registry themselves.
+         * 
+         * @param nodeId The ID of the node that changed
+         * @param before The previous snapshot, or null for a new node
+         * @param after  The new snapshot, or null for a removed node
+         */
+        void nodeChanged(int nodeId, NodeInfo before, NodeInfo after);
+    }
+
     /**
      * Constructs a ConfigLoader instance and loads the configuration file.
      */
     public ConfigLoader() {
-        loadConfig();
+        this(CONFIG_FILE, null);
     }
 
     /**
-     * Loads node configuration data from the configuration file.
+     * Constructs a ConfigLoader instance holding only some of the nodes in
+     * the configuration file.
+     * 
+     * @param keep Selects the node IDs to hold
      */
-    private void loadConfig() {
-        try (BufferedReader br = new BufferedReader(new FileReader(CONFIG_FILE))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("#")) continue;
+    public ConfigLoader(IntPredicate keep) {
+        this(CONFIG_FILE, keep);
+    }
 
-                String[] parts = line.split("\\s+", 5);
-                if (parts.length < 4) {
-                    System.err.println("Invalid line format: " + line);
-                    continue;
-                }
+    /**
+     * Constructs a ConfigLoader instance and loads the given configuration file.
+     * 
+     * @param configFile Path of the configuration file to load
+     */
+    public ConfigLoader(String configFile) {
+        this(configFile, null);
+    }
 
-                try {
-                    int nodeId = Integer.parseInt(parts[0]);
-                    String ip = parts[1];
-                    int port = Integer.parseInt(parts[2]);
-                    String status = parts[3];
-                    List<String> files = (parts.length == 5) ? Arrays.asList(parts[4].split(",")) : new ArrayList<>();
+    /**
+     * Constructs a ConfigLoader instance and loads some of the nodes in the
+     * given configuration file.
+     * 
+     * @param configFile Path of the configuration file to load
+     * @param keep       Selects the node IDs to hold, or null for all of them
+     */
+    public ConfigLoader(String configFile, IntPredicate keep) {
+        this.configFile = configFile;
+        this.keep = keep;
+        Map<Integer, NodeInfo> loaded = loadConfig();
+        if (loaded != null) {
+            nodes.putAll(loaded);
+        }
+        membershipVersion++;
+    }
 
-                    nodes.put(nodeId, new NodeInfo(ip, port, status, files));
-                } catch (NumberFormatException e) {
-                    System.err.println("Invalid number format in config: " + line);
+    /**
+     * Reads the configuration file.
+     * 
+     * <p>The file is streamed through a fixed buffer and each line is parsed
+     * in place from its bytes, so a file with a hundred thousand nodes is read
+     * without building a String per line or per field. Only the address and
+     * file names become Strings, and the common statuses are shared.</p>
+     * 
+     * @return The nodes in the file, or null if it could not be read
+     */
+    private Map<Integer, NodeInfo> loadConfig() {
+        Map<Integer, NodeInfo> loaded = new HashMap<>();
+        try (FileChannel in = FileChannel.open(Path.of(configFile), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            int lineNumber = 0;
+            boolean eof = false;
+            while (!eof) {
+                eof = in.read(buf) < 0;
+                buf.flip();
+                byte[] bytes = buf.array();
+                int start = 0;
+                for (int i = 0; i < buf.limit(); i++) {
+                    if (bytes[i] == '\n') {
+                        parseLine(bytes, start, i, ++lineNumber, loaded);
+                        start = i + 1;
+                    }
+                }
+                if (eof && start < buf.limit()) {
+                    parseLine(bytes, start, buf.limit(), ++lineNumber, loaded); // Last line has no newline
+                    start = buf.limit();
+                }
+                buf.position(start);
+                buf.compact();
+                if (!buf.hasRemaining()) {
+                    buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip()); // A line longer than the buffer
                 }
             }
         } catch (IOException e) {
             System.err.println("Error reading config file: " + e.getMessage());
+            return null;
+        }
+        if (keep != null) {
+            loaded.keySet().removeIf(nodeId -> !keep.test(nodeId));
+        }
+        return loaded;
+    }
+
+    /**
+     * Parses one line of the form {@code id ip port status [file,file,...]}.
+     */
+    private static void parseLine(byte[] b, int from, int to, int lineNumber, Map<Integer, NodeInfo> loaded) {
+        int idStart = skipSpace(b, from, to);
+        if (idStart == to || b[idStart] == '#') {
+            return;
+        }
+        int idEnd = tokenEnd(b, idStart, to);
+        int ipStart = skipSpace(b, idEnd, to);
+        int ipEnd = tokenEnd(b, ipStart, to);
+        int portStart = skipSpace(b, ipEnd, to);
+        int portEnd = tokenEnd(b, portStart, to);
+        int statusStart = skipSpace(b, portEnd, to);
+        int statusEnd = tokenEnd(b, statusStart, to);
+        if (statusStart == statusEnd) {
+            System.err.println("Invalid line format at line " + lineNumber + ": " + new String(b, from, to - from).trim());
+            return;
+        }
+        int nodeId = parseNumber(b, idStart, idEnd);
+        int port = parseNumber(b, portStart, portEnd);
+        if (nodeId < 0 || port < 0) {
+            System.err.println("Invalid number format in config at line " + lineNumber + ": "
+                    + new String(b, from, to - from).trim());
+            return;
+        }
+
+        String ip = new String(b, ipStart, ipEnd - ipStart, StandardCharsets.UTF_8);
+        String status = status(b, statusStart, statusEnd);
+        List<String> files = new ArrayList<>();
+        int filesStart = skipSpace(b, statusEnd, to);
+        int filesEnd = to;
+        while (filesEnd > filesStart && isSpace(b[filesEnd - 1])) {
+            filesEnd--;
+        }
+        for (int start = filesStart; start < filesEnd; ) {
+            int comma = start;
+            while (comma < filesEnd && b[comma] != ',') {
+                comma++;
+            }
+            files.add(new String(b, start, comma - start, StandardCharsets.UTF_8));
+            start = comma + 1;
+        }
+        loaded.put(nodeId, new NodeInfo(ip, port, status, files));
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    private static int skipSpace(byte[] b, int i, int to) {
+        while (i < to && isSpace(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int tokenEnd(byte[] b, int i, int to) {
+        while (i < to && !isSpace(b[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses a run of ASCII digits, returning -1 if it is empty, holds
+     * anything else or overflows.
+     */
+    private static int parseNumber(byte[] b, int from, int to) {
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (b[i] < '0' || b[i] > '9' || (value = value * 10 + (b[i] - '0')) > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    /**
+     * Gets a status as a shared String when it is one of the usual ones.
+     */
+    private static String status(byte[] b, int from, int to) {
+        for (int i = 0; i < KNOWN_STATUSES.length; i++) {
+            if (Arrays.equals(b, from, to, KNOWN_STATUS_BYTES[i], 0, KNOWN_STATUS_BYTES[i].length)) {
+                return KNOWN_STATUSES[i];
+            }
+        }
+        return new String(b, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the configuration file again and applies what changed while the
+     * registry stays in use: nodes that appeared are added, nodes that are
+     * gone are removed and nodes that moved get their new address, each
+     * under its own entry's lock and reported to the listeners. Nodes that
+     * stayed keep the status and files learned at runtime.
+     * 
+     * @return The number of nodes added, removed or readdressed
+     */
+    public int reload() {
+        Map<Integer, NodeInfo> loaded = loadConfig();
+        if (loaded == null) {
+            return 0;
+        }
+        int changes = 0;
+        for (Map.Entry<Integer, NodeInfo> entry : loaded.entrySet()) {
+            if (addOrReaddress(entry.getKey(), entry.getValue())) {
+                changes++;
+            }
+        }
+        for (Integer nodeId : nodes.keySet()) {
+            if (!loaded.containsKey(nodeId) && remove(nodeId)) {
+                changes++;
+            }
         }
+        if (changes > 0) {
+            membershipVersion++; // After the changes, so a cache rebuilt for the new version sees all of them
+            System.out.println("Reloaded " + configFile + ": " + changes + " nodes added, removed or moved, "
+                    + nodes.size() + " in total");
+        }
+        return changes;
+    }
+
+    /**
+     * Watches the configuration file and reloads it whenever it is written
+     * or replaced, until the thread is interrupted. Run it on a thread of
+     * its own.
+     */
+    public void watch() {
+        Path file = Path.of(configFile).toAbsolutePath();
+        try (WatchService watcher = file.getFileSystem().newWatchService()) {
+            file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                // An editor may write the file in several steps, wait for them to settle
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                                || file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                } while ((key = watcher.poll(RELOAD_SETTLE_MS, TimeUnit.MILLISECONDS)) != null);
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Cannot watch " + configFile + " for changes: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a node from the configuration file, or moves an existing one to
+     * the address the file now gives it.
+     * 
+     * @return true if the registry changed
+     */
+    private boolean addOrReaddress(int nodeId, NodeInfo seed) {
+        boolean[] changed = { false };
+        publishLock.readLock().lock();
+        try {
+            nodes.compute(nodeId, (id, node) -> {
+                if (node != null && node.ip.equals(seed.ip) && node.port == seed.port) {
+                    return node;
+                }
+                NodeInfo updated = (node == null) ? seed : node.withAddress(seed.ip, seed.port);
+                updated = updated.withVersion(epoch.incrementAndGet());
+                for (NodeListener listener : listeners) {
+                    listener.nodeChanged(id, node, updated);
+                }
+                changed[0] = true;
+                return updated;
+            });
+        } finally {
+            publishLock.readLock().unlock();
+        }
+        return changed[0];
+    }
+
+    /**
+     * Removes a node that is no longer in the configuration file.
+     * 
+     * @return true if the node was there
+     */
+    private boolean remove(int nodeId) {
+        boolean[] removed = { false };
+        publishLock.readLock().lock();
+        try {
+            nodes.computeIfPresent(nodeId, (id, node) -> {
+                for (NodeListener listener : listeners) {
+                    listener.nodeChanged(id, node, null);
+                }
+                removed[0] = true;
+                return null;
+            });
+        } finally {
+            publishLock.readLock().unlock();
+        }
+        catalogVersions.remove(nodeId);
+        return removed[0];
     }
 
     /**
@@ -105,6 +460,83 @@ public class ConfigLoader {
         return nodes;
     }
 
+    /**
+     * Gets the registry epoch, which increases every time a node's status or
+     * files change. Nodes whose version is above an epoch changed after it.
+     * 
+     * @return The current epoch
+     */
+    public long getEpoch() {
+        publishLock.writeLock().lock();
+        try {
+            return epoch.get();
+        } finally {
+            publishLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Registers a listener for node changes.
+     * 
+     * @param listener The listener to notify
+     */
+    public void addListener(NodeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Gets the membership version, which only changes when nodes are added,
+     * removed or given a new address. Callers can cache anything derived
+     * from node addresses until it changes.
+     * 
+     * @return The current membership version
+     */
+    public int getMembershipVersion() {
+        return membershipVersion;
+    }
+
+    /**
+     * Atomically replaces a node's snapshot with a changed copy. If the copy
+     * is equal in status and files the node is left untouched, otherwise it
+     * is stamped with the next epoch.
+     * 
+     * @param nodeId The ID of the node to update
+     * @param change Derives the new snapshot from the current one
+     * @return false if the node does not exist
+     */
+    private boolean update(int nodeId, UnaryOperator<NodeInfo> change) {
+        publishLock.readLock().lock();
+        try {
+            return nodes.computeIfPresent(nodeId, (id, node) -> {
+                NodeInfo updated = change.apply(node);
+                if (Objects.equals(node.status, updated.status) && Objects.equals(node.files, updated.files)) {
+                    return node;
+                }
+                updated = updated.withVersion(epoch.incrementAndGet());
+                for (NodeListener listener : listeners) {
+                    listener.nodeChanged(id, node, updated);
+                }
+                return updated;
+            }) != null;
+        } finally {
+            publishLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the status and the list of files of a specific node in one
+     * step, so no reader can see one without the other.
+     * 
+     * @param nodeId    The ID of the node to update
+     * @param newStatus The new status to set for the node
+     * @param newFiles  The new list of files to associate with the node
+     */
+    public void updateNode(int nodeId, String newStatus, List<String> newFiles) {
+        if (!update(nodeId, node -> node.withStatus(newStatus).withFiles(newFiles))) {
+            System.err.println("Node ID " + nodeId + " not found.");
+        }
+    }
+
     /**
      * Updates the status of a specific node.
      * 
@@ -112,14 +544,31 @@ public class ConfigLoader {
      * @param newStatus The new status to set for the node
      */
     public void setNodeStatus(int nodeId, String newStatus) {
-        NodeInfo node = nodes.get(nodeId);
-        if (node != null) {
-            node.setStatus(newStatus);
-        } else {
+        if (!update(nodeId, node -> node.withStatus(newStatus))) {
             System.err.println("Node ID " + nodeId + " not found.");
         }
     }
 
+    /**
+     * Sets a node's status only if a condition still holds once the node's
+     * entry is locked, so nothing can change the node between the check and
+     * the update. The condition must be quick and must not update the
+     * registry.
+     * 
+     * @param nodeId    The ID of the node to update
+     * @param newStatus The new status for the node
+     * @param condition Checked while the entry is locked
+     * @return true if the node exists and the condition held
+     */
+    public boolean setNodeStatusIf(int nodeId, String newStatus, BooleanSupplier condition) {
+        boolean[] held = { false };
+        update(nodeId, node -> {
+            held[0] = condition.getAsBoolean();
+            return held[0] ? node.withStatus(newStatus) : node;
+        });
+        return held[0];
+    }
+
     /**
      * Updates the list of files associated with a specific node.
      * 
@@ -127,15 +576,80 @@ public class ConfigLoader {
      * @param newFiles The new list of files to associate with the node
      */
     public void setNodeFiles(int nodeId, List<String> newFiles) {
-        NodeInfo node = nodes.get(nodeId);
-        if (node != null) {
-            node.setFiles(newFiles);
-            System.out.println("Updated Node " + nodeId + " files to: " + newFiles);
+        if (update(nodeId, node -> node.withFiles(newFiles))) {
+            if (Metrics.TRACE) {
+                System.out.println("Updated Node " + nodeId + " files to: " + newFiles);
+            }
         } else {
             System.err.println("Node ID " + nodeId + " not found.");
         }
     }
 
+    /**
+     * Applies a change to a node's shared files and sets its status, as long
+     * as the change follows on from the catalog version last applied for that
+     * node. A snapshot (base version 0) always applies unless a newer version
+     * is already in place, and a delta that was already applied is ignored.
+     * 
+     * @param nodeId      The ID of the node whose files changed
+     * @param newStatus   The status to set for the node
+     * @param baseVersion The catalog version the change is relative to, or 0 for a snapshot
+     * @param version     The catalog version reached by the change
+     * @param added       The file names added; for a snapshot, all of them
+     * @param removed     The file names removed
+     * @return false if the change does not follow on from what the registry has,
+     *         in which case the node should be asked for a snapshot
+     */
+    public boolean applyFilesDelta(int nodeId, String newStatus, long baseVersion, long version,
+                                   List<String> added, List<String> removed) {
+        boolean[] applied = { true };
+        catalogVersions.compute(nodeId, (id, known) -> {
+            if (known != null && version <= known) {
+                return known; // Duplicate or overtaken by a later change
+            }
+            if (baseVersion != 0 && (known == null || known != baseVersion)) {
+                applied[0] = false;
+                return known;
+            }
+            boolean found = update(nodeId, node -> {
+                FileSet files = (baseVersion == 0) ? FileSet.EMPTY : node.files.minus(FileSet.of(removed));
+                return node.withStatus(newStatus).withFiles(files.union(FileSet.of(added)));
+            });
+            if (!found) {
+                applied[0] = false;
+                return known;
+            }
+            return version;
+        });
+        if (!applied[0] && !nodes.containsKey(nodeId)) {
+            System.err.println("Node ID " + nodeId + " not found.");
+        }
+        return applied[0];
+    }
+
+    /**
+     * Checks whether the registry holds the given catalog version of a
+     * node's files, which a heartbeat uses to tell that nothing was missed.
+     * 
+     * @param nodeId  The ID of the node
+     * @param version The catalog version the node reports
+     * @return true if that version is the one last applied
+     */
+    public boolean hasCatalogVersion(int nodeId, long version) {
+        Long known = catalogVersions.get(nodeId);
+        return known != null && known == version;
+    }
+
+    /**
+     * Forgets the catalog version of a node whose full file list was just
+     * set some other way, so its next heartbeat asks for a snapshot.
+     * 
+     * @param nodeId The ID of the node
+     */
+    public void forgetCatalogVersion(int nodeId) {
+        catalogVersions.remove(nodeId);
+    }
+
     /**
      * Prints all nodes loaded from the configuration file.
      */
@@ -0,0 +1,372 @@
+/**
+ * DeltaSync brings a local copy of a file up to date with another node's
+ * copy, fetching only the blocks that differ.
+ *
+ * <p>This works like rsync with the roles of the two sides swapped, since
+ * transfers here are pulled by the receiver: the node holding the new
+ * version publishes its {@link FileManifest}, and the node holding the old
+ * version rolls a checksum over every offset of its copy to find the
+ * blocks it already has, wherever they moved to. Those blocks are copied
+ * locally; only the runs of blocks not found are fetched as byte-range
+ * transfers. The result is checked against the manifest's content hash
+ * before it replaces the old copy.</p>
+ *
+ * <p>Content is also deduplicated: if any local file in the shared or
+ * download directory already has the manifest's content hash, it is
+ * copied and nothing is fetched. {@link #sameContentHolders} narrows a set
+ * of holders to those serving identical bytes, so a multi-source download
+ * never mixes two versions of a file.</p>
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class DeltaSync {
+    private static final long MANIFEST_TIMEOUT_MS = 5000; // How long a holder gets to send a manifest
+    private static final SecureRandom random = new SecureRandom(); // Request IDs
+    private static final Map<Path, FileManifest> localManifests = new ConcurrentHashMap<>(); // Manifests of local files
+
+    /**
+     * What a sync did.
+     */
+    public static class Result {
+        private final long reusedBytes; // Bytes taken from local files
+        private final long fetchedBytes; // Bytes transferred from the source
+
+        Result(long reusedBytes, long fetchedBytes) {
+            this.reusedBytes = reusedBytes;
+            this.fetchedBytes = fetchedBytes;
+        }
+
+        /**
+         * Gets the number of bytes taken from local files.
+         *
+         * @return the reused bytes
+         */
+        public long getReusedBytes() {
+            return reusedBytes;
+        }
+
+        /**
+         * Gets the number of bytes transferred from the source.
+         *
+         * @return the fetched bytes
+         */
+        public long getFetchedBytes() {
+            return fetchedBytes;
+        }
+    }
+
+    /**
+     * Asks a node for the manifest of a file.
+     *
+     * @param source   the node's transfer port
+     * @param fileName the name of the file on that node
+     * @return the manifest, with blocks of {@link FileManifest#BLOCK_SIZE}
+     * @throws java.io.FileNotFoundException if the node does not have the file
+     * @throws IOException                   if no valid manifest came back
+     */
+    public static FileManifest fetchManifest(InetSocketAddress source, String fileName) throws IOException {
+        int requestId = random.nextInt();
+        ByteBuffer request = ByteBuffer.allocate(2 + 4 + 4 + 4 + Packet.utf8Length(fileName));
+        request.put(Packet.WIRE_VERSION).put(Packet.KIND_MANIFEST_REQUEST).putInt(requestId)
+                .putInt(FileManifest.BLOCK_SIZE);
+        Packet.putString(request, fileName);
+        request.flip();
+        ByteBuffer frame = FileTransferService.request(source, request, requestId, Packet.KIND_MANIFEST,
+                MANIFEST_TIMEOUT_MS);
+        try {
+            return FileManifest.decode(frame);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed manifest for " + fileName + " from " + source);
+        }
+    }
+
+    /**
+     * Makes a local file identical to another node's copy.
+     *
+     * @param source      the transfer port of the node with the wanted version
+     * @param fileName    the name of the file on that node
+     * @param destination the local copy to bring up to date, created if missing
+     * @return how many bytes were reused and fetched
+     * @throws IOException if the source cannot serve the file or the result does not verify
+     */
+    public static Result sync(InetSocketAddress source, String fileName, Path destination) throws IOException {
+        FileManifest remote = fetchManifest(source, fileName);
+
+        Path copy = findLocalCopy(remote, destination);
+        if (copy != null) {
+            if (!copy.equals(destination)) {
+                Files.copy(copy, destination, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new Result(remote.getSize(), 0);
+        }
+
+        // An old copy too large to map is not used as a basis
+        long[] found = Files.isRegularFile(destination) ? findBlocks(remote, destination) : null;
+        if (found == null) {
+            found = missingBlocks(remote);
+        }
+
+        Path partial = destination.resolveSibling(destination.getFileName() + ".part");
+        try {
+            long reused;
+            try (RandomAccessFile out = new RandomAccessFile(partial.toFile(), "rw")) {
+                out.setLength(remote.getSize());
+                reused = copyBlocks(remote, found, destination, out.getChannel());
+            }
+
+            long fetched = fetchMissing(source, remote, found, partial);
+            FileManifest result = FileManifest.compute(partial, fileName, remote.getBlockSize());
+            if (!result.sameContent(remote)) {
+                throw new IOException(fileName + " changed on the source during the sync, try again");
+            }
+            Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            localManifests.put(destination.toAbsolutePath(), result);
+            return new Result(reused, fetched);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Narrows a set of holders to those serving the same content, choosing
+     * the version most of them have. Holders that do not answer are left out.
+     *
+     * @param fileName the name of the file
+     * @param holders  the transfer port of every holder, by node ID
+     * @return the holders of the most common version, possibly empty
+     */
+    public static Map<Integer, InetSocketAddress> sameContentHolders(String fileName,
+            Map<Integer, InetSocketAddress> holders) {
+        Map<Integer, CompletableFuture<FileManifest>> asked = new LinkedHashMap<>();
+        for (Map.Entry<Integer, InetSocketAddress> entry : holders.entrySet()) {
+            asked.put(entry.getKey(), CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetchManifest(entry.getValue(), fileName);
+                } catch (IOException e) {
+                    return null;
+                }
+            }));
+        }
+
+        List<FileManifest> versions = new ArrayList<>();
+        Map<FileManifest, Map<Integer, InetSocketAddress>> byVersion = new HashMap<>();
+        for (Map.Entry<Integer, CompletableFuture<FileManifest>> entry : asked.entrySet()) {
+            FileManifest manifest = entry.getValue().join();
+            if (manifest == null) {
+                continue;
+            }
+            FileManifest version = versions.stream().filter(manifest::sameContent).findFirst().orElse(null);
+            if (version == null) {
+                version = manifest;
+                versions.add(version);
+            }
+            byVersion.computeIfAbsent(version, v -> new LinkedHashMap<>())
+                    .put(entry.getKey(), holders.get(entry.getKey()));
+        }
+
+        Map<Integer, InetSocketAddress> best = new LinkedHashMap<>();
+        for (Map<Integer, InetSocketAddress> group : byVersion.values()) {
+            if (group.size() > best.size()) {
+                best = group;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Looks for a local file that already has the manifest's content,
+     * starting with the destination itself.
+     *
+     * @param remote      the wanted content
+     * @param destination where the file is wanted
+     * @return a local file with identical content, or null
+     * @throws IOException if a local directory cannot be listed
+     */
+    public static Path findLocalCopy(FileManifest remote, Path destination) throws IOException {
+        List<Path> candidates = new ArrayList<>();
+        candidates.add(destination);
+        for (Path dir : new Path[] { FileTransferService.SHARED_DIR, FileTransferService.DOWNLOAD_DIR }) {
+            if (Files.isDirectory(dir)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    files.forEach(candidates::add);
+                }
+            }
+        }
+        for (Path candidate : candidates) {
+            // Sizes are compared first so only plausible files get hashed
+            if (Files.isRegularFile(candidate) && Files.size(candidate) == remote.getSize()) {
+                FileManifest local = localManifest(candidate, remote.getBlockSize());
+                if (local.sameContent(remote)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the manifest of a local file, reusing the last one computed
+     * while the file is unchanged.
+     */
+    private static FileManifest localManifest(Path file, int blockSize) throws IOException {
+        Path key = file.toAbsolutePath();
+        FileManifest cached = localManifests.get(key);
+        if (cached != null && cached.getBlockSize() == blockSize && cached.getSize() == Files.size(file)
+                && cached.getModified() == Files.getLastModifiedTime(file).toMillis()) {
+            return cached;
+        }
+        FileManifest computed = FileManifest.compute(file, file.getFileName().toString(), blockSize);
+        localManifests.put(key, computed);
+        return computed;
+    }
+
+    private static long[] missingBlocks(FileManifest remote) {
+        long[] found = new long[remote.getBlockCount()];
+        Arrays.fill(found, -1);
+        return found;
+    }
+
+    /**
+     * Finds, for every block of the remote file, an offset in the local
+     * file holding the same bytes, by rolling the weak checksum over every
+     * offset and confirming weak matches with the strong hash.
+     *
+     * @return the local offset of each remote block, -1 where none was
+     *         found, or null if the local file is too large to map
+     */
+    private static long[] findBlocks(FileManifest remote, Path basis) throws IOException {
+        long[] found = missingBlocks(remote);
+        int blockSize = remote.getBlockSize();
+        int lastBlock = remote.getBlockCount() - 1;
+
+        // Full-size blocks by weak checksum; the short last block is checked separately
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        for (int i = 0; i <= lastBlock; i++) {
+            if (remote.getBlockLength(i) == blockSize) {
+                byWeak.computeIfAbsent(remote.getWeak(i), w -> new ArrayList<>()).add(i);
+            }
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(basis.toFile(), "r")) {
+            long size = raf.length();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            MessageDigest digest = FileTransferService.sha256();
+            byte[] window = new byte[blockSize];
+
+            int pos = 0;
+            RollingChecksum checksum = null;
+            while (!byWeak.isEmpty() && pos + blockSize <= size) {
+                if (checksum == null) {
+                    map.get(pos, window, 0, blockSize);
+                    checksum = new RollingChecksum(window, 0, blockSize);
+                }
+                List<Integer> candidates = byWeak.get(checksum.value());
+                boolean matched = false;
+                if (candidates != null) {
+                    map.get(pos, window, 0, blockSize);
+                    byte[] hash = FileManifest.strongHash(digest, window, 0, blockSize);
+                    for (int block : candidates) {
+                        if (found[block] < 0 && remote.strongMatches(block, hash)) {
+                            found[block] = pos;
+                            matched = true;
+                        }
+                    }
+                }
+                if (matched) {
+                    pos += blockSize; // Blocks rarely overlap, skip past the match
+                    checksum = null;
+                } else if (pos + blockSize < size) {
+                    checksum.roll(map.get(pos), map.get(pos + blockSize));
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+
+            // The short last block most often sits at the end of the old copy too
+            int tail = (lastBlock >= 0) ? remote.getBlockLength(lastBlock) : 0;
+            if (tail > 0 && tail < blockSize && size >= tail) {
+                map.get((int) (size - tail), window, 0, tail);
+                if (remote.strongMatches(lastBlock, FileManifest.strongHash(digest, window, 0, tail))) {
+                    found[lastBlock] = size - tail;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copies the blocks found locally into place in the new file.
+     *
+     * @return the number of bytes copied
+     */
+    private static long copyBlocks(FileManifest remote, long[] found, Path basis, FileChannel out)
+            throws IOException {
+        long copied = 0;
+        if (!Files.isRegularFile(basis)) {
+            return copied;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(basis.toFile(), "r")) {
+            FileChannel in = raf.getChannel();
+            for (int i = 0; i < found.length; i++) {
+                if (found[i] >= 0) {
+                    long length = remote.getBlockLength(i);
+                    long target = (long) i * remote.getBlockSize();
+                    long done = 0;
+                    while (done < length) {
+                        done += in.transferTo(found[i] + done, length - done, out.position(target + done));
+                    }
+                    copied += length;
+                }
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Fetches every run of blocks that was not found locally.
+     *
+     * @return the number of bytes fetched
+     */
+    private static long fetchMissing(InetSocketAddress source, FileManifest remote, long[] found, Path partial)
+            throws IOException {
+        long fetched = 0;
+        int i = 0;
+        while (i < found.length) {
+            if (found[i] >= 0) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            while (i < found.length && found[i] < 0) {
+                i++;
+            }
+            long offset = (long) runStart * remote.getBlockSize();
+            long length = Math.min(remote.getSize(), (long) i * remote.getBlockSize()) - offset;
+            fetched += FileDownload.fetchRange(source, remote.getName(), offset, length, partial);
+        }
+        return fetched;
+    }
+}
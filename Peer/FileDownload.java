@@ -0,0 +1,300 @@
+/**
+ * FileDownload fetches a file, or a byte range of one, from another node's
+ * {@link FileTransferService}.
+ *
+ * <p>The destination is sized up front and memory-mapped, and every chunk
+ * is written in place at its offset. Chunks mostly arrive in order, so the
+ * receive is a scattering read straight into the mapping at the slot of
+ * the next chunk expected; only a chunk that arrives out of order is
+ * copied once from that slot to its own. Received chunks are tracked in a
+ * bitmap, and the receiver regularly reports the first chunk it is missing
+ * along with which of the 64 chunks after it it already has, so the sender
+ * only resends what was actually lost.</p>
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.function.BooleanSupplier;
+
+public class FileDownload {
+    private static final long SACK_INTERVAL_MS = 20; // Longest wait between acknowledgements while data flows
+    private static final int SACK_EVERY = 16; // Chunks received between acknowledgements
+    private static final long REQUEST_RETRY_MS = 500; // Resend the request if nothing came back this long
+    private static final int REQUEST_TRIES = 5; // Requests sent before giving up on the source
+    private static final SecureRandom random = new SecureRandom(); // Transfer IDs
+
+    private final InetSocketAddress source; // Transfer port of the node serving the file
+    private final String fileName; // Name of the file on the source
+    private final long offset; // First byte of the range
+    private final long length; // Bytes in the range, or -1 for the rest of the file
+    private final Path destination; // File the range is written into, at the same offset
+    private final boolean wholeFile; // Whether the destination is truncated to the file's size
+    private final BooleanSupplier cancelled; // Polled between receives, true stops the download
+    private final int chunkSize = FragmentLayer.MAX_DATAGRAM - FileTransferService.CHUNK_HEADER; // Bytes per chunk
+    private final int transferId = random.nextInt(); // Tells our chunks from stale ones
+
+    private final BitSet received = new BitSet(); // Chunks written so far
+    private int missing; // First chunk not yet received
+    private int highest = -1; // Highest chunk received
+    private int total = -1; // Chunks in the range, known once the first chunk arrives
+    private long rangeEnd; // File offset just past the range
+    private FileTransferService.Segments segments; // Mapped destination
+    private RandomAccessFile file; // Destination, open while receiving
+
+    private FileDownload(InetSocketAddress source, String fileName, long offset, long length, Path destination,
+            boolean wholeFile, BooleanSupplier cancelled) {
+        this.source = source;
+        this.fileName = fileName;
+        this.offset = offset;
+        this.length = length;
+        this.destination = destination;
+        this.wholeFile = wholeFile;
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * Downloads a whole file, replacing the destination.
+     *
+     * @param source      the transfer port of the node serving the file
+     * @param fileName    the name of the file on that node
+     * @param destination where to write the file
+     * @return the number of bytes downloaded
+     * @throws FileNotFoundException if the source does not have the file
+     * @throws IOException           if the transfer fails or stalls
+     */
+    public static long download(InetSocketAddress source, String fileName, Path destination) throws IOException {
+        return new FileDownload(source, fileName, 0, -1, destination, true, () -> false).run();
+    }
+
+    /**
+     * Downloads a byte range of a file into the same range of the
+     * destination, growing the destination if it is shorter. The rest of
+     * the destination is left alone.
+     *
+     * @param source      the transfer port of the node serving the file
+     * @param fileName    the name of the file on that node
+     * @param offset      the first byte of the range
+     * @param length      the number of bytes, or -1 for the rest of the file
+     * @param destination the file to write the range into
+     * @return the number of bytes downloaded, less than length if the file ends first
+     * @throws FileNotFoundException if the source does not have the file
+     * @throws IOException           if the transfer fails or stalls
+     */
+    public static long fetchRange(InetSocketAddress source, String fileName, long offset, long length,
+            Path destination) throws IOException {
+        return fetchRange(source, fileName, offset, length, destination, () -> false);
+    }
+
+    /**
+     * Downloads a byte range like {@link #fetchRange(InetSocketAddress, String, long, long, Path)},
+     * giving up as soon as the caller no longer wants it.
+     *
+     * @param cancelled polled while receiving; once it returns true the download stops
+     * @throws InterruptedIOException if the download was cancelled
+     */
+    public static long fetchRange(InetSocketAddress source, String fileName, long offset, long length,
+            Path destination, BooleanSupplier cancelled) throws IOException {
+        return new FileDownload(source, fileName, offset, length, destination, false, cancelled).run();
+    }
+
+    private long run() throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, FileTransferService.SOCKET_BUFFER);
+            channel.bind(null);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            ByteBuffer header = ByteBuffer.allocateDirect(FileTransferService.CHUNK_HEADER);
+            ByteBuffer staging = ByteBuffer.allocateDirect(chunkSize); // Chunks with no slot to land in
+            ByteBuffer first = ByteBuffer.allocateDirect(FileTransferService.CHUNK_HEADER + chunkSize);
+            ByteBuffer[] scatter = { header, null };
+            ByteBuffer sack = ByteBuffer.allocate(FileTransferService.SACK_BYTES);
+
+            int requests = 0;
+            long lastRequest = 0;
+            long lastHeard = System.currentTimeMillis();
+            long lastSack = 0;
+            int sinceSack = 0;
+
+            while (total < 0 || missing < total) {
+                if (cancelled.getAsBoolean()) {
+                    throw new InterruptedIOException("Download of " + fileName + " cancelled");
+                }
+                long now = System.currentTimeMillis();
+                if (!channel.isConnected()) {
+                    if (now - lastRequest >= REQUEST_RETRY_MS) {
+                        if (requests++ == REQUEST_TRIES) {
+                            throw new IOException("No answer from " + source + " for " + fileName);
+                        }
+                        sendRequest(channel);
+                        lastRequest = now;
+                    }
+                } else if (now - lastHeard > FileTransferService.IDLE_TIMEOUT_MS) {
+                    throw new IOException("Transfer of " + fileName + " stalled at chunk " + missing + " of " + total);
+                }
+
+                selector.select(SACK_INTERVAL_MS);
+                selector.selectedKeys().clear();
+
+                // The first answer tells us the sender's socket and the file size
+                if (!channel.isConnected()) {
+                    first.clear();
+                    SocketAddress sender = channel.receive(first);
+                    if (sender == null) {
+                        continue;
+                    }
+                    first.flip();
+                    if (!readFirst(first)) {
+                        continue;
+                    }
+                    channel.connect(sender);
+                    lastHeard = System.currentTimeMillis();
+                    sinceSack++;
+                }
+
+                // Drain the socket, landing each chunk in the next expected slot
+                while (total >= 0 && missing < total) {
+                    int guess = highest + 1;
+                    boolean slotted = guess < total && segments.length(guess) == chunkSize;
+                    ByteBuffer landing = slotted ? segments.chunk(guess) : staging.clear();
+                    scatter[1] = landing;
+                    header.clear();
+                    long n = channel.read(scatter);
+                    if (n <= 0) {
+                        break;
+                    }
+                    lastHeard = System.currentTimeMillis();
+                    header.flip();
+                    if (n < FileTransferService.CHUNK_HEADER || header.get() != Packet.WIRE_VERSION
+                            || header.get() != Packet.KIND_CHUNK || header.getInt() != transferId) {
+                        continue;
+                    }
+                    header.getLong(); // File size, already known
+                    int index = header.getInt();
+                    int payload = (int) (n - FileTransferService.CHUNK_HEADER);
+                    if (index < 0 || index >= total || received.get(index) || payload != segments.length(index)) {
+                        continue; // Duplicate or damaged
+                    }
+                    if (!slotted || index != guess) {
+                        landing.flip();
+                        segments.chunk(index).put(landing);
+                    }
+                    markReceived(index);
+                    if (++sinceSack >= SACK_EVERY) {
+                        sendSack(channel, sack);
+                        lastSack = System.currentTimeMillis();
+                        sinceSack = 0;
+                    }
+                }
+
+                if (sinceSack > 0 && System.currentTimeMillis() - lastSack >= SACK_INTERVAL_MS) {
+                    sendSack(channel, sack);
+                    lastSack = System.currentTimeMillis();
+                    sinceSack = 0;
+                }
+            }
+
+            // The final acknowledgement is repeated in case one is lost
+            try {
+                for (int i = 0; i < 3; i++) {
+                    sendSack(channel, sack);
+                }
+            } catch (PortUnreachableException e) {
+                // The sender saw an earlier one and has already gone
+            }
+            segments.force();
+            return rangeEnd - offset;
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    private void sendRequest(DatagramChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 8 + 8 + 4 + 4 + Packet.utf8Length(fileName));
+        buf.put(Packet.WIRE_VERSION).put(Packet.KIND_FILE_REQUEST).putInt(transferId).putLong(offset)
+                .putLong(length).putInt(chunkSize);
+        Packet.putString(buf, fileName);
+        buf.flip();
+        channel.send(buf, source);
+    }
+
+    /**
+     * Handles the first frame from the sender: sizes and maps the
+     * destination, then stores the chunk it carries.
+     *
+     * @return true if the frame was a chunk of this transfer
+     * @throws FileNotFoundException if the frame is the sender's refusal
+     */
+    private boolean readFirst(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < 2 + 4 || frame.get() != Packet.WIRE_VERSION) {
+            return false;
+        }
+        byte kind = frame.get();
+        if (frame.getInt() != transferId) {
+            return false;
+        }
+        if (kind == Packet.KIND_FILE_ERROR) {
+            throw new FileNotFoundException(Packet.getUtf8(frame, frame.getInt()));
+        }
+        if (kind != Packet.KIND_CHUNK || frame.remaining() < 8 + 4) {
+            return false;
+        }
+
+        long fileSize = frame.getLong();
+        int index = frame.getInt();
+        rangeEnd = (length < 0) ? fileSize : Math.min(fileSize, offset + length);
+        total = FileTransferService.chunkCount(rangeEnd - offset, chunkSize);
+
+        file = new RandomAccessFile(destination.toFile(), "rw");
+        if (wholeFile || file.length() < rangeEnd) {
+            file.setLength(wholeFile ? fileSize : rangeEnd);
+        }
+        segments = new FileTransferService.Segments(file.getChannel(), FileChannel.MapMode.READ_WRITE, offset,
+                rangeEnd, chunkSize);
+
+        if (index >= 0 && index < total && frame.remaining() == segments.length(index)) {
+            segments.chunk(index).put(frame);
+            markReceived(index);
+        }
+        return true;
+    }
+
+    private void markReceived(int index) {
+        received.set(index);
+        highest = Math.max(highest, index);
+        while (missing < total && received.get(missing)) {
+            missing++;
+        }
+    }
+
+    /**
+     * Reports the first missing chunk and which of the 64 after it have arrived.
+     */
+    private void sendSack(DatagramChannel channel, ByteBuffer sack) throws IOException {
+        long bitmap = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (received.get(missing + 1 + bit)) {
+                bitmap |= 1L << bit;
+            }
+        }
+        sack.clear();
+        sack.put(Packet.WIRE_VERSION).put(Packet.KIND_SACK).putInt(transferId).putInt(missing).putLong(bitmap);
+        sack.flip();
+        channel.write(sack);
+    }
+}
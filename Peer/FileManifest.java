@@ -0,0 +1,263 @@
+/**
+ * FileManifest describes the content of one shared file: its size and
+ * modification time, plus a weak rolling checksum and a strong hash for
+ * every fixed-size block of it.
+ *
+ * <p>The content hash is the SHA-256 of the file size and every block's
+ * strong hash, so two files have the same content hash exactly when they
+ * hold the same bytes, whatever their names, and it can be compared
+ * without fetching either file. The block checksums let a node that has
+ * an older copy find which blocks it already holds (see
+ * {@link DeltaSync}). On the wire a manifest looks like:</p>
+ * <pre>
+ * [name length:4][name][size:8][modified:8][block size:4][content hash:32][count:4]
+ * count x [weak checksum:4][strong hash:16]
+ * </pre>
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+public class FileManifest {
+    public static final int BLOCK_SIZE = Integer.getInteger("sync.blockSize", 64 << 10); // Default bytes per block
+    static final int MIN_BLOCK_SIZE = 4 << 10; // Smallest block size manifests are served for
+    static final int MAX_BLOCK_SIZE = 16 << 20; // Largest, as computing one buffers a block on the heap
+    static final int STRONG_BYTES = 16; // Leading bytes of each block's SHA-256 kept
+
+    private final String name; // File name as advertised
+    private final long size; // File length in bytes
+    private final long modified; // Modification time in milliseconds
+    private final int blockSize; // Bytes per block; the last block may be shorter
+    private final byte[] contentHash; // SHA-256 over the size and block hashes
+    private final int[] weak; // Rolling checksum of each block
+    private final byte[] strong; // STRONG_BYTES per block, in order
+
+    private FileManifest(String name, long size, long modified, int blockSize, byte[] contentHash, int[] weak,
+            byte[] strong) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.blockSize = blockSize;
+        this.contentHash = contentHash;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Computes the manifest of a file.
+     *
+     * @param file      the file to describe
+     * @param name      the name the file is advertised under
+     * @param blockSize the number of bytes per block
+     * @return the manifest
+     * @throws IOException if the file cannot be read
+     */
+    public static FileManifest compute(Path file, String name, int blockSize) throws IOException {
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long blocks = (size + blockSize - 1) / blockSize;
+            if (blocks > Integer.MAX_VALUE / STRONG_BYTES) {
+                throw new IOException(name + " has too many blocks of " + blockSize + " bytes");
+            }
+
+            int[] weak = new int[(int) blocks];
+            byte[] strong = new byte[(int) blocks * STRONG_BYTES];
+            ByteBuffer buf = ByteBuffer.allocate(blockSize);
+            MessageDigest digest = FileTransferService.sha256();
+            for (int i = 0; i < blocks; i++) {
+                buf.clear();
+                long position = (long) i * blockSize;
+                while (buf.hasRemaining() && position + buf.position() < size) {
+                    if (channel.read(buf, position + buf.position()) < 0) {
+                        break;
+                    }
+                }
+                int length = buf.position();
+                weak[i] = RollingChecksum.of(buf.array(), 0, length);
+                digest.update(buf.array(), 0, length);
+                System.arraycopy(digest.digest(), 0, strong, i * STRONG_BYTES, STRONG_BYTES);
+            }
+            return new FileManifest(name, size, modified, blockSize, contentHash(size, strong), weak, strong);
+        }
+    }
+
+    /**
+     * Gets the strong hash of a block of bytes, as kept in a manifest.
+     *
+     * @param digest a SHA-256 digest to reuse
+     * @param bytes  the bytes
+     * @param offset where the block starts
+     * @param length the block length
+     * @return the leading STRONG_BYTES of the block's SHA-256
+     */
+    static byte[] strongHash(MessageDigest digest, byte[] bytes, int offset, int length) {
+        digest.update(bytes, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_BYTES);
+    }
+
+    private static byte[] contentHash(long size, byte[] strong) {
+        MessageDigest digest = FileTransferService.sha256();
+        digest.update(ByteBuffer.allocate(8).putLong(0, size).array());
+        digest.update(strong);
+        return digest.digest();
+    }
+
+    /**
+     * Gets the encoded length of the manifest.
+     *
+     * @return the number of bytes {@link #encode} writes
+     */
+    public int encodedLength() {
+        return 4 + Packet.utf8Length(name) + 8 + 8 + 4 + 32 + 4 + weak.length * (4 + STRONG_BYTES);
+    }
+
+    /**
+     * Writes the manifest into a buffer.
+     *
+     * @param buf the buffer, with at least {@link #encodedLength} bytes left
+     */
+    public void encode(ByteBuffer buf) {
+        Packet.putString(buf, name);
+        buf.putLong(size).putLong(modified).putInt(blockSize).put(contentHash).putInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            buf.putInt(weak[i]).put(strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+    }
+
+    /**
+     * Reads a manifest written by {@link #encode}.
+     *
+     * @param buf the buffer positioned at the manifest
+     * @return the manifest
+     * @throws IOException if the manifest is malformed or its content hash does not match
+     */
+    public static FileManifest decode(ByteBuffer buf) throws IOException {
+        String name = Packet.getUtf8(buf, buf.getInt());
+        long size = buf.getLong();
+        long modified = buf.getLong();
+        int blockSize = buf.getInt();
+        byte[] contentHash = new byte[32];
+        buf.get(contentHash);
+        int count = buf.getInt();
+        if (blockSize <= 0 || size < 0 || count != (size + blockSize - 1) / blockSize
+                || count > buf.remaining() / (4 + STRONG_BYTES)) {
+            throw new IOException("Malformed manifest for " + name);
+        }
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_BYTES];
+        for (int i = 0; i < count; i++) {
+            weak[i] = buf.getInt();
+            buf.get(strong, i * STRONG_BYTES, STRONG_BYTES);
+        }
+        if (!MessageDigest.isEqual(contentHash, contentHash(size, strong))) {
+            throw new IOException("Manifest for " + name + " does not match its content hash");
+        }
+        return new FileManifest(name, size, modified, blockSize, contentHash, weak, strong);
+    }
+
+    /**
+     * Checks whether two manifests describe the same bytes.
+     *
+     * @param other the manifest to compare with
+     * @return true if the content is identical
+     */
+    public boolean sameContent(FileManifest other) {
+        return size == other.size && blockSize == other.blockSize && MessageDigest.isEqual(contentHash, other.contentHash);
+    }
+
+    /**
+     * Gets the name the file is advertised under.
+     *
+     * @return the file name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the file length.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the file's modification time.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * Gets the number of bytes per block.
+     *
+     * @return the block size
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return the block count
+     */
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * Gets the length of a block; only the last one can be short.
+     *
+     * @param index the block
+     * @return its length in bytes
+     */
+    public int getBlockLength(int index) {
+        return (int) Math.min(blockSize, size - (long) index * blockSize);
+    }
+
+    /**
+     * Gets the rolling checksum of a block.
+     *
+     * @param index the block
+     * @return its weak checksum
+     */
+    public int getWeak(int index) {
+        return weak[index];
+    }
+
+    /**
+     * Checks a strong hash against the one recorded for a block.
+     *
+     * @param index the block
+     * @param hash  the STRONG_BYTES hash to compare
+     * @return true if they match
+     */
+    public boolean strongMatches(int index, byte[] hash) {
+        return Arrays.equals(strong, index * STRONG_BYTES, (index + 1) * STRONG_BYTES, hash, 0, STRONG_BYTES);
+    }
+
+    /**
+     * Gets the content hash as hex, for display.
+     *
+     * @return the hash in lower-case hex
+     */
+    public String getContentHashHex() {
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : contentHash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
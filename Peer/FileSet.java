@@ -0,0 +1,210 @@
+/**
+ * FileSet is an immutable set of file names stored as the sorted IDs the
+ * names have in {@link FileNames}, read as a list of the interned names.
+ *
+ * <p>A node's files cost four bytes each instead of a String each, and
+ * copies of a node's entry share one array. Because the IDs are sorted,
+ * comparing two sets, or working out what one lacks of the other, is a
+ * single merge over two int arrays with no hashing.</p>
+ *
+ * <p>The names are listed in ID order, not in the order they were given,
+ * and each name at most once. A set holds a reference to each of its IDs
+ * until it is garbage collected.</p>
+ *
+ * <p>Each set also keeps a 64-bit hash of its names that ignores their
+ * order, so a list received in any order can be recognised as unchanged
+ * straight from the datagram's bytes, as the server's
+ * {@code PacketView.payloadMatches} does.</p>
+ */
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class FileSet extends AbstractList<String> {
+    public static final FileSet EMPTY = new FileSet(new int[0]); // Holds no IDs, so needs no cleaning
+
+    private static final Cleaner CLEANER = Cleaner.create(); // Releases the IDs of collected sets
+    static final long FNV_OFFSET = 0xCBF29CE484222325L; // FNV-1a starting value for one name
+    static final long FNV_PRIME = 0x100000001B3L; // FNV-1a multiplier
+
+    private final int[] ids; // Sorted, distinct name IDs
+    private final long setHash; // Sum of the mixed hashes of the names, see setHash
+
+    /**
+     * Wraps IDs this set now owns a reference to each of.
+     */
+    private FileSet(int[] ids) {
+        this.ids = ids;
+        long sum = 0;
+        for (int id : ids) {
+            String name = FileNames.name(id);
+            long hash = FNV_OFFSET;
+            for (int i = 0; i < name.length(); i++) {
+                hash = (hash ^ name.charAt(i)) * FNV_PRIME;
+            }
+            sum += mix(hash);
+        }
+        this.setHash = sum;
+        if (ids.length > 0) {
+            CLEANER.register(this, () -> FileNames.release(ids));
+        }
+    }
+
+    /**
+     * Gets the set of some file names, interning any new ones.
+     *
+     * @param names the names, in any order and possibly repeated
+     * @return the set, or the same instance if it already is one
+     */
+    public static FileSet of(Collection<String> names) {
+        if (names instanceof FileSet) {
+            return (FileSet) names;
+        }
+        if (names.isEmpty()) {
+            return EMPTY;
+        }
+        int[] interned = new int[names.size()];
+        int n = 0;
+        for (String name : names) {
+            interned[n++] = FileNames.intern(name);
+        }
+        Arrays.sort(interned);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || interned[distinct - 1] != interned[i]) {
+                interned[distinct++] = interned[i];
+            } else {
+                FileNames.release(new int[] { interned[i] }); // Each set counts once per name
+            }
+        }
+        return new FileSet((distinct == n) ? interned : Arrays.copyOf(interned, distinct));
+    }
+
+    @Override
+    public String get(int index) {
+        return FileNames.name(ids[index]);
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        int id = FileNames.find((String) o);
+        return id >= 0 && Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * Gets the names in this set that are not in another.
+     *
+     * @param other the names to leave out
+     * @return the difference
+     */
+    public FileSet minus(FileSet other) {
+        int[] kept = new int[ids.length];
+        int n = 0;
+        int j = 0;
+        for (int id : ids) {
+            while (j < other.ids.length && other.ids[j] < id) {
+                j++;
+            }
+            if (j == other.ids.length || other.ids[j] != id) {
+                kept[n++] = id;
+            }
+        }
+        if (n == ids.length) {
+            return this; // Nothing left out
+        }
+        return share(Arrays.copyOf(kept, n));
+    }
+
+    /**
+     * Gets the names in this set or another.
+     *
+     * @param other the names to add
+     * @return the union
+     */
+    public FileSet union(FileSet other) {
+        int[] merged = new int[ids.length + other.ids.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < ids.length || j < other.ids.length) {
+            if (j == other.ids.length || (i < ids.length && ids[i] < other.ids[j])) {
+                merged[n++] = ids[i++];
+            } else if (i == ids.length || other.ids[j] < ids[i]) {
+                merged[n++] = other.ids[j++];
+            } else {
+                merged[n++] = ids[i++];
+                j++;
+            }
+        }
+        if (n == ids.length) {
+            return this; // Nothing added
+        }
+        if (n == other.ids.length) {
+            return other;
+        }
+        FileSet union = share(Arrays.copyOf(merged, n));
+        Reference.reachabilityFence(other); // Keeps other's IDs held until the union holds them too
+        return union;
+    }
+
+    /**
+     * Wraps IDs taken from this set, adding the references the new set
+     * holds before this one can be collected.
+     */
+    private FileSet share(int[] held) {
+        if (held.length == 0) {
+            return EMPTY;
+        }
+        FileNames.retain(held);
+        Reference.reachabilityFence(this);
+        return new FileSet(held);
+    }
+
+    /**
+     * Gets a hash of the names that does not depend on their order: the sum
+     * of each name's FNV-1a hash, taken over its chars and scrambled. For
+     * ASCII names the chars are the bytes they are sent as.
+     *
+     * @return the set hash
+     */
+    public long setHash() {
+        return setHash;
+    }
+
+    /**
+     * Scrambles one name's FNV-1a hash over all 64 bits (the SplitMix64
+     * finalizer), so that summing the names does not cancel out patterns.
+     *
+     * @param hash the name's FNV-1a hash
+     * @return the value added to the set hash
+     */
+    static long mix(long hash) {
+        long z = hash + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof FileSet) {
+            return Arrays.equals(ids, ((FileSet) o).ids);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+}
@@ -0,0 +1,671 @@
+/**
+ * FileTransferService serves the files in a node's shared directory to
+ * other nodes, in fixed-size chunks over UDP.
+ *
+ * <p>Each node listens for transfer requests on its configured port plus
+ * {@link #PORT_OFFSET}, away from the heartbeat traffic. A request names a
+ * file and a byte range. The service answers it from a fresh channel
+ * connected to the requester, so every transfer has its own socket pair
+ * and never shares a receive queue with another one. Chunks are read
+ * straight out of a memory-mapped region of the file: each datagram is a
+ * gathering write of a small header buffer and a slice of the mapping, so
+ * the file bytes are never copied onto the heap.</p>
+ *
+ * <p>The sender keeps up to {@link #WINDOW} chunks in flight. The receiver
+ * reports the first chunk it is missing plus a bitmap of the 64 chunks
+ * after it (see {@link FileDownload}); chunks behind a reported hole are
+ * resent quickly, and any chunk unacknowledged for {@link #RTO_MS} is
+ * resent regardless. Until the first acknowledgement arrives the sender
+ * keeps only {@link #INITIAL_WINDOW} chunks in flight and sends at most
+ * {@link #UNACKED_SENDS} datagrams, so a request with a forged source
+ * address cannot turn one small datagram into a flood at someone else.
+ * Frames look like:</p>
+ * <pre>
+ * request: [wire version][KIND_FILE_REQUEST][transfer id:4][offset:8][length:8][chunk size:4][name length:4][name]
+ * chunk:   [wire version][KIND_CHUNK][transfer id:4][file size:8][index:4][bytes...]
+ * sack:    [wire version][KIND_SACK][transfer id:4][next missing:4][bitmap:8]
+ * error:   [wire version][KIND_FILE_ERROR][transfer id:4][message length:4][message]
+ * </pre>
+ *
+ * <p>A node can also be asked for the SHA-256 of every fixed-size piece of
+ * a file, so a download pieced together from several nodes can be
+ * checked (see {@link SwarmDownload}). Hashes are cached until the file
+ * changes. Such answers are far larger than the requests for them, so
+ * each requesting address may only draw {@link #ANSWER_BYTES_PER_SEC} of
+ * them, and requests past that are dropped. The answer is split into fragments when it is large:</p>
+ * <pre>
+ * request: [wire version][KIND_HASH_REQUEST][request id:4][piece size:4][name length:4][name]
+ * answer:  [wire version][KIND_HASH_LIST][request id:4][file size:8][piece size:4][count:4][32-byte hashes...]
+ * </pre>
+ *
+ * <p>Likewise a node can be asked for the {@link FileManifest} of a file,
+ * which is also cached until the file changes:</p>
+ * <pre>
+ * request: [wire version][KIND_MANIFEST_REQUEST][request id:4][block size:4][name length:4][name]
+ * answer:  [wire version][KIND_MANIFEST][request id:4][manifest]
+ * </pre>
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+public class FileTransferService implements Runnable {
+    public static final int PORT_OFFSET = Integer.getInteger("transfer.portOffset", 1000); // Transfer port minus node port
+    public static final Path SHARED_DIR = Paths.get(System.getProperty("transfer.dir", "shared")); // Files served to others
+    public static final Path DOWNLOAD_DIR = Paths.get(System.getProperty("transfer.downloads", "downloads")); // Where fetched files go
+    public static final int CHUNK_HEADER = 2 + 4 + 8 + 4; // version, kind, transfer id, file size, index
+    static final int SACK_BYTES = 2 + 4 + 4 + 8; // version, kind, transfer id, next missing, bitmap
+    static final int WINDOW = Integer.getInteger("transfer.window", 512); // Chunks in flight per transfer
+    static final int INITIAL_WINDOW = Integer.getInteger("transfer.initialWindow", 4); // Chunks in flight before the first acknowledgement
+    static final int UNACKED_SENDS = 3 * INITIAL_WINDOW; // Datagrams sent in all before the first acknowledgement
+    static final long ANSWER_BYTES_PER_SEC = Long.getLong("transfer.answerBytesPerSec", 256 << 10); // Hash and manifest bytes one address may draw
+    static final long ANSWER_BURST = 4 * ANSWER_BYTES_PER_SEC; // Budget an idle address builds up to
+    static final int MIN_PIECE_SIZE = 64 << 10; // Smallest piece size hashes are served for
+    static final int MAX_PIECES = (FragmentLayer.MAX_MESSAGE - (2 + 4 + 8 + 4 + 4)) / 32; // Most hashes one answer can carry
+    private static final int MAX_BUDGETS = 1024; // Requesting addresses whose answer budget is remembered
+    static final long RTO_MS = Long.getLong("transfer.rtoMs", 200); // Resend a chunk unacknowledged this long
+    static final long IDLE_TIMEOUT_MS = 5000; // Give up when the other side goes quiet this long
+    static final int SOCKET_BUFFER = 4 << 20; // Kernel buffer size asked for on transfer sockets
+    private static final long SEGMENT_BYTES = 64L << 20; // Largest region of a file mapped at once
+
+    private final Path sharedDir; // Directory whose files are served
+    private final DatagramChannel channel; // Bound to the transfer port, receives requests
+    private final ExecutorService senders = TaskExecutors.newPerTaskExecutor(); // One thread per active transfer
+    private final Set<String> active = ConcurrentHashMap.newKeySet(); // Requester and transfer ID of running sends
+    private final Map<Path, PieceHashes> hashCache = new ConcurrentHashMap<>(); // Piece hashes of served files
+    private final Map<Path, FileManifest> manifestCache = new ConcurrentHashMap<>(); // Manifests of served files
+    private final Map<InetAddress, long[]> answerBudgets = new LinkedHashMap<InetAddress, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, long[]> eldest) {
+            return size() > MAX_BUDGETS;
+        }
+    }; // Bytes left and time last refilled per requesting address, guarded by itself
+
+    /**
+     * Piece hashes of one version of a file.
+     */
+    private static class PieceHashes {
+        final long size; // File size the hashes were computed for
+        final long modified; // Modification time the hashes were computed for
+        final int pieceSize; // Bytes per piece
+        final byte[] hashes; // 32 bytes per piece, in order
+
+        PieceHashes(long size, long modified, int pieceSize, byte[] hashes) {
+            this.size = size;
+            this.modified = modified;
+            this.pieceSize = pieceSize;
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * Constructs a service serving a directory on a port.
+     *
+     * @param sharedDir the directory whose files are served
+     * @param port      the transfer port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public FileTransferService(Path sharedDir, int port) throws IOException {
+        this.sharedDir = sharedDir.toAbsolutePath().normalize();
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Gets the transfer port of a node.
+     *
+     * @param node the node's registry entry
+     * @return the address to send transfer requests to
+     */
+    public static InetSocketAddress transferAddress(ConfigLoader.NodeInfo node) {
+        return new InetSocketAddress(node.ip, node.port + PORT_OFFSET);
+    }
+
+    /**
+     * Receives transfer requests until the channel is closed, serving each
+     * one on its own thread.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocate(FragmentLayer.MAX_DATAGRAM);
+        while (channel.isOpen()) {
+            try {
+                buf.clear();
+                SocketAddress requester = channel.receive(buf);
+                buf.flip();
+                if (buf.remaining() < 2 || buf.get() != Packet.WIRE_VERSION) {
+                    continue;
+                }
+                byte kind = buf.get();
+                if (kind == Packet.KIND_HASH_REQUEST) {
+                    int requestId = buf.getInt();
+                    int pieceSize = buf.getInt();
+                    String name = Packet.getUtf8(buf, buf.getInt());
+                    senders.execute(() -> serveHashes(requester, requestId, name, pieceSize));
+                    continue;
+                }
+                if (kind == Packet.KIND_MANIFEST_REQUEST) {
+                    int requestId = buf.getInt();
+                    int blockSize = buf.getInt();
+                    String name = Packet.getUtf8(buf, buf.getInt());
+                    senders.execute(() -> serveManifest(requester, requestId, name, blockSize));
+                    continue;
+                }
+                if (kind != Packet.KIND_FILE_REQUEST) {
+                    continue;
+                }
+                int transferId = buf.getInt();
+                long offset = buf.getLong();
+                long length = buf.getLong();
+                int chunkSize = buf.getInt();
+                String name = Packet.getUtf8(buf, buf.getInt());
+
+                // A retried request for a transfer already running is dropped
+                String key = requester + "/" + transferId;
+                if (active.add(key)) {
+                    senders.execute(() -> {
+                        try {
+                            serve(requester, transferId, name, offset, length, chunkSize);
+                        } finally {
+                            active.remove(key);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    System.err.println("Bad transfer request: " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Bad transfer request: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting requests. Transfers already running finish.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        senders.shutdown();
+    }
+
+    /**
+     * Sends one requested range to a requester, or an error frame if the
+     * request cannot be served.
+     */
+    private void serve(SocketAddress requester, int transferId, String name, long offset, long length,
+            int chunkSize) {
+        try (DatagramChannel out = DatagramChannel.open()) {
+            out.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            out.connect(requester);
+
+            Path file = resolve(name);
+            if (file == null || chunkSize <= 0 || chunkSize > Packet.MAX_DATAGRAM - CHUNK_HEADER) {
+                sendError(out, transferId, "No such file: " + name);
+                return;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+                long fileSize = raf.length();
+                if (offset < 0 || offset > fileSize) {
+                    sendError(out, transferId, "Offset " + offset + " is past the end of " + name);
+                    return;
+                }
+                long end = (length < 0) ? fileSize : Math.min(fileSize, offset + length);
+                new SendSession(out, raf.getChannel(), transferId, fileSize, offset, end, chunkSize).run();
+            }
+        } catch (PortUnreachableException e) {
+            // The receiver finished and closed its socket before our last resend
+        } catch (IOException e) {
+            System.err.println("Transfer of " + name + " to " + requester + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the piece hashes of a file to a requester, or an error frame if
+     * the file is not served. Pieces smaller than MIN_PIECE_SIZE, or so
+     * small that the file has more than MAX_PIECES, are refused, since the
+     * requester picks the size and each piece costs a hash.
+     */
+    private void serveHashes(SocketAddress requester, int requestId, String name, int pieceSize) {
+        try (DatagramChannel out = DatagramChannel.open()) {
+            out.connect(requester);
+            Path file = resolve(name);
+            if (file == null) {
+                sendError(out, requestId, "No such file: " + name);
+                return;
+            }
+            if (pieceSize < MIN_PIECE_SIZE || (Files.size(file) + pieceSize - 1) / pieceSize > MAX_PIECES) {
+                sendError(out, requestId, "Piece size " + pieceSize + " is not served for " + name);
+                return;
+            }
+            PieceHashes hashes = pieceHashes(file, pieceSize);
+            ByteBuffer frame = ByteBuffer.allocate(2 + 4 + 8 + 4 + 4 + hashes.hashes.length);
+            if (!drawAnswerBudget(requester, frame.capacity())) {
+                return;
+            }
+            frame.put(Packet.WIRE_VERSION).put(Packet.KIND_HASH_LIST).putInt(requestId).putLong(hashes.size)
+                    .putInt(pieceSize).putInt(hashes.hashes.length / 32).put(hashes.hashes);
+            for (ByteBuffer datagram : FragmentLayer.split(frame.array())) {
+                out.write(datagram);
+            }
+        } catch (IOException e) {
+            System.err.println("Hashing " + name + " for " + requester + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the manifest of a file to a requester, or an error frame if the
+     * file is not served. Block sizes outside FileManifest.MIN_BLOCK_SIZE and
+     * MAX_BLOCK_SIZE are refused, and so are blocks so small that the
+     * manifest would not fit in one reassembled answer.
+     */
+    private void serveManifest(SocketAddress requester, int requestId, String name, int blockSize) {
+        try (DatagramChannel out = DatagramChannel.open()) {
+            out.connect(requester);
+            Path file = resolve(name);
+            if (file == null) {
+                sendError(out, requestId, "No such file: " + name);
+                return;
+            }
+            if (blockSize < FileManifest.MIN_BLOCK_SIZE || blockSize > FileManifest.MAX_BLOCK_SIZE
+                    || (Files.size(file) + blockSize - 1) / blockSize * (4 + FileManifest.STRONG_BYTES)
+                            > FragmentLayer.MAX_MESSAGE - 2 - 4 - 4 - Packet.utf8Length(name) - 8 - 8 - 4 - 32 - 4) {
+                sendError(out, requestId, "Block size " + blockSize + " is not served for " + name);
+                return;
+            }
+            FileManifest manifest = manifestCache.get(file);
+            if (manifest == null || manifest.getBlockSize() != blockSize || manifest.getSize() != Files.size(file)
+                    || manifest.getModified() != Files.getLastModifiedTime(file).toMillis()) {
+                manifest = FileManifest.compute(file, name, blockSize);
+                manifestCache.put(file, manifest);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(2 + 4 + manifest.encodedLength());
+            if (!drawAnswerBudget(requester, frame.capacity())) {
+                return;
+            }
+            frame.put(Packet.WIRE_VERSION).put(Packet.KIND_MANIFEST).putInt(requestId);
+            manifest.encode(frame);
+            for (ByteBuffer datagram : FragmentLayer.split(frame.array())) {
+                out.write(datagram);
+            }
+        } catch (IOException e) {
+            System.err.println("Manifest of " + name + " for " + requester + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes the size of an answer from its requester's budget, which refills
+     * at ANSWER_BYTES_PER_SEC up to ANSWER_BURST. An answer larger than the
+     * burst is allowed once the budget is full, leaving it in debt.
+     *
+     * @param requester the address the answer would go to
+     * @param bytes     the size of the answer
+     * @return false if the address has drawn too much lately
+     */
+    private boolean drawAnswerBudget(SocketAddress requester, int bytes) {
+        InetAddress address = ((InetSocketAddress) requester).getAddress();
+        long now = System.nanoTime();
+        synchronized (answerBudgets) {
+            long[] budget = answerBudgets.computeIfAbsent(address, a -> new long[] { ANSWER_BURST, now });
+            long elapsed = Math.min(now - budget[1], ANSWER_BURST * 1_000_000_000L / ANSWER_BYTES_PER_SEC);
+            budget[0] = Math.min(ANSWER_BURST, budget[0] + elapsed * ANSWER_BYTES_PER_SEC / 1_000_000_000L);
+            budget[1] = now;
+            if (budget[0] < Math.min(bytes, ANSWER_BURST)) {
+                return false;
+            }
+            budget[0] -= bytes;
+            return true;
+        }
+    }
+
+    /**
+     * Sends a request to a node's transfer port and waits for the answer
+     * carrying the same request ID, reassembling it if it was split.
+     *
+     * @param address   the node's transfer port
+     * @param request   the encoded request
+     * @param requestId the ID the answer will carry
+     * @param kind      the frame kind of the answer
+     * @param timeoutMs how long to wait
+     * @return the answer, positioned just after its request ID
+     * @throws FileNotFoundException if the node refused the request
+     * @throws IOException           if no answer came in time
+     */
+    static ByteBuffer request(InetSocketAddress address, ByteBuffer request, int requestId, byte kind,
+            long timeoutMs) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.bind(null);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channel.send(request, address);
+
+            FragmentLayer fragments = new FragmentLayer();
+            ByteBuffer buf = ByteBuffer.allocate(FragmentLayer.MAX_DATAGRAM);
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (System.currentTimeMillis() < deadline) {
+                selector.select(Math.max(1, deadline - System.currentTimeMillis()));
+                selector.selectedKeys().clear();
+                buf.clear();
+                SocketAddress sender;
+                while ((sender = channel.receive(buf)) != null) {
+                    buf.flip();
+                    ByteBuffer frame = FragmentLayer.isFragment(buf) ? fragments.accept(buf, sender) : buf;
+                    if (frame != null && frame.remaining() >= 2 + 4 && frame.get() == Packet.WIRE_VERSION) {
+                        byte answerKind = frame.get();
+                        if (frame.getInt() == requestId) {
+                            if (answerKind == Packet.KIND_FILE_ERROR) {
+                                throw new FileNotFoundException(Packet.getUtf8(frame, frame.getInt()));
+                            }
+                            if (answerKind == kind) {
+                                return frame;
+                            }
+                        }
+                    }
+                    buf.clear();
+                }
+            }
+            throw new IOException("No answer from " + address);
+        }
+    }
+
+    /**
+     * Gets the piece hashes of a file, computing them only if the file
+     * changed since they were last computed.
+     */
+    private PieceHashes pieceHashes(Path file, int pieceSize) throws IOException {
+        long size = Files.size(file);
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        PieceHashes cached = hashCache.get(file);
+        if (cached != null && cached.size == size && cached.modified == modified && cached.pieceSize == pieceSize) {
+            return cached;
+        }
+
+        int pieces = chunkCount(size, pieceSize);
+        byte[] hashes = new byte[pieces * 32];
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            Segments segments = new Segments(raf.getChannel(), FileChannel.MapMode.READ_ONLY, 0, size, pieceSize);
+            MessageDigest digest = sha256();
+            for (int i = 0; i < pieces; i++) {
+                digest.update(segments.chunk(i));
+                System.arraycopy(digest.digest(), 0, hashes, i * 32, 32);
+            }
+        }
+        PieceHashes computed = new PieceHashes(size, modified, pieceSize, hashes);
+        hashCache.put(file, computed);
+        return computed;
+    }
+
+    /**
+     * Gets a SHA-256 digest, which every Java runtime provides.
+     */
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Resolves a requested name inside the shared directory.
+     *
+     * @return the file, or null if it does not exist or lies outside the directory
+     */
+    private Path resolve(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        Path file = sharedDir.resolve(name).normalize();
+        return (file.startsWith(sharedDir) && Files.isRegularFile(file)) ? file : null;
+    }
+
+    private static void sendError(DatagramChannel out, int transferId, String message) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 4 + Packet.utf8Length(message));
+        buf.put(Packet.WIRE_VERSION).put(Packet.KIND_FILE_ERROR).putInt(transferId);
+        Packet.putString(buf, message);
+        buf.flip();
+        out.write(buf);
+    }
+
+    /**
+     * Gets the number of chunks a range is cut into. An empty range still
+     * takes one empty chunk, so the receiver learns the file size.
+     */
+    static int chunkCount(long rangeLength, int chunkSize) {
+        long count = (rangeLength + chunkSize - 1) / chunkSize;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Range too large for chunk size " + chunkSize);
+        }
+        return (int) Math.max(1, count);
+    }
+
+    /**
+     * Maps a byte range of a file a segment at a time, so a large file is
+     * never mapped whole. Segments hold a whole number of chunks, so a chunk
+     * never straddles two of them.
+     */
+    static class Segments {
+        private final FileChannel file; // File the range belongs to
+        private final FileChannel.MapMode mode; // Read-only for senders, read-write for receivers
+        private final long start; // File offset of chunk 0
+        private final long end; // File offset just past the range
+        private final int chunkSize; // Bytes per chunk
+        private final int chunksPerSegment; // Chunks in each mapped segment
+        private final Map<Integer, MappedByteBuffer> mapped = new LinkedHashMap<Integer, MappedByteBuffer>(4, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+                return size() > 4; // The window spans at most two segments
+            }
+        }; // Recently used segments by number
+
+        Segments(FileChannel file, FileChannel.MapMode mode, long start, long end, int chunkSize) {
+            this.file = file;
+            this.mode = mode;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+            this.chunksPerSegment = (int) Math.max(1, SEGMENT_BYTES / chunkSize);
+        }
+
+        /**
+         * Gets the length of a chunk; only the last one can be short.
+         */
+        int length(int index) {
+            return (int) Math.max(0, Math.min(chunkSize, end - start - (long) index * chunkSize));
+        }
+
+        /**
+         * Gets a buffer over a chunk's bytes in the mapping, positioned at 0.
+         */
+        ByteBuffer chunk(int index) throws IOException {
+            int segment = index / chunksPerSegment;
+            MappedByteBuffer map = mapped.get(segment);
+            if (map == null) {
+                long segmentStart = start + (long) segment * chunksPerSegment * chunkSize;
+                long segmentLength = Math.min((long) chunksPerSegment * chunkSize, end - segmentStart);
+                map = file.map(mode, segmentStart, segmentLength);
+                mapped.put(segment, map);
+            }
+            return map.slice((index % chunksPerSegment) * chunkSize, length(index));
+        }
+
+        /**
+         * Flushes written chunks to the file.
+         */
+        void force() {
+            for (MappedByteBuffer map : mapped.values()) {
+                map.force();
+            }
+        }
+    }
+
+    /**
+     * Sends one range over a connected channel with a sliding window.
+     */
+    private static class SendSession {
+        private final DatagramChannel out; // Connected to the receiver
+        private final Segments segments; // Mapped chunks of the range
+        private final int total; // Chunks in the range
+        private final ByteBuffer header = ByteBuffer.allocateDirect(CHUNK_HEADER); // Reused chunk header
+        private final ByteBuffer[] datagram = new ByteBuffer[2]; // Header and chunk, written together
+        private final ByteBuffer sack = ByteBuffer.allocate(SACK_BYTES); // Incoming acknowledgements
+        private final long[] sentAt = new long[WINDOW]; // Last send time of each chunk in the window
+        private final boolean[] acked = new boolean[WINDOW]; // Chunks in the window the receiver has
+        private final int transferId; // Receiver's ID for the transfer
+        private final long fileSize; // Size of the whole file, sent with every chunk
+        private int base; // First chunk not yet acknowledged
+        private int next; // First chunk never sent
+        private int highestAcked = -1; // Highest chunk the receiver reported having
+        private boolean confirmed; // Whether the receiver has acknowledged, proving it asked for the range
+        private int unackedSends; // Datagrams sent before it did
+
+        SendSession(DatagramChannel out, FileChannel file, int transferId, long fileSize, long start, long end,
+                int chunkSize) {
+            this.out = out;
+            this.segments = new Segments(file, FileChannel.MapMode.READ_ONLY, start, end, chunkSize);
+            this.total = chunkCount(end - start, chunkSize);
+            this.transferId = transferId;
+            this.fileSize = fileSize;
+            datagram[0] = header;
+        }
+
+        void run() throws IOException {
+            out.configureBlocking(false);
+            try (Selector selector = Selector.open()) {
+                SelectionKey key = out.register(selector, SelectionKey.OP_READ);
+                long lastHeard = System.currentTimeMillis();
+                while (base < total) {
+                    long now = System.currentTimeMillis();
+                    boolean blocked = !resend(now) || !sendNew(now);
+                    key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+
+                    selector.select(Math.max(1, RTO_MS / 4));
+                    selector.selectedKeys().clear();
+                    if (readAcks()) {
+                        lastHeard = System.currentTimeMillis();
+                    } else if (System.currentTimeMillis() - lastHeard > IDLE_TIMEOUT_MS) {
+                        throw new IOException("Receiver stopped acknowledging at chunk " + base + " of " + total);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends new chunks while the window has room.
+         *
+         * @return false if the socket buffer filled up
+         */
+        private boolean sendNew(long now) throws IOException {
+            int window = confirmed ? WINDOW : INITIAL_WINDOW;
+            while (next < total && next < base + window && mayUnackedSend()) {
+                acked[next % WINDOW] = false;
+                if (!send(next, now)) {
+                    return false;
+                }
+                next++;
+            }
+            return true;
+        }
+
+        /**
+         * Resends chunks that look lost: quickly for holes below a chunk the
+         * receiver already has, after the full timeout for the rest.
+         *
+         * @return false if the socket buffer filled up
+         */
+        private boolean resend(long now) throws IOException {
+            for (int i = base; i < next; i++) {
+                int slot = i % WINDOW;
+                long timeout = (i < highestAcked) ? RTO_MS / 4 : RTO_MS;
+                if (!acked[slot] && now - sentAt[slot] >= timeout && mayUnackedSend() && !send(i, now)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean send(int index, long now) throws IOException {
+            header.clear();
+            header.put(Packet.WIRE_VERSION).put(Packet.KIND_CHUNK).putInt(transferId).putLong(fileSize)
+                    .putInt(index);
+            header.flip();
+            datagram[1] = segments.chunk(index);
+            if (out.write(datagram) == 0) {
+                return false;
+            }
+            sentAt[index % WINDOW] = now;
+            if (!confirmed) {
+                unackedSends++;
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether another datagram may be sent, which is only limited
+         * while the receiver has not acknowledged anything.
+         */
+        private boolean mayUnackedSend() {
+            return confirmed || unackedSends < UNACKED_SENDS;
+        }
+
+        /**
+         * Applies every acknowledgement waiting on the socket.
+         *
+         * @return true if any arrived
+         */
+        private boolean readAcks() throws IOException {
+            boolean heard = false;
+            while (true) {
+                sack.clear();
+                if (out.read(sack) <= 0) {
+                    return heard;
+                }
+                sack.flip();
+                if (sack.remaining() < SACK_BYTES || sack.get() != Packet.WIRE_VERSION
+                        || sack.get() != Packet.KIND_SACK || sack.getInt() != transferId) {
+                    continue;
+                }
+                heard = true;
+                confirmed = true;
+                int missing = Math.min(sack.getInt(), next);
+                long bitmap = sack.getLong();
+                for (int i = base; i < missing; i++) {
+                    acked[i % WINDOW] = true;
+                }
+                base = Math.max(base, missing);
+                for (int bit = 0; bit < 64; bit++) {
+                    int index = missing + 1 + bit;
+                    if ((bitmap & (1L << bit)) != 0 && index >= base && index < next) {
+                        acked[index % WINDOW] = true;
+                        highestAcked = Math.max(highestAcked, index);
+                    }
+                }
+            }
+        }
+    }
+}
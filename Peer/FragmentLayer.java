@@ -0,0 +1,269 @@
+/**
+ * FragmentLayer splits encoded frames that do not fit in one datagram into
+ * numbered fragments and puts them back together on the receiving side.
+ *
+ * <p>Fragments are sized to stay under the path MTU (1400 bytes by default,
+ * configurable with {@code -Dudp.maxDatagram}) so large node lists never
+ * rely on IP fragmentation. Every fragment is filled to the limit except
+ * the last. Each fragment frame looks like:</p>
+ * <pre>
+ * [wire version][KIND_FRAGMENT][message id:4][index:2][count:2][bytes...]
+ * </pre>
+ *
+ * <p>Partially received messages are kept in a bounded table keyed by sender
+ * and message ID. The oldest entry is evicted when the table is full, and
+ * entries that have not completed within the timeout are dropped.</p>
+ *
+ * <p>No message may exceed {@code -Dudp.maxMessage} bytes (32 MB by
+ * default), so a fragment claiming more pieces than such a message needs
+ * at this node's fragment size is refused before anything is allocated for
+ * it. Nodes are expected to share {@code udp.maxDatagram}.</p>
+ */
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FragmentLayer {
+    public static final int MAX_DATAGRAM = Integer.getInteger("udp.maxDatagram", 1400); // Largest datagram we send
+    private static final int HEADER_BYTES = 2 + 4 + 2 + 2; // version, kind, message id, index, count
+    static final int MAX_MESSAGE = Integer.getInteger("udp.maxMessage", 32 << 20); // Largest frame reassembled
+    private static final int MAX_FRAGMENTS = Math.min(0xFFFF, // Count is carried in two bytes
+            (MAX_MESSAGE + MAX_DATAGRAM - HEADER_BYTES - 1) / (MAX_DATAGRAM - HEADER_BYTES));
+    private static final int REFERENCE_BYTES = 8; // Charged per slot of a message's piece table
+    private static final AtomicInteger nextMessageId = new AtomicInteger(new SecureRandom().nextInt());
+
+    private final Map<Key, Partial> partials = new LinkedHashMap<>(); // In arrival order, oldest first
+    private final int maxPartials; // Most messages reassembled at once
+    private final long maxPartialBytes; // Most bytes held by incomplete messages
+    private final long timeoutMs; // How long a message may take to complete
+    private long heldBytes; // Bytes currently held by incomplete messages
+
+    /**
+     * Identifies one message from one sender.
+     */
+    private static class Key {
+        final SocketAddress sender; // Where the fragments come from
+        final int messageId; // Sender's ID for the message
+
+        Key(SocketAddress sender, int messageId) {
+            this.sender = sender;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return messageId == other.messageId && Objects.equals(sender, other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(sender) + messageId;
+        }
+    }
+
+    /**
+     * A message that is still missing fragments.
+     */
+    private static class Partial {
+        final byte[][] pieces; // Received fragment bodies by index
+        final long createdAt; // When the first fragment arrived
+        int received; // Number of distinct fragments received
+        int bytes; // Total body bytes received
+
+        Partial(int count, long createdAt) {
+            this.pieces = new byte[count][];
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * Gets the memory held for this message, counting its piece table
+         * as well as the bodies, so many near-empty messages with large
+         * counts still reach the byte bound.
+         */
+        long held() {
+            return (long) pieces.length * REFERENCE_BYTES + bytes;
+        }
+    }
+
+    /**
+     * Constructs a reassembly table with the default bounds: 256 messages,
+     * 32 MB and a 10 second timeout.
+     */
+    public FragmentLayer() {
+        this(256, 32L * 1024 * 1024, 10_000);
+    }
+
+    /**
+     * Constructs a reassembly table.
+     *
+     * @param maxPartials     The most messages reassembled at once
+     * @param maxPartialBytes The most bytes held by incomplete messages
+     * @param timeoutMs       How long a message may take to complete
+     */
+    public FragmentLayer(int maxPartials, long maxPartialBytes, long timeoutMs) {
+        this.maxPartials = maxPartials;
+        this.maxPartialBytes = maxPartialBytes;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Splits a frame into datagrams no larger than {@link #MAX_DATAGRAM}.
+     * A frame that already fits is returned as the only datagram.
+     *
+     * @param frame The encoded frame
+     * @return The datagrams to send, in order
+     */
+    public static List<ByteBuffer> split(byte[] frame) {
+        return split(frame, MAX_DATAGRAM);
+    }
+
+    /**
+     * Splits a frame into datagrams no larger than the given size.
+     *
+     * @param frame       The encoded frame
+     * @param maxDatagram The largest datagram to produce
+     * @return The datagrams to send, in order
+     * @throws IllegalArgumentException if the frame needs too many fragments
+     */
+    public static List<ByteBuffer> split(byte[] frame, int maxDatagram) {
+        List<ByteBuffer> datagrams = new ArrayList<>();
+        if (frame.length <= maxDatagram) {
+            datagrams.add(ByteBuffer.wrap(frame));
+            return datagrams;
+        }
+
+        int chunk = maxDatagram - HEADER_BYTES;
+        int count = (frame.length + chunk - 1) / chunk;
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Frame of " + frame.length + " bytes needs too many fragments");
+        }
+        int messageId = nextMessageId.getAndIncrement();
+        for (int index = 0; index < count; index++) {
+            int offset = index * chunk;
+            int length = Math.min(chunk, frame.length - offset);
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + length);
+            buf.put(Packet.WIRE_VERSION).put(Packet.KIND_FRAGMENT)
+               .putInt(messageId).putShort((short) index).putShort((short) count)
+               .put(frame, offset, length);
+            buf.flip();
+            datagrams.add(buf);
+        }
+        return datagrams;
+    }
+
+    /**
+     * Checks whether the datagram at the buffer's position is a fragment.
+     *
+     * @param buf The received datagram
+     * @return true if it must go through {@link #accept}
+     */
+    public static boolean isFragment(ByteBuffer buf) {
+        int p = buf.position();
+        return buf.remaining() >= 2 && buf.get(p) == Packet.WIRE_VERSION && buf.get(p + 1) == Packet.KIND_FRAGMENT;
+    }
+
+    /**
+     * Adds a received fragment to its message.
+     *
+     * @param buf    The fragment, between position and limit
+     * @param sender The address it came from
+     * @return The complete frame once the last fragment arrives, otherwise null
+     */
+    public synchronized ByteBuffer accept(ByteBuffer buf, SocketAddress sender) {
+        long now = System.currentTimeMillis();
+        evictExpired(now);
+        if (buf.remaining() < HEADER_BYTES) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            return null;
+        }
+
+        buf.position(buf.position() + 2);
+        int messageId = buf.getInt();
+        int index = buf.getShort() & 0xFFFF;
+        int count = buf.getShort() & 0xFFFF;
+        if (count < 2 || count > MAX_FRAGMENTS || index >= count) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            return null;
+        }
+
+        Key key = new Key(sender, messageId);
+        Partial partial = partials.get(key);
+        if (partial == null) {
+            while (partials.size() >= maxPartials) {
+                evictOldest();
+            }
+            partial = new Partial(count, now);
+            partials.put(key, partial);
+            heldBytes += (long) count * REFERENCE_BYTES;
+        } else if (partial.pieces.length != count) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            return null; // Inconsistent with earlier fragments, ignore it
+        }
+        if (partial.pieces[index] != null) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            return null; // Duplicate
+        }
+
+        byte[] piece = new byte[buf.remaining()];
+        buf.get(piece);
+        partial.pieces[index] = piece;
+        partial.received++;
+        partial.bytes += piece.length;
+        heldBytes += piece.length;
+        while (heldBytes > maxPartialBytes && partials.size() > 1) {
+            evictOldest();
+        }
+        if (!partials.containsKey(key) || partial.received < count) {
+            return null;
+        }
+
+        partials.remove(key);
+        heldBytes -= partial.held();
+        ByteBuffer whole = ByteBuffer.allocate(partial.bytes);
+        for (byte[] p : partial.pieces) {
+            whole.put(p);
+        }
+        whole.flip();
+        return whole;
+    }
+
+    /**
+     * Drops messages that have been incomplete for longer than the timeout.
+     */
+    private void evictExpired(long now) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial partial = it.next();
+            if (now - partial.createdAt <= timeoutMs) {
+                break; // Entries are in arrival order, the rest are newer
+            }
+            heldBytes -= partial.held();
+            Metrics.DATAGRAMS_DROPPED.add(partial.received); // Fragments of a message that never completed
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops the oldest incomplete message.
+     */
+    private void evictOldest() {
+        Iterator<Partial> it = partials.values().iterator();
+        if (it.hasNext()) {
+            Partial oldest = it.next();
+            heldBytes -= oldest.held();
+            Metrics.DATAGRAMS_DROPPED.add(oldest.received);
+            it.remove();
+        }
+    }
+}
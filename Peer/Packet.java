@@ -1,17 +1,687 @@
 /**
  * Represents a network packet containing metadata and data.
  * 
+ * <p>Packets are put on the wire with a compact binary codec: a one byte
+ * wire version, a one byte message kind and then a fixed header per packet
+ * followed by a length-prefixed UTF-8 payload. Frames produced by the old
+ * Java object serialization always start with the stream magic
+ * {@code 0xACED}, so the first byte is enough to tell the two formats apart
+ * and legacy senders keep working.</p>
+ * 
  * @author Omar Fofana
  */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Packet implements Serializable {
+    private static final long serialVersionUID = -1457220759671369870L; // Matches the pre-codec class
+
+    public static final byte WIRE_VERSION = 2; // First byte of every binary frame
+    public static final byte KIND_PACKET = 0; // Frame carries a single packet
+    public static final byte KIND_LIST = 1; // Frame carries a list of packets
+    public static final byte KIND_DELTA = 2; // Frame carries node list changes between two epochs
+    public static final byte KIND_ACK = 3; // Frame acknowledges the epoch a node has applied
+    public static final byte KIND_FRAGMENT = 4; // Frame is one piece of a larger frame, see FragmentLayer
+    public static final byte KIND_PING = 5; // SWIM probe, see SwimMembership
+    public static final byte KIND_PING_REQ = 6; // SWIM request to probe another member
+    public static final byte KIND_PING_ACK = 7; // SWIM probe acknowledgement
+    public static final byte KIND_QUERY = 8; // Frame asks which online nodes hold a file
+    public static final byte KIND_QUERY_RESULT = 9; // Frame answers a file query
+    public static final byte KIND_SEARCH = 10; // Frame asks for file names matching a pattern
+    public static final byte KIND_SEARCH_RESULT = 11; // Frame carries one page of search results
+    public static final byte KIND_FILE_REQUEST = 12; // Asks a node's transfer port for a byte range, see FileTransferService
+    public static final byte KIND_CHUNK = 13; // One chunk of a file being transferred
+    public static final byte KIND_SACK = 14; // Selective acknowledgement of transferred chunks
+    public static final byte KIND_FILE_ERROR = 15; // Transfer request refused
+    public static final byte KIND_HASH_REQUEST = 16; // Asks a node's transfer port for a file's piece hashes
+    public static final byte KIND_HASH_LIST = 17; // Piece hashes of a file
+    public static final byte KIND_MANIFEST_REQUEST = 18; // Asks a node's transfer port for a file's manifest
+    public static final byte KIND_MANIFEST = 19; // Size, time and block checksums of a file, see FileManifest
+    public static final byte KIND_FILES_DELTA = 20; // Files a node added and removed since a catalog version
+    public static final byte KIND_HEARTBEAT = 21; // Node is alive, with its catalog version
+    public static final byte KIND_FILES_RESYNC = 22; // Asks a node for a full snapshot of its files
+    public static final byte KIND_RELAY = 23; // Node list frame for a client to apply and pass down its subtree
+    public static final int MAX_DATAGRAM = 65507; // Largest UDP payload over IPv4
+
+    private static final byte LEGACY_MAGIC = (byte) 0xAC; // First byte of an ObjectOutputStream
+    private static final boolean LEGACY_WIRE = Boolean.getBoolean("packet.legacyWire"); // Send the old format
+    static final int HEADER_BYTES = 1 + 4 + 4 + 4; // version, nodeId, dataLength, payload length
+
+    // Scratch space for decoding strings out of direct buffers
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_DATAGRAM]);
+
+    // Only the types the old protocol ever sent may be rebuilt from a legacy frame, under
+    // whatever package this class is built in
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=4;maxrefs=4096;maxarray=4096;" + Packet.class.getName() + ";java.util.ArrayList;java.lang.*;!*");
 
     private byte version; // Version of the packet
     private int nodeId; // Unique identifier for the node
     private int dataLength; // Length of the data in bytes
     private String data; // The actual data payload
 
+    /**
+     * The node list entries that changed after {@code baseEpoch}, up to and
+     * including {@code epoch}. A base epoch of 0 marks a full snapshot.
+     */
+    public static class NodeListDelta {
+        private final long baseEpoch; // Epoch the receiver must already have applied
+        private final long epoch; // Epoch the receiver has after applying this delta
+        private final List<Packet> packets; // Changed entries, one per node
+
+        /**
+         * Constructs a NodeListDelta.
+         *
+         * @param baseEpoch The epoch the changes are relative to
+         * @param epoch     The epoch reached after applying the changes
+         * @param packets   The changed node entries
+         */
+        public NodeListDelta(long baseEpoch, long epoch, List<Packet> packets) {
+            this.baseEpoch = baseEpoch;
+            this.epoch = epoch;
+            this.packets = packets;
+        }
+
+        /**
+         * Gets the epoch the changes are relative to.
+         *
+         * @return The base epoch
+         */
+        public long getBaseEpoch() {
+            return baseEpoch;
+        }
+
+        /**
+         * Gets the epoch reached after applying the changes.
+         *
+         * @return The epoch
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Gets the changed node entries.
+         *
+         * @return The changed entries
+         */
+        public List<Packet> getPackets() {
+            return packets;
+        }
+
+        /**
+         * Tells whether this delta replaces the receiver's whole node list.
+         *
+         * @return true for a full snapshot
+         */
+        public boolean isSnapshot() {
+            return baseEpoch == 0;
+        }
+    }
+
+    /**
+     * Acknowledges the node list epoch a node has applied. An epoch of 0
+     * asks the server for a full snapshot.
+     */
+    public static class Ack {
+        private final int nodeId; // Node sending the acknowledgement
+        private final long epoch; // Highest epoch the node has applied
+
+        /**
+         * Constructs an Ack.
+         *
+         * @param nodeId The acknowledging node
+         * @param epoch  The applied epoch, or 0 to request a snapshot
+         */
+        public Ack(int nodeId, long epoch) {
+            this.nodeId = nodeId;
+            this.epoch = epoch;
+        }
+
+        /**
+         * Gets the acknowledging node.
+         *
+         * @return The node ID
+         */
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * Gets the highest epoch the node has applied.
+         *
+         * @return The epoch, or 0 for a snapshot request
+         */
+        public long getEpoch() {
+            return epoch;
+        }
+    }
+
+    /**
+     * Asks the server which online nodes hold a file.
+     */
+    public static class FileQuery {
+        private final int nodeId; // Node asking
+        private final int requestId; // Echoed in the result to match it up
+        private final String fileName; // Exact file name to look up
+
+        /**
+         * Constructs a FileQuery.
+         *
+         * @param nodeId    The node asking
+         * @param requestId The ID the result will carry
+         * @param fileName  The exact file name to look up
+         */
+        public FileQuery(int nodeId, int requestId, String fileName) {
+            this.nodeId = nodeId;
+            this.requestId = requestId;
+            this.fileName = fileName;
+        }
+
+        /**
+         * Gets the node asking.
+         *
+         * @return The node ID
+         */
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * Gets the ID the result will carry.
+         *
+         * @return The request ID
+         */
+        public int getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * Gets the file name to look up.
+         *
+         * @return The file name
+         */
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    /**
+     * Lists the online nodes holding a file, in answer to a {@link FileQuery}.
+     */
+    public static class FileQueryResult {
+        private final int requestId; // ID of the query being answered
+        private final String fileName; // File that was looked up
+        private final int[] holders; // Online nodes holding the file
+
+        /**
+         * Constructs a FileQueryResult.
+         *
+         * @param requestId The ID of the query being answered
+         * @param fileName  The file that was looked up
+         * @param holders   The online nodes holding the file
+         */
+        public FileQueryResult(int requestId, String fileName, int[] holders) {
+            this.requestId = requestId;
+            this.fileName = fileName;
+            this.holders = holders;
+        }
+
+        /**
+         * Gets the ID of the query being answered.
+         *
+         * @return The request ID
+         */
+        public int getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * Gets the file that was looked up.
+         *
+         * @return The file name
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Gets the online nodes holding the file.
+         *
+         * @return The node IDs, possibly empty
+         */
+        public int[] getHolders() {
+            return holders;
+        }
+    }
+
+    /**
+     * Asks the server for one page of the file names matching a glob pattern.
+     */
+    public static class FileSearch {
+        private final int nodeId; // Node asking
+        private final int requestId; // Echoed in the result to match it up
+        private final String pattern; // Glob pattern, * and ? are wildcards
+        private final int offset; // Matches to skip
+        private final int limit; // Largest number of matches wanted
+
+        /**
+         * Constructs a FileSearch.
+         *
+         * @param nodeId    The node asking
+         * @param requestId The ID the result will carry
+         * @param pattern   The glob pattern
+         * @param offset    The number of matches to skip
+         * @param limit     The largest number of matches wanted
+         */
+        public FileSearch(int nodeId, int requestId, String pattern, int offset, int limit) {
+            this.nodeId = nodeId;
+            this.requestId = requestId;
+            this.pattern = pattern;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        /**
+         * Gets the node asking.
+         *
+         * @return The node ID
+         */
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * Gets the ID the result will carry.
+         *
+         * @return The request ID
+         */
+        public int getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * Gets the glob pattern.
+         *
+         * @return The pattern
+         */
+        public String getPattern() {
+            return pattern;
+        }
+
+        /**
+         * Gets the number of matches to skip.
+         *
+         * @return The offset
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the largest number of matches wanted.
+         *
+         * @return The page size
+         */
+        public int getLimit() {
+            return limit;
+        }
+    }
+
+    /**
+     * One file name found by a search, with the nodes holding it.
+     */
+    public static class SearchHit {
+        private final String fileName; // Matching file name
+        private final int[] nodeIds; // Nodes listing the file
+        private final String[] statuses; // Status of each node, parallel to nodeIds
+
+        /**
+         * Constructs a SearchHit.
+         *
+         * @param fileName The matching file name
+         * @param nodeIds  The nodes listing the file
+         * @param statuses The status of each node, parallel to nodeIds
+         */
+        public SearchHit(String fileName, int[] nodeIds, String[] statuses) {
+            this.fileName = fileName;
+            this.nodeIds = nodeIds;
+            this.statuses = statuses;
+        }
+
+        /**
+         * Gets the matching file name.
+         *
+         * @return The file name
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Gets the nodes listing the file.
+         *
+         * @return The node IDs
+         */
+        public int[] getNodeIds() {
+            return nodeIds;
+        }
+
+        /**
+         * Gets the status of each node, parallel to {@link #getNodeIds}.
+         *
+         * @return The statuses
+         */
+        public String[] getStatuses() {
+            return statuses;
+        }
+    }
+
+    /**
+     * One page of results for a {@link FileSearch}.
+     */
+    public static class FileSearchResult {
+        private final int requestId; // ID of the search being answered
+        private final int offset; // Position of the first hit among all matches
+        private final int total; // Matches across all pages
+        private final List<SearchHit> hits; // Matches on this page
+
+        /**
+         * Constructs a FileSearchResult.
+         *
+         * @param requestId The ID of the search being answered
+         * @param offset    The position of the first hit among all matches
+         * @param total     The number of matches across all pages
+         * @param hits      The matches on this page
+         */
+        public FileSearchResult(int requestId, int offset, int total, List<SearchHit> hits) {
+            this.requestId = requestId;
+            this.offset = offset;
+            this.total = total;
+            this.hits = hits;
+        }
+
+        /**
+         * Gets the ID of the search being answered.
+         *
+         * @return The request ID
+         */
+        public int getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * Gets the position of the first hit among all matches.
+         *
+         * @return The offset
+         */
+        public int getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the number of matches across all pages.
+         *
+         * @return The total
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Gets the matches on this page.
+         *
+         * @return The hits, sorted by file name
+         */
+        public List<SearchHit> getHits() {
+            return hits;
+        }
+    }
+
+    /**
+     * Changes to a node's shared files since the catalog version the
+     * receiver already has. A base version of 0 marks a full snapshot that
+     * replaces whatever the receiver knew.
+     */
+    public static class FilesDelta {
+        private final int nodeId; // Node whose catalog changed
+        private final long baseVersion; // Catalog version the changes are relative to
+        private final long version; // Catalog version after applying them
+        private final List<String> added; // File names now shared
+        private final List<String> removed; // File names no longer shared
+
+        /**
+         * Constructs a FilesDelta.
+         *
+         * @param nodeId      The node whose catalog changed
+         * @param baseVersion The version the changes are relative to, or 0 for a snapshot
+         * @param version     The version reached after applying them
+         * @param added       The file names added
+         * @param removed     The file names removed
+         */
+        public FilesDelta(int nodeId, long baseVersion, long version, List<String> added, List<String> removed) {
+            this.nodeId = nodeId;
+            this.baseVersion = baseVersion;
+            this.version = version;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        /**
+         * Gets the node whose catalog changed.
+         *
+         * @return The node ID
+         */
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * Gets the catalog version the changes are relative to.
+         *
+         * @return The base version, or 0 for a snapshot
+         */
+        public long getBaseVersion() {
+            return baseVersion;
+        }
+
+        /**
+         * Gets the catalog version reached after applying the changes.
+         *
+         * @return The version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Gets the file names added.
+         *
+         * @return The added names; for a snapshot, every shared file
+         */
+        public List<String> getAdded() {
+            return added;
+        }
+
+        /**
+         * Gets the file names removed.
+         *
+         * @return The removed names
+         */
+        public List<String> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Tells whether this delta replaces the receiver's whole view of the node's files.
+         *
+         * @return true for a full snapshot
+         */
+        public boolean isSnapshot() {
+            return baseVersion == 0;
+        }
+    }
+
+    /**
+     * Tells the receiver a node is alive and which catalog version it is
+     * sharing, without repeating the file list.
+     */
+    public static class Heartbeat {
+        private final int nodeId; // Node that is alive
+        private final long version; // Its current catalog version
+
+        /**
+         * Constructs a Heartbeat.
+         *
+         * @param nodeId  The node that is alive
+         * @param version Its current catalog version
+         */
+        public Heartbeat(int nodeId, long version) {
+            this.nodeId = nodeId;
+            this.version = version;
+        }
+
+        /**
+         * Gets the node that is alive.
+         *
+         * @return The node ID
+         */
+        public int getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * Gets the node's current catalog version.
+         *
+         * @return The version
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Asks a node for a full snapshot of its shared files, sent when its
+     * deltas or heartbeats do not follow on from the version the receiver has.
+     */
+    public static class FilesResync {
+        private final long knownVersion; // Catalog version the receiver has, 0 if none
+
+        /**
+         * Constructs a FilesResync.
+         *
+         * @param knownVersion The catalog version the receiver has, or 0 if none
+         */
+        public FilesResync(long knownVersion) {
+            this.knownVersion = knownVersion;
+        }
+
+        /**
+         * Gets the catalog version the receiver has.
+         *
+         * @return The version, or 0 if none
+         */
+        public long getKnownVersion() {
+            return knownVersion;
+        }
+    }
+
+    /**
+     * A node list frame handed to a client acting as a relay. The first
+     * target is the receiver itself; the rest are the nodes below it in the
+     * relay tree, each subtree listed as its root followed by its own
+     * subtrees, so the receiver can split them between its children without
+     * knowing the tree.
+     */
+    public static class Relay {
+        private final int fanout; // Children each relay forwards to
+        private final int[] targets; // Receiver, then its subtree in pre-order
+        private final byte[] payload; // Encoded node list frame to apply
+
+        /**
+         * Constructs a Relay.
+         *
+         * @param fanout  The number of children each relay forwards to
+         * @param targets The receiver followed by its subtree in pre-order
+         * @param payload The encoded node list frame
+         */
+        public Relay(int fanout, int[] targets, byte[] payload) {
+            this.fanout = fanout;
+            this.targets = targets;
+            this.payload = payload;
+        }
+
+        /**
+         * Splits nodes into at most {@code fanout} subtrees of near-equal
+         * size, each rooted at its first node.
+         *
+         * @param fanout  The number of children each relay forwards to
+         * @param nodes   The nodes to reach, in pre-order
+         * @param from    Index of the first node to reach
+         * @param to      Index past the last node to reach
+         * @param payload The encoded node list frame
+         * @return One relay frame per subtree root
+         */
+        public static List<Relay> subtrees(int fanout, int[] nodes, int from, int to, byte[] payload) {
+            List<Relay> relays = new ArrayList<>(fanout);
+            int count = to - from;
+            int parts = Math.min(fanout, count);
+            for (int part = 0; part < parts; part++) {
+                int start = from + (int) ((long) count * part / parts);
+                int end = from + (int) ((long) count * (part + 1) / parts);
+                relays.add(new Relay(fanout, Arrays.copyOfRange(nodes, start, end), payload));
+            }
+            return relays;
+        }
+
+        /**
+         * Gets the frames this relay's receiver passes on to its children.
+         *
+         * @return One relay frame per child, empty for a leaf
+         */
+        public List<Relay> children() {
+            return subtrees(fanout, targets, 1, targets.length, payload);
+        }
+
+        /**
+         * Gets the number of children each relay forwards to.
+         *
+         * @return The fanout
+         */
+        public int getFanout() {
+            return fanout;
+        }
+
+        /**
+         * Gets the receiver followed by its subtree in pre-order.
+         *
+         * @return The target node IDs
+         */
+        public int[] getTargets() {
+            return targets;
+        }
+
+        /**
+         * Gets the encoded node list frame to apply.
+         *
+         * @return The frame, a snapshot or a delta
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
     /**
      * Constructs a Packet with specified parameters.
      *
@@ -98,4 +768,571 @@ public class Packet implements Serializable {
     public void setData(String data) {
         this.data = data;
     }
+
+    /**
+     * Gets the number of bytes this packet occupies on the wire, not counting
+     * the frame header.
+     *
+     * @return The encoded length in bytes
+     */
+    public int encodedLength() {
+        return HEADER_BYTES + utf8Length(data);
+    }
+
+    /**
+     * Writes this packet into a buffer at its current position.
+     *
+     * @param buf The buffer to write into
+     */
+    public void writeTo(ByteBuffer buf) {
+        buf.put(version);
+        buf.putInt(nodeId);
+        buf.putInt(dataLength);
+        if (data == null) {
+            buf.putInt(-1);
+            return;
+        }
+        buf.putInt(utf8Length(data));
+        putUtf8(buf, data);
+    }
+
+    /**
+     * Reads a single packet from a buffer at its current position.
+     *
+     * @param buf The buffer to read from
+     * @return The decoded packet
+     * @throws IOException if the buffer does not hold a complete packet
+     */
+    public static Packet readFrom(ByteBuffer buf) throws IOException {
+        try {
+            byte version = buf.get();
+            int nodeId = buf.getInt();
+            int dataLength = buf.getInt();
+            int length = buf.getInt();
+            return new Packet(version, nodeId, dataLength, getUtf8(buf, length));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated packet", e);
+        }
+    }
+
+    /**
+     * Encodes a single packet into a frame ready to be sent.
+     *
+     * @param packet The packet to encode
+     * @return The encoded frame
+     * @throws IOException if the legacy encoder fails
+     */
+    public static byte[] encode(Packet packet) throws IOException {
+        if (LEGACY_WIRE) {
+            return legacyEncode(packet);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(2 + packet.encodedLength());
+        buf.put(WIRE_VERSION).put(KIND_PACKET);
+        packet.writeTo(buf);
+        return buf.array();
+    }
+
+    /**
+     * Encodes a list of packets into a frame ready to be sent.
+     *
+     * @param packets The packets to encode
+     * @return The encoded frame
+     * @throws IOException if the legacy encoder fails
+     */
+    public static byte[] encode(List<Packet> packets) throws IOException {
+        if (LEGACY_WIRE) {
+            return legacyEncode(new ArrayList<>(packets));
+        }
+        int size = 2 + 4;
+        for (Packet packet : packets) {
+            size += packet.encodedLength();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(WIRE_VERSION).put(KIND_LIST).putInt(packets.size());
+        for (Packet packet : packets) {
+            packet.writeTo(buf);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Tells whether frames are sent in the old serialized format
+     * ({@code -Dpacket.legacyWire}), for a fleet with clients that predate
+     * the binary one.
+     *
+     * @return true if sending the legacy format
+     */
+    public static boolean isLegacyWire() {
+        return LEGACY_WIRE;
+    }
+
+    /**
+     * Encodes the node list changes between two epochs. Deltas only exist
+     * in the binary format, whatever {@link #isLegacyWire} says; legacy
+     * receivers must be sent a full list with {@link #encode(List)}.
+     *
+     * @param baseEpoch The epoch the changes are relative to, 0 for a snapshot
+     * @param epoch     The epoch reached after applying the changes
+     * @param packets   The changed node entries
+     * @return The encoded frame
+     */
+    public static byte[] encodeDelta(long baseEpoch, long epoch, List<Packet> packets) {
+        int size = 2 + 8 + 8 + 4;
+        for (Packet packet : packets) {
+            size += packet.encodedLength();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(WIRE_VERSION).put(KIND_DELTA).putLong(baseEpoch).putLong(epoch).putInt(packets.size());
+        for (Packet packet : packets) {
+            packet.writeTo(buf);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Encodes an acknowledgement of an applied node list epoch.
+     *
+     * @param nodeId The acknowledging node
+     * @param epoch  The applied epoch, or 0 to request a snapshot
+     * @return The encoded frame
+     */
+    public static byte[] encodeAck(int nodeId, long epoch) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 8);
+        buf.put(WIRE_VERSION).put(KIND_ACK).putInt(nodeId).putLong(epoch);
+        return buf.array();
+    }
+
+    /**
+     * Encodes a query for the holders of a file.
+     *
+     * @param query The query to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(FileQuery query) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 4 + 4 + utf8Length(query.fileName));
+        buf.put(WIRE_VERSION).put(KIND_QUERY).putInt(query.nodeId).putInt(query.requestId);
+        putString(buf, query.fileName);
+        return buf.array();
+    }
+
+    /**
+     * Encodes the answer to a file query.
+     *
+     * @param result The result to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(FileQueryResult result) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 4 + utf8Length(result.fileName) + 4 + 4 * result.holders.length);
+        buf.put(WIRE_VERSION).put(KIND_QUERY_RESULT).putInt(result.requestId);
+        putString(buf, result.fileName);
+        buf.putInt(result.holders.length);
+        for (int holder : result.holders) {
+            buf.putInt(holder);
+        }
+        return buf.array();
+    }
+
+    /**
+     * Encodes a search for file names.
+     *
+     * @param search The search to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(FileSearch search) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 4 + 4 + utf8Length(search.pattern) + 4 + 4);
+        buf.put(WIRE_VERSION).put(KIND_SEARCH).putInt(search.nodeId).putInt(search.requestId);
+        putString(buf, search.pattern);
+        buf.putInt(search.offset).putInt(search.limit);
+        return buf.array();
+    }
+
+    /**
+     * Encodes one page of search results.
+     *
+     * @param result The result to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(FileSearchResult result) {
+        int size = 2 + 4 + 4 + 4 + 4;
+        for (SearchHit hit : result.hits) {
+            size += 4 + utf8Length(hit.fileName) + 4;
+            for (String status : hit.statuses) {
+                size += 4 + 4 + utf8Length(status);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(WIRE_VERSION).put(KIND_SEARCH_RESULT).putInt(result.requestId)
+                .putInt(result.offset).putInt(result.total).putInt(result.hits.size());
+        for (SearchHit hit : result.hits) {
+            putString(buf, hit.fileName);
+            buf.putInt(hit.nodeIds.length);
+            for (int i = 0; i < hit.nodeIds.length; i++) {
+                buf.putInt(hit.nodeIds[i]);
+                putString(buf, hit.statuses[i]);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Encodes a change to a node's shared files.
+     *
+     * @param delta The delta to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(FilesDelta delta) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 8 + 8 + stringsLength(delta.added) + stringsLength(delta.removed));
+        buf.put(WIRE_VERSION).put(KIND_FILES_DELTA).putInt(delta.nodeId).putLong(delta.baseVersion)
+                .putLong(delta.version);
+        putStrings(buf, delta.added);
+        putStrings(buf, delta.removed);
+        return buf.array();
+    }
+
+    /**
+     * Encodes a heartbeat.
+     *
+     * @param heartbeat The heartbeat to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(Heartbeat heartbeat) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 8);
+        buf.put(WIRE_VERSION).put(KIND_HEARTBEAT).putInt(heartbeat.nodeId).putLong(heartbeat.version);
+        return buf.array();
+    }
+
+    /**
+     * Encodes a request for a full file snapshot.
+     *
+     * @param resync The request to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(FilesResync resync) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 8);
+        buf.put(WIRE_VERSION).put(KIND_FILES_RESYNC).putLong(resync.knownVersion);
+        return buf.array();
+    }
+
+    /**
+     * Encodes a node list frame for a relay.
+     *
+     * @param relay The relay frame to encode
+     * @return The encoded frame
+     */
+    public static byte[] encode(Relay relay) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + 4 + 4 + 4 * relay.targets.length + 4 + relay.payload.length);
+        buf.put(WIRE_VERSION).put(KIND_RELAY).putInt(relay.fanout).putInt(relay.targets.length);
+        for (int target : relay.targets) {
+            buf.putInt(target);
+        }
+        buf.putInt(relay.payload.length).put(relay.payload);
+        return buf.array();
+    }
+
+    /**
+     * Decodes a received frame in either the binary or the legacy format.
+     *
+     * @param data   The received bytes
+     * @param offset Offset of the frame within the array
+     * @param length Length of the frame in bytes
+     * @return A {@link Packet}, a {@code List<Packet>}, or one of the message
+     *         classes nested in Packet
+     * @throws IOException if the frame is malformed or of an unknown version
+     */
+    public static Object decode(byte[] data, int offset, int length) throws IOException {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Decodes a binary frame from a buffer between its position and limit.
+     *
+     * @param buf The buffer holding the frame
+     * @return A {@link Packet}, a {@code List<Packet>}, or one of the message
+     *         classes nested in Packet
+     * @throws IOException if the frame is malformed or of an unknown version
+     */
+    public static Object decode(ByteBuffer buf) throws IOException {
+        if (isLegacy(buf)) {
+            byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+            return legacyDecode(bytes, 0, bytes.length);
+        }
+        try {
+            byte wireVersion = buf.get();
+            if (wireVersion != WIRE_VERSION) {
+                throw new IOException("Unsupported wire version " + wireVersion);
+            }
+            byte kind = buf.get();
+            switch (kind) {
+                case KIND_PACKET:
+                    return readFrom(buf);
+                case KIND_LIST:
+                    return readList(buf);
+                case KIND_DELTA:
+                    long baseEpoch = buf.getLong();
+                    long epoch = buf.getLong();
+                    return new NodeListDelta(baseEpoch, epoch, readList(buf));
+                case KIND_ACK:
+                    return new Ack(buf.getInt(), buf.getLong());
+                case KIND_QUERY:
+                    int queryNode = buf.getInt();
+                    int queryId = buf.getInt();
+                    return new FileQuery(queryNode, queryId, getUtf8(buf, buf.getInt()));
+                case KIND_QUERY_RESULT:
+                    int resultId = buf.getInt();
+                    String fileName = getUtf8(buf, buf.getInt());
+                    return new FileQueryResult(resultId, fileName, readIntArray(buf));
+                case KIND_SEARCH:
+                    int searchNode = buf.getInt();
+                    int searchId = buf.getInt();
+                    String pattern = getUtf8(buf, buf.getInt());
+                    return new FileSearch(searchNode, searchId, pattern, buf.getInt(), buf.getInt());
+                case KIND_SEARCH_RESULT:
+                    return decodeSearchResult(buf);
+                case KIND_FILES_DELTA:
+                    int deltaNode = buf.getInt();
+                    long baseVersion = buf.getLong();
+                    long version = buf.getLong();
+                    List<String> added = readStrings(buf);
+                    return new FilesDelta(deltaNode, baseVersion, version, added, readStrings(buf));
+                case KIND_HEARTBEAT:
+                    return new Heartbeat(buf.getInt(), buf.getLong());
+                case KIND_FILES_RESYNC:
+                    return new FilesResync(buf.getLong());
+                case KIND_RELAY:
+                    int fanout = buf.getInt();
+                    int[] targets = readIntArray(buf);
+                    int payloadLength = buf.getInt();
+                    if (fanout < 1 || targets.length == 0 || payloadLength < 0 || payloadLength > buf.remaining()) {
+                        throw new IOException("Invalid relay frame");
+                    }
+                    byte[] payload = new byte[payloadLength];
+                    buf.get(payload);
+                    return new Relay(fanout, targets, payload);
+                default:
+                    throw new IOException("Unknown frame kind " + kind);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame", e);
+        }
+    }
+
+    /**
+     * Reads a count-prefixed run of packets.
+     */
+    private static List<Packet> readList(ByteBuffer buf) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / HEADER_BYTES) {
+            throw new IOException("Invalid packet count " + count);
+        }
+        List<Packet> packets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            packets.add(readFrom(buf));
+        }
+        return packets;
+    }
+
+    /**
+     * Reads the body of a search result frame.
+     */
+    private static FileSearchResult decodeSearchResult(ByteBuffer buf) throws IOException {
+        int requestId = buf.getInt();
+        int offset = buf.getInt();
+        int total = buf.getInt();
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 8) {
+            throw new IOException("Invalid hit count " + count);
+        }
+        List<SearchHit> hits = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String fileName = getUtf8(buf, buf.getInt());
+            int holders = buf.getInt();
+            if (holders < 0 || holders > buf.remaining() / 8) {
+                throw new IOException("Invalid holder count " + holders);
+            }
+            int[] nodeIds = new int[holders];
+            String[] statuses = new String[holders];
+            for (int j = 0; j < holders; j++) {
+                nodeIds[j] = buf.getInt();
+                statuses[j] = getUtf8(buf, buf.getInt());
+            }
+            hits.add(new SearchHit(fileName, nodeIds, statuses));
+        }
+        return new FileSearchResult(requestId, offset, total, hits);
+    }
+
+    /**
+     * Gets the encoded length of a count-prefixed list of strings.
+     */
+    private static int stringsLength(List<String> strings) {
+        int size = 4;
+        for (String s : strings) {
+            size += 4 + utf8Length(s);
+        }
+        return size;
+    }
+
+    /**
+     * Writes a count-prefixed list of strings.
+     */
+    private static void putStrings(ByteBuffer buf, List<String> strings) {
+        buf.putInt(strings.size());
+        for (String s : strings) {
+            putString(buf, s);
+        }
+    }
+
+    /**
+     * Reads a count-prefixed list of strings.
+     */
+    private static List<String> readStrings(ByteBuffer buf) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 4) {
+            throw new IOException("Invalid string count " + count);
+        }
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(getUtf8(buf, buf.getInt()));
+        }
+        return strings;
+    }
+
+    /**
+     * Reads a count-prefixed array of ints.
+     */
+    static int[] readIntArray(ByteBuffer buf) throws IOException {
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 4) {
+            throw new IOException("Invalid array length " + count);
+        }
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = buf.getInt();
+        }
+        return values;
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string, -1 standing for null.
+     */
+    static void putString(ByteBuffer buf, String s) {
+        if (s == null) {
+            buf.putInt(-1);
+            return;
+        }
+        buf.putInt(utf8Length(s));
+        putUtf8(buf, s);
+    }
+
+    /**
+     * Checks whether the frame at the buffer's position was produced by the
+     * legacy Java serialization format.
+     *
+     * @param buf The buffer holding the frame
+     * @return true if the frame is a legacy one
+     */
+    public static boolean isLegacy(ByteBuffer buf) {
+        return buf.hasRemaining() && buf.get(buf.position()) == LEGACY_MAGIC;
+    }
+
+    /**
+     * Serializes an object with Java serialization, as older nodes expect.
+     */
+    private static byte[] legacyEncode(Object obj) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(obj);
+        oos.flush();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserializes a frame sent by an older node, accepting only packet types.
+     */
+    private static Object legacyDecode(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        ois.setObjectInputFilter(LEGACY_FILTER);
+        try {
+            return ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unknown class in legacy frame", e);
+        }
+    }
+
+    /**
+     * Counts the UTF-8 bytes needed for a string without encoding it.
+     */
+    static int utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes a string as UTF-8 straight into a buffer.
+     */
+    static void putUtf8(ByteBuffer buf, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buf.put((byte) '?'); // Unpaired surrogate, same as String.getBytes
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string from a buffer.
+     */
+    static String getUtf8(ByteBuffer buf, int length) throws IOException {
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buf.remaining()) {
+            throw new IOException("Invalid payload length " + length);
+        }
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = length <= MAX_DATAGRAM ? SCRATCH.get() : new byte[length];
+            buf.get(bytes, 0, length);
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        buf.position(buf.position() + length);
+        return s;
+    }
 }
@@ -0,0 +1,169 @@
+/**
+ * This class sends this peer's file changes and heartbeats to every other peer.
+ *
+ * <p>Each frame is encoded (and split into fragments) once for all the
+ * peers it goes to. Destination addresses are resolved once into a table
+ * of InetSocketAddress that is rebuilt only when the registry's membership
+ * changes. Every datagram goes out through the peer's own bound channel, in
+ * batches with a short pause between them so a large mesh is not hit with
+ * one burst. When given an executor, as in virtual-thread mode, each peer
+ * gets its own send task instead and the round waits for all of them.</p>
+ *
+ *@version 1.0
+ */
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+public class PeerSendPipeline {
+    private static final int BATCH_SIZE = 32; //datagrams sent back to back before pausing
+    private static final long BATCH_PAUSE_NANOS = 200_000; //pause between batches
+
+    private final int nodeId; //the node sending
+    private final DatagramChannel channel; //the peer's bound channel
+    private final ConfigLoader configLoader; //source of destinations
+    private final ExecutorService senders; //runs one send per peer, or null to send in batches from the caller
+    private final List<Integer> destinationIds = new ArrayList<>(); //peer IDs, parallel to destinations
+    private final List<InetSocketAddress> destinations = new ArrayList<>(); //resolved peer addresses
+    private int destinationsVersion = -1; //membership version the table was built from
+
+    /**
+     * This function builds a pipeline for one peer.
+     *
+     * @param nodeId the node sending
+     * @param channel the peer's bound channel
+     * @param configLoader the registry of peers
+     */
+    public PeerSendPipeline(int nodeId, DatagramChannel channel, ConfigLoader configLoader) {
+        this(nodeId, channel, configLoader, null);
+    }
+
+    /**
+     * This function builds a pipeline that sends to each peer as a task of its own.
+     *
+     * @param nodeId the node sending
+     * @param channel the peer's bound channel
+     * @param configLoader the registry of peers
+     * @param senders runs the per-peer sends, or null to send in batches from the calling thread
+     */
+    public PeerSendPipeline(int nodeId, DatagramChannel channel, ConfigLoader configLoader, ExecutorService senders) {
+        this.nodeId = nodeId;
+        this.channel = channel;
+        this.configLoader = configLoader;
+        this.senders = senders;
+    }
+
+    /**
+     * This function sends a frame to every other peer.
+     *
+     * @param frame the encoded frame, split into fragments here if it needs to be
+     * @return the number of peers the frame was sent to
+     */
+    public int broadcast(byte[] frame) {
+        long start = System.nanoTime();
+        refreshDestinations();
+        List<ByteBuffer> datagrams = FragmentLayer.split(frame);
+        int peers = (senders != null) ? broadcastPerPeer(datagrams) : broadcastInBatches(datagrams);
+        Metrics.FANOUT_NANOS.record(System.nanoTime() - start);
+        return peers;
+    }
+
+    /**
+     * This function sends the datagrams to every peer from the calling
+     * thread, pausing between batches.
+     */
+    private int broadcastInBatches(List<ByteBuffer> datagrams) {
+        int sentInBatch = 0;
+        int peers = 0;
+        for (int i = 0; i < destinations.size(); i++) {
+            try {
+                for (ByteBuffer datagram : datagrams) {
+                    channel.send(datagram.duplicate(), destinations.get(i));
+                    Metrics.DATAGRAMS_SENT.increment();
+                    if (++sentInBatch == BATCH_SIZE) {
+                        LockSupport.parkNanos(BATCH_PAUSE_NANOS);
+                        sentInBatch = 0;
+                    }
+                }
+                peers++;
+            } catch (IOException e) {
+                Metrics.DATAGRAMS_DROPPED.increment();
+                System.err.println("Failed to send to peer " + destinationIds.get(i) + ": " + e.getMessage());
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * This function sends the datagrams to every peer from a task per peer
+     * and waits for them all.
+     */
+    private int broadcastPerPeer(List<ByteBuffer> datagrams) {
+        List<Callable<Boolean>> sends = new ArrayList<>(destinations.size());
+        for (int i = 0; i < destinations.size(); i++) {
+            int peerId = destinationIds.get(i);
+            InetSocketAddress destination = destinations.get(i);
+            sends.add(() -> {
+                try {
+                    for (ByteBuffer datagram : datagrams) {
+                        channel.send(datagram.duplicate(), destination);
+                        Metrics.DATAGRAMS_SENT.increment();
+                    }
+                    return true;
+                } catch (IOException e) {
+                    Metrics.DATAGRAMS_DROPPED.increment();
+                    System.err.println("Failed to send to peer " + peerId + ": " + e.getMessage());
+                    return false;
+                }
+            });
+        }
+        int peers = 0;
+        try {
+            for (Future<Boolean> sent : senders.invokeAll(sends)) {
+                if (sent.get()) {
+                    peers++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return peers;
+    }
+
+    /**
+     * This function rebuilds the destination table if peers were added,
+     * removed or moved since it was last built.
+     */
+    private void refreshDestinations() {
+        int version = configLoader.getMembershipVersion();
+        if (version == destinationsVersion) {
+            return;
+        }
+        destinationIds.clear();
+        destinations.clear();
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+            if (entry.getKey() != nodeId) {
+                ConfigLoader.NodeInfo node = entry.getValue();
+                InetSocketAddress address = new InetSocketAddress(node.ip, node.port); //resolves the name once
+                if (address.isUnresolved()) {
+                    System.err.println("Cannot resolve peer " + entry.getKey() + " at " + node.ip);
+                    continue;
+                }
+                destinationIds.add(entry.getKey());
+                destinations.add(address);
+            }
+        }
+        destinationsVersion = version;
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * PhiAccrualDetector decides when a node has gone quiet for too long,
+ * judging each node by its own heartbeat history instead of one fixed
+ * timeout.
+ *
+ * <p>For every node it keeps the last {@code failure.window} intervals
+ * between heartbeats in a ring of longs, with a running sum and sum of
+ * squares, so the mean and deviation cost nothing to read. The suspicion
+ * level phi is -log10 of the probability that a heartbeat would still
+ * arrive after the time already waited, taking intervals as normally
+ * distributed (through the logistic approximation used by Akka). A phi of
+ * 1 means a 10% chance the node is merely late, 2 means 1%, and so on.
+ * Once phi reaches {@code failure.phi} the node is suspected.</p>
+ *
+ * <p>A node that heartbeats every second with little jitter is therefore
+ * suspected within a few seconds, while one whose heartbeats wander is
+ * given as long as its history says it needs. Because the threshold is
+ * fixed, the time at which phi will reach it can be worked out whenever a
+ * heartbeat arrives, and a timer armed for it; nothing has to be polled.</p>
+ *
+ * <p>Only periodic heartbeats add intervals to the history. Other traffic,
+ * such as a burst of file changes, proves the node is alive and restarts
+ * the clock, but would teach the detector to expect messages far more
+ * often than the node's heartbeat period.</p>
+ */
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class PhiAccrualDetector {
+    public static final double THRESHOLD = Double.parseDouble(System.getProperty("failure.phi", "8")); // Phi at which a node is suspected
+    private static final int WINDOW = Integer.getInteger("failure.window", 100); // Intervals remembered per node
+    private static final long FIRST_INTERVAL_MS = Long.getLong("failure.firstIntervalMs",
+            Long.getLong("node.heartbeatMs", 10_000)); // Interval assumed before a node has any history
+    private static final long MIN_STD_DEV_MS = Long.getLong("failure.minStdDevMs", 500); // Floor on the deviation, so steady nodes are not judged on noise
+    private static final long PAUSE_MS = Long.getLong("failure.pauseMs", 1000); // Extra lateness always tolerated, e.g. for GC pauses
+    private static final double THRESHOLD_Y = solveThreshold(); // Deviations past the mean at which phi reaches THRESHOLD
+
+    private final Map<Integer, History> histories = new ConcurrentHashMap<>(); // Heartbeat history of each node
+
+    /**
+     * The recent heartbeat intervals of one node.
+     */
+    private static class History {
+        final long[] intervals = new long[WINDOW]; // Ring of intervals in milliseconds
+        int count; // Number of intervals in the ring
+        int next; // Slot the next interval goes in
+        long sum; // Sum of the intervals in the ring
+        long sumOfSquares; // Sum of their squares
+        long lastNanos; // When the node was last heard from
+
+        synchronized void add(long intervalMs) {
+            if (count == WINDOW) {
+                long old = intervals[next];
+                sum -= old;
+                sumOfSquares -= old * old;
+            } else {
+                count++;
+            }
+            intervals[next] = intervalMs;
+            sum += intervalMs;
+            sumOfSquares += intervalMs * intervalMs;
+            next = (next + 1) % WINDOW;
+        }
+
+        synchronized double mean() {
+            return (count == 0) ? FIRST_INTERVAL_MS : (double) sum / count;
+        }
+
+        synchronized double stdDev() {
+            double deviation;
+            if (count == 0) {
+                deviation = FIRST_INTERVAL_MS / 4.0;
+            } else {
+                double mean = (double) sum / count;
+                deviation = Math.sqrt(Math.max(0, (double) sumOfSquares / count - mean * mean));
+            }
+            return Math.max(deviation, MIN_STD_DEV_MS);
+        }
+
+        /**
+         * Gets how long after the last arrival phi reaches the threshold.
+         */
+        synchronized long suspectAfterMs() {
+            return (long) Math.ceil(mean() + PAUSE_MS + THRESHOLD_Y * stdDev());
+        }
+    }
+
+    /**
+     * Records a periodic heartbeat from a node.
+     *
+     * <p>The interval since the node was last heard from joins its history,
+     * unless the node was already suspected by then: the gap of an outage
+     * says nothing about how often the node heartbeats.</p>
+     *
+     * @param nodeId the node
+     * @return how many milliseconds from now the node becomes suspected if
+     *         nothing more is heard from it
+     */
+    public long heartbeat(int nodeId) {
+        return arrived(nodeId, true);
+    }
+
+    /**
+     * Records that a node was heard from, without treating the message as
+     * a periodic heartbeat.
+     *
+     * @param nodeId the node
+     * @return how many milliseconds from now the node becomes suspected if
+     *         nothing more is heard from it
+     */
+    public long heard(int nodeId) {
+        return arrived(nodeId, false);
+    }
+
+    private long arrived(int nodeId, boolean periodic) {
+        long now = System.nanoTime();
+        History history = histories.computeIfAbsent(nodeId, id -> new History());
+        synchronized (history) {
+            if (history.lastNanos != 0) {
+                long intervalMs = (now - history.lastNanos) / 1_000_000;
+                if (periodic && intervalMs < history.suspectAfterMs()) {
+                    history.add(intervalMs);
+                }
+            }
+            history.lastNanos = now;
+            return history.suspectAfterMs();
+        }
+    }
+
+    /**
+     * Gets the current suspicion level of a node.
+     *
+     * @param nodeId the node
+     * @return phi, 0 for a node never heard from
+     */
+    public double phi(int nodeId) {
+        History history = histories.get(nodeId);
+        if (history == null) {
+            return 0;
+        }
+        synchronized (history) {
+            double elapsedMs = (System.nanoTime() - history.lastNanos) / 1e6;
+            return phi((elapsedMs - history.mean() - PAUSE_MS) / history.stdDev());
+        }
+    }
+
+    /**
+     * Tells whether a node has been heard from and is not suspected.
+     *
+     * @param nodeId the node
+     * @return true if phi is below the threshold
+     */
+    public boolean isAvailable(int nodeId) {
+        return histories.containsKey(nodeId) && phi(nodeId) < THRESHOLD;
+    }
+
+    /**
+     * Forgets a node's history, e.g. once it leaves the registry.
+     *
+     * @param nodeId the node
+     */
+    public void remove(int nodeId) {
+        histories.remove(nodeId);
+    }
+
+    /**
+     * Computes phi for a lateness measured in standard deviations past the
+     * mean, using the logistic approximation of the normal distribution.
+     */
+    private static double phi(double y) {
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return (y > 0) ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    /**
+     * Finds the lateness, in standard deviations, at which phi reaches the
+     * threshold. Phi only grows with lateness, so a bisection will do.
+     */
+    private static double solveThreshold() {
+        double low = -10;
+        double high = 100;
+        for (int i = 0; i < 100; i++) {
+            double mid = (low + high) / 2;
+            if (phi(mid) < THRESHOLD) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * SharedDirectory keeps the catalog of files a node shares in step with
+ * the directory they are served from.
+ *
+ * <p>A WatchService reports entries being created or deleted; once a
+ * burst of events has settled the directory is listed again and the
+ * difference from the previous catalog is queued as a
+ * {@link Packet.FilesDelta}, ready to publish. Every change bumps the
+ * catalog version, and each delta names the version it builds on, so a
+ * receiver that missed one can tell and ask for a snapshot. Versions
+ * start from the node's start time in microseconds, so a node that
+ * restarts never reuses a version a receiver may still hold.</p>
+ *
+ * <p>If the directory does not exist, the list from nodes.config is
+ * shared as it is and never changes.</p>
+ */
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SharedDirectory implements Runnable {
+    private static final long SETTLE_MS = Long.getLong("shared.settleMs", 100); // Quiet time before listing after a change
+
+    private final int nodeId; // Node the catalog belongs to
+    private final Path directory; // Directory being watched
+    private final boolean watched; // False when falling back to the configured list
+    private final BlockingQueue<Packet.FilesDelta> changes = new LinkedBlockingQueue<>(); // Deltas not yet published
+    private Set<String> files; // Current catalog, guarded by this
+    private long version = System.currentTimeMillis() * 1000; // Current catalog version, guarded by this
+
+    /**
+     * Constructs a SharedDirectory and takes the first listing.
+     *
+     * @param nodeId     the node the catalog belongs to
+     * @param directory  the directory to watch
+     * @param configured the files to share if the directory does not exist
+     */
+    public SharedDirectory(int nodeId, Path directory, List<String> configured) {
+        this.nodeId = nodeId;
+        this.directory = directory;
+        this.watched = Files.isDirectory(directory);
+        if (watched) {
+            files = list();
+        } else {
+            System.err.println("Shared directory " + directory.toAbsolutePath()
+                    + " not found, sharing the files listed in the config.");
+            files = new TreeSet<>(configured);
+        }
+    }
+
+    /**
+     * Watches the directory and queues a delta for every change, until the
+     * thread is interrupted. Returns at once if there is nothing to watch.
+     */
+    @Override
+    public void run() {
+        if (!watched) {
+            return;
+        }
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+            rescan(); // Anything that changed before the watch was registered
+            while (true) {
+                WatchKey key = watcher.take();
+                // Let a burst of events (a copy of many files, an overflow) settle into one listing
+                do {
+                    key.pollEvents();
+                    if (!key.reset()) {
+                        System.err.println("Shared directory " + directory + " is no longer accessible.");
+                        return;
+                    }
+                } while ((key = watcher.poll(SETTLE_MS, TimeUnit.MILLISECONDS)) != null);
+                rescan();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for the next change to the catalog.
+     *
+     * @param timeoutMs how long to wait
+     * @return the change, or null if there was none in time
+     * @throws InterruptedException if the wait is interrupted
+     */
+    public Packet.FilesDelta poll(long timeoutMs) throws InterruptedException {
+        return changes.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the whole catalog as a delta that replaces whatever the receiver had.
+     *
+     * @return a snapshot delta at the current version
+     */
+    public synchronized Packet.FilesDelta snapshot() {
+        return new Packet.FilesDelta(nodeId, 0, version, new ArrayList<>(files), Collections.emptyList());
+    }
+
+    /**
+     * Gets the whole catalog as a legacy packet, the only listing a receiver
+     * of the legacy wire format understands.
+     *
+     * @return a packet carrying the comma-separated file names
+     */
+    public synchronized Packet legacyPacket() {
+        String fileList = String.join(",", files);
+        return new Packet((byte) 1, nodeId, fileList.length(), fileList);
+    }
+
+    /**
+     * Gets the current catalog version.
+     *
+     * @return the version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the files currently shared.
+     *
+     * @return the file names, sorted
+     */
+    public synchronized List<String> getFiles() {
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Lists the directory again and queues the difference, if any.
+     */
+    private synchronized void rescan() {
+        Set<String> current = list();
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String name : current) {
+            if (!files.contains(name)) {
+                added.add(name);
+            }
+        }
+        for (String name : files) {
+            if (!current.contains(name)) {
+                removed.add(name);
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        long base = version;
+        files = current;
+        version++;
+        changes.add(new Packet.FilesDelta(nodeId, base, version, added, removed));
+    }
+
+    /**
+     * Lists the regular files in the directory, skipping hidden ones such as
+     * partial downloads.
+     */
+    private Set<String> list() {
+        Set<String> names = new TreeSet<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.startsWith(".") && Files.isRegularFile(entry)) {
+                    names.add(name);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not list " + directory + ": " + e.getMessage());
+            return files; // Keep the last listing rather than unshare everything
+        }
+        return names;
+    }
+}
@@ -0,0 +1,510 @@
+/**
+ * This class implements SWIM-style membership for the peer network.
+ *
+ * <p>Instead of every peer sending its file list to every other peer, each
+ * peer probes one member per protocol period. If the direct ping is not
+ * acknowledged in time, k other members are asked to ping the target on
+ * our behalf (ping-req). A target that stays silent becomes Suspect, and a
+ * suspect that does not refute the suspicion in time is declared Dead.
+ * Membership changes are piggybacked on the probe traffic, so the messages
+ * a peer sends per period stay constant as the mesh grows.</p>
+ *
+ * <p>File lists ride along the same way: a peer announces its own list when
+ * it starts, and asks a member for its list on the first probe if it has
+ * not learned it yet.</p>
+ *
+ * <p>Wire format of every SWIM frame:</p>
+ * <pre>
+ * [wire version][kind][from:4][seq:4][target:4][flags:1][count:1][updates...]
+ * update: [nodeId:4][state:1][incarnation:4][files length:4][files UTF-8]
+ * </pre>
+ *
+ *@version 1.0
+ */
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SwimMembership implements Runnable {
+    public static final byte ALIVE = 0; //member answers probes
+    public static final byte SUSPECT = 1; //member missed a probe and may be down
+    public static final byte DEAD = 2; //member was suspected for too long
+
+    private static final byte WANT_FILES = 1; //flag: the receiver should piggyback its own file list
+    private static final int PERIOD_MS = 1000; //length of one protocol period
+    private static final int ACK_TIMEOUT_MS = 300; //how long to wait for a direct ack
+    private static final int INDIRECT_PROBES = 3; //members asked to ping-req a silent target
+    private static final int MAX_PIGGYBACK = 8; //most updates carried by one message
+    private static final int LAMBDA = 3; //each update is sent lambda * log2(n) times
+
+    private final int nodeId; //the node running this instance
+    private final DatagramSocket socket; //the peer's bound socket
+    private final ConfigLoader configLoader; //where member status and files are published
+    private final Map<Integer, Member> members = new LinkedHashMap<>(); //every other peer
+    private int membersVersion; //registry membership version the members were built from
+    private final Map<Integer, Update> gossip = new LinkedHashMap<>(); //updates still being disseminated
+    private final Map<Integer, Relay> relays = new HashMap<>(); //ping-reqs we are serving, by our seq
+    private final SecureRandom random = new SecureRandom();
+    private final List<Member> probeOrder = new ArrayList<>(); //shuffled round robin of targets
+    private int probeIndex; //next position in probeOrder
+    private int incarnation; //our own incarnation, bumped to refute suspicion
+    private int nextSeq; //sequence number of our next ping
+    private Probe probe; //the probe in flight, if any
+
+    /**
+     * What we know about one other member.
+     */
+    private static class Member {
+        final int nodeId;
+        final InetSocketAddress address;
+        byte state = ALIVE;
+        int incarnation;
+        long suspectedAt; //when the member became suspect
+        boolean filesKnown; //whether we have learned its file list
+
+        Member(int nodeId, InetSocketAddress address) {
+            this.nodeId = nodeId;
+            this.address = address;
+        }
+    }
+
+    /**
+     * A membership update waiting to be piggybacked.
+     */
+    private static class Update {
+        final int nodeId;
+        final byte state;
+        final int incarnation;
+        final String files; //null unless the update carries a file list
+        int transmissions; //how many times it has been sent
+
+        Update(int nodeId, byte state, int incarnation, String files) {
+            this.nodeId = nodeId;
+            this.state = state;
+            this.incarnation = incarnation;
+            this.files = files;
+        }
+    }
+
+    /**
+     * The probe we sent in the current protocol period.
+     */
+    private static class Probe {
+        final Member target;
+        final int seq;
+        boolean acked;
+
+        Probe(Member target, int seq) {
+            this.target = target;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * A ping we send on behalf of another member's ping-req.
+     */
+    private static class Relay {
+        final Member requester;
+        final int requesterSeq;
+        final long createdAt;
+
+        Relay(Member requester, int requesterSeq, long createdAt) {
+            this.requester = requester;
+            this.requesterSeq = requesterSeq;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * This function builds the membership list from the config file.
+     *
+     * @param nodeId the node running this instance
+     * @param socket the peer's bound socket, used for all SWIM traffic
+     * @param configLoader the registry member status and files are written to
+     */
+    public SwimMembership(int nodeId, DatagramSocket socket, ConfigLoader configLoader) {
+        this.nodeId = nodeId;
+        this.socket = socket;
+        this.configLoader = configLoader;
+        syncMembers();
+        //announce ourselves, with our files, to whoever hears first
+        gossip.put(nodeId, new Update(nodeId, ALIVE, incarnation, ownFiles()));
+    }
+
+    /**
+     * This function checks whether a received frame belongs to SWIM.
+     *
+     * @param buf the received frame
+     * @return true if it should be passed to {@link #receive}
+     */
+    public static boolean isSwimFrame(ByteBuffer buf) {
+        if (buf.remaining() < 2 || buf.get(buf.position()) != Packet.WIRE_VERSION) {
+            return false;
+        }
+        byte kind = buf.get(buf.position() + 1);
+        return kind == Packet.KIND_PING || kind == Packet.KIND_PING_REQ || kind == Packet.KIND_PING_ACK;
+    }
+
+    /**
+     * This function runs the protocol periods until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long periodEnd = System.currentTimeMillis() + PERIOD_MS;
+                syncMembers();
+                runProbe(periodEnd);
+                expireSuspects();
+                long rest = periodEnd - System.currentTimeMillis();
+                if (rest > 0) {
+                    Thread.sleep(rest);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This function brings the member list in line with the registry after
+     * the config file was reloaded: new peers join as alive, removed ones
+     * are dropped and moved ones are probed at their new address.
+     */
+    private synchronized void syncMembers() {
+        int version = configLoader.getMembershipVersion();
+        if (version == membersVersion) {
+            return;
+        }
+        Map<Integer, ConfigLoader.NodeInfo> nodes = configLoader.getNodes();
+        members.keySet().removeIf(id -> !nodes.containsKey(id));
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : nodes.entrySet()) {
+            if (entry.getKey() != nodeId) {
+                ConfigLoader.NodeInfo node = entry.getValue();
+                InetSocketAddress address = new InetSocketAddress(node.ip, node.port);
+                Member member = members.get(entry.getKey());
+                if (member == null || !member.address.equals(address)) {
+                    members.put(entry.getKey(), new Member(entry.getKey(), address));
+                }
+            }
+        }
+        probeOrder.clear(); //reshuffled from the new members on the next probe
+        probeIndex = 0;
+        membersVersion = version;
+    }
+
+    /**
+     * This function probes one member: a direct ping, then ping-reqs through
+     * other members, then suspicion if nothing came back.
+     *
+     * @param periodEnd when the current protocol period ends
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void runProbe(long periodEnd) throws InterruptedException {
+        Probe current;
+        synchronized (this) {
+            Member target = nextTarget();
+            if (target == null) {
+                return;
+            }
+            current = new Probe(target, nextSeq++);
+            probe = current;
+            send(target, Packet.KIND_PING, current.seq, target.nodeId, target.filesKnown ? 0 : WANT_FILES);
+            awaitAck(current, System.currentTimeMillis() + ACK_TIMEOUT_MS);
+            if (!current.acked) {
+                for (Member helper : randomMembers(INDIRECT_PROBES, target)) {
+                    send(helper, Packet.KIND_PING_REQ, current.seq, target.nodeId, 0);
+                }
+                awaitAck(current, periodEnd);
+            }
+            probe = null;
+            if (!current.acked && target.state == ALIVE) {
+                apply(new Update(target.nodeId, SUSPECT, target.incarnation, null));
+            }
+        }
+    }
+
+    /**
+     * This function waits on the monitor until the probe is acked or the deadline passes.
+     */
+    private void awaitAck(Probe current, long deadline) throws InterruptedException {
+        long wait;
+        while (!current.acked && (wait = deadline - System.currentTimeMillis()) > 0) {
+            wait(wait);
+        }
+    }
+
+    /**
+     * This function declares suspects dead once their suspicion has lasted
+     * long enough for a refutation to spread, and drops stale relays.
+     */
+    private synchronized void expireSuspects() {
+        long now = System.currentTimeMillis();
+        long suspicionMs = (long) PERIOD_MS * LAMBDA * log2(members.size() + 1);
+        for (Member member : members.values()) {
+            if (member.state == SUSPECT && now - member.suspectedAt > suspicionMs) {
+                apply(new Update(member.nodeId, DEAD, member.incarnation, null));
+                Metrics.TIMEOUTS_EXPIRED.increment();
+            }
+        }
+        relays.values().removeIf(relay -> now - relay.createdAt > PERIOD_MS);
+    }
+
+    /**
+     * This function handles a received SWIM frame.
+     *
+     * @param buf the frame
+     */
+    public synchronized void receive(ByteBuffer buf) {
+        byte kind;
+        int from, seq, target, flags;
+        try {
+            buf.get(); //wire version
+            kind = buf.get();
+            from = buf.getInt();
+            seq = buf.getInt();
+            target = buf.getInt();
+            flags = buf.get();
+            int count = buf.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                int id = buf.getInt();
+                byte state = buf.get();
+                int inc = buf.getInt();
+                String files = Packet.getUtf8(buf, buf.getInt());
+                apply(new Update(id, state, inc, files));
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Dropped malformed SWIM message: " + e.getMessage());
+            return;
+        }
+
+        Member sender = members.get(from);
+        if (sender == null) {
+            return;
+        }
+        if (sender.state == DEAD) {
+            //it is talking to us, so tell it we think it is dead and let it refute
+            gossip.put(sender.nodeId, new Update(sender.nodeId, DEAD, sender.incarnation, null));
+        }
+        if ((flags & WANT_FILES) != 0) {
+            Update queued = gossip.get(nodeId);
+            if (queued == null) {
+                Update reply = new Update(nodeId, ALIVE, incarnation, ownFiles());
+                reply.transmissions = maxTransmissions() - 1; //only needed by the asker
+                gossip.put(nodeId, reply);
+            } else if (queued.files == null) {
+                //keep spreading a queued update as far as it was going, now with our files
+                Update reply = new Update(nodeId, ALIVE, incarnation, ownFiles());
+                reply.transmissions = queued.transmissions;
+                gossip.put(nodeId, reply);
+            }
+        }
+
+        switch (kind) {
+            case Packet.KIND_PING:
+                send(sender, Packet.KIND_PING_ACK, seq, nodeId, 0);
+                break;
+            case Packet.KIND_PING_REQ:
+                Member member = members.get(target);
+                if (member != null) {
+                    int relaySeq = nextSeq++;
+                    relays.put(relaySeq, new Relay(sender, seq, System.currentTimeMillis()));
+                    send(member, Packet.KIND_PING, relaySeq, target, 0);
+                }
+                break;
+            case Packet.KIND_PING_ACK:
+                Relay relay = relays.remove(seq);
+                if (relay != null) {
+                    send(relay.requester, Packet.KIND_PING_ACK, relay.requesterSeq, target, 0);
+                } else if (probe != null && probe.seq == seq && probe.target.nodeId == target) {
+                    probe.acked = true;
+                    notifyAll();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * This function re-announces our file listing after it changed, under a
+     * new incarnation so it spreads like any other fresh update.
+     */
+    public synchronized void filesChanged() {
+        incarnation++;
+        gossip.put(nodeId, new Update(nodeId, ALIVE, incarnation, ownFiles()));
+    }
+
+    /**
+     * This function applies a membership update using the SWIM precedence
+     * rules and queues it for dissemination if it changed anything.
+     */
+    private void apply(Update update) {
+        if (update.nodeId == nodeId) {
+            if (update.state != ALIVE && update.incarnation >= incarnation) {
+                //someone suspects us, refute with a newer incarnation
+                incarnation = update.incarnation + 1;
+                gossip.put(nodeId, new Update(nodeId, ALIVE, incarnation, ownFiles())); //replaces any queued listing
+            }
+            return;
+        }
+        Member member = members.get(update.nodeId);
+        if (member == null) {
+            return;
+        }
+        if (update.files != null && update.incarnation >= member.incarnation) {
+            //files from an older incarnation are stale, a newer listing may already be applied
+            member.filesKnown = true;
+            configLoader.setNodeFiles(member.nodeId, update.files.isEmpty() ? Collections.emptyList()
+                    : Arrays.asList(update.files.split(",")));
+        }
+        if (!overrides(update, member)) {
+            return;
+        }
+
+        byte oldState = member.state;
+        member.state = update.state;
+        member.incarnation = update.incarnation;
+        if (update.state == SUSPECT && oldState != SUSPECT) {
+            member.suspectedAt = System.currentTimeMillis();
+        }
+        gossip.put(member.nodeId, new Update(member.nodeId, update.state, update.incarnation, update.files));
+        if (oldState != update.state) {
+            System.out.println("Peer " + member.nodeId + " is now " + stateName(update.state));
+            configLoader.setNodeStatus(member.nodeId, update.state == DEAD ? "Offline" : "Online");
+        }
+    }
+
+    /**
+     * This function decides whether an update is newer than what we know.
+     */
+    private static boolean overrides(Update update, Member member) {
+        switch (update.state) {
+            case ALIVE:
+                return update.incarnation > member.incarnation;
+            case SUSPECT:
+                return member.state == DEAD ? update.incarnation > member.incarnation
+                        : update.incarnation > member.incarnation
+                          || (update.incarnation == member.incarnation && member.state == ALIVE);
+            case DEAD:
+                return member.state != DEAD || update.incarnation > member.incarnation;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * This function encodes a SWIM message with piggybacked updates and sends it.
+     */
+    private void send(Member to, byte kind, int seq, int target, int flags) {
+        List<Update> carried = pickUpdates();
+        int size = 2 + 4 + 4 + 4 + 1 + 1;
+        for (Update update : carried) {
+            size += 4 + 1 + 4 + 4 + Packet.utf8Length(update.files);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(Packet.WIRE_VERSION).put(kind).putInt(nodeId).putInt(seq).putInt(target)
+           .put((byte) flags).put((byte) carried.size());
+        for (Update update : carried) {
+            buf.putInt(update.nodeId).put(update.state).putInt(update.incarnation);
+            if (update.files == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(Packet.utf8Length(update.files));
+                Packet.putUtf8(buf, update.files);
+            }
+        }
+        try {
+            for (ByteBuffer datagram : FragmentLayer.split(buf.array())) {
+                socket.send(new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(),
+                        datagram.remaining(), to.address));
+                Metrics.DATAGRAMS_SENT.increment();
+            }
+        } catch (IOException e) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Failed to send to peer " + to.nodeId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * This function picks the least-sent updates to piggyback and retires
+     * those that have been sent often enough.
+     */
+    private List<Update> pickUpdates() {
+        List<Update> pending = new ArrayList<>(gossip.values());
+        pending.sort((a, b) -> Integer.compare(a.transmissions, b.transmissions));
+        List<Update> carried = pending.subList(0, Math.min(MAX_PIGGYBACK, pending.size()));
+        int limit = maxTransmissions();
+        for (Update update : carried) {
+            if (++update.transmissions >= limit) {
+                gossip.remove(update.nodeId, update);
+            }
+        }
+        return carried;
+    }
+
+    /**
+     * This function returns the next probe target in a shuffled round robin,
+     * which bounds the time until every member is probed.
+     */
+    private Member nextTarget() {
+        for (int attempts = 0; attempts <= members.size(); attempts++) {
+            if (probeIndex >= probeOrder.size()) {
+                probeOrder.clear();
+                probeOrder.addAll(members.values());
+                Collections.shuffle(probeOrder, random);
+                probeIndex = 0;
+                if (probeOrder.isEmpty()) {
+                    return null;
+                }
+            }
+            Member candidate = probeOrder.get(probeIndex++);
+            if (candidate.state != DEAD || random.nextInt(10) == 0) { //now and then check if the dead came back
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This function picks up to k random non-dead members other than the excluded one.
+     */
+    private List<Member> randomMembers(int k, Member excluded) {
+        List<Member> candidates = new ArrayList<>();
+        for (Member member : members.values()) {
+            if (member != excluded && member.state != DEAD) {
+                candidates.add(member);
+            }
+        }
+        Collections.shuffle(candidates, random);
+        return candidates.subList(0, Math.min(k, candidates.size()));
+    }
+
+    private int maxTransmissions() {
+        return LAMBDA * log2(members.size() + 1);
+    }
+
+    private String ownFiles() {
+        return String.join(",", configLoader.getNodes().get(nodeId).files);
+    }
+
+    private static int log2(int n) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n));
+    }
+
+    private static String stateName(byte state) {
+        return state == ALIVE ? "Alive" : state == SUSPECT ? "Suspect" : "Dead";
+    }
+}
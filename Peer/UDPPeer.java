@@ -5,28 +5,37 @@
  *@author Jacob Levin
  *@version 1.0
 */
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 public class UDPPeer{
-    private DatagramSocket socket = null;
+    private DatagramChannel channel = null; //the one bound channel all traffic goes through
+    private DatagramSocket socket = null; //blocking socket view of the channel
     private ExecutorService executor;
     private ConfigLoader configLoader = new ConfigLoader();
     private int nodeId; //the node id of the computer this is running on
+    private FragmentLayer fragments = new FragmentLayer(); //reassembles packets split across datagrams
+    private SwimMembership swim; //SWIM membership when running in gossip mode, otherwise null
+    private FileTransferService transfers; //serves our shared files to other nodes
+    private SharedDirectory shared; //catalog of our shared files, kept in step with the directory
+    private PhiAccrualDetector failureDetector = new PhiAccrualDetector(); //decides how long each peer may stay quiet
+    private static final long HEARTBEAT_MS = Long.getLong("node.heartbeatMs", 10_000); //idle time between heartbeats
+    private static final long DETECTOR_TICK_MS = 100; //how often peers are checked against the failure detector
+    private static final long STATUS_PRINT_MS = 30_000; //how often the peer table is printed
     /**
      * This function builds an instance of UDPPeer.
      * 
@@ -37,43 +46,145 @@ public class UDPPeer{
     public UDPPeer(int nodeId, ConfigLoader.NodeInfo nodeInfo){
     	try{
             this.nodeId = nodeId;
-    		//create the socket assuming the server is listening on port 9876
-			socket = new DatagramSocket(nodeInfo.port);
-            //make a pool of 3 threads
-            executor = Executors.newFixedThreadPool(3);
-		} catch (SocketException e) {
+    		//bind the channel to this node's port
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(nodeInfo.port));
+			socket = channel.socket();
+            transfers = new FileTransferService(FileTransferService.SHARED_DIR, nodeInfo.port + FileTransferService.PORT_OFFSET);
+            shared = new SharedDirectory(nodeId, FileTransferService.SHARED_DIR, nodeInfo.files);
+            configLoader.setNodeFiles(nodeId, shared.getFiles());
+            //make a pool of 6 threads, or a virtual thread per task
+            executor = TaskExecutors.newNodeExecutor(6);
+            //forget the heartbeat history of peers removed from the config
+            configLoader.addListener((id, before, after) -> {
+                if (after == null) {
+                    failureDetector.remove(id);
+                }
+            });
+            Metrics.registryGauges(configLoader);
+            Metrics.start("peer-" + nodeId);
+		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
     }
 
     /**
-     * This function serializes outgoing data.
-     * 
-     * @param obj the object that is to be serialized
-     * @return The object converted into a byte array
-     * @throws IOException when the object fails to serialize
+     * This function receives packets until the socket fails, handing SWIM
+     * traffic to the membership protocol and file listings to the hash map.
+     */
+    private void listen() {
+        try {
+            byte[] incomingData = new byte[Packet.MAX_DATAGRAM];
+            while (true) {
+                //receive any incoming packets
+                DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
+                if (swim == null && Metrics.TRACE) {
+                    System.out.println("Listening...");
+                }
+                socket.receive(incomingPacket);
+                Metrics.DATAGRAMS_RECEIVED.increment();
+
+                //put fragmented packets back together before decoding
+                ByteBuffer frame = ByteBuffer.wrap(incomingPacket.getData(), incomingPacket.getOffset(),
+                        incomingPacket.getLength());
+                if (FragmentLayer.isFragment(frame)) {
+                    frame = fragments.accept(frame, incomingPacket.getSocketAddress());
+                    if (frame == null) {
+                        continue;
+                    }
+                }
+
+                //membership traffic is handled by SWIM
+                if (swim != null && SwimMembership.isSwimFrame(frame)) {
+                    swim.receive(frame);
+                    continue;
+                }
+
+                //extract the custom data structure form the incoming packet
+                Object receivedObject;
+                long decodeStart = System.nanoTime();
+                try {
+                    receivedObject = Packet.decode(frame);
+                } catch (IOException e) {
+                    Metrics.DATAGRAMS_DROPPED.increment();
+                    System.err.println("Dropped malformed packet: " + e.getMessage());
+                    continue;
+                }
+                Metrics.DECODE_NANOS.record(System.nanoTime() - decodeStart);
+                if (receivedObject instanceof Packet.FilesDelta) {
+                    Packet.FilesDelta delta = (Packet.FilesDelta) receivedObject;
+                    if (configLoader.applyFilesDelta(delta.getNodeId(), "Online", delta.getBaseVersion(),
+                            delta.getVersion(), delta.getAdded(), delta.getRemoved())) {
+                        failureDetector.heard(delta.getNodeId()); //sent on change, not on a period
+                        System.out.println("Peer " + delta.getNodeId() + " added " + delta.getAdded()
+                                + ", removed " + delta.getRemoved());
+                    } else {
+                        sendFrame(Packet.encode(new Packet.FilesResync(0)), incomingPacket.getSocketAddress());
+                    }
+                    continue;
+                }
+                if (receivedObject instanceof Packet.Heartbeat) {
+                    Packet.Heartbeat heartbeat = (Packet.Heartbeat) receivedObject;
+                    if (configLoader.hasCatalogVersion(heartbeat.getNodeId(), heartbeat.getVersion())) {
+                        failureDetector.heartbeat(heartbeat.getNodeId());
+                        configLoader.setNodeStatus(heartbeat.getNodeId(), "Online");
+                    } else {
+                        //we missed a change or just started, ask for the whole listing
+                        sendFrame(Packet.encode(new Packet.FilesResync(0)), incomingPacket.getSocketAddress());
+                    }
+                    continue;
+                }
+                if (receivedObject instanceof Packet.FilesResync) {
+                    sendFrame(listingFrame(), incomingPacket.getSocketAddress());
+                    continue;
+                }
+                if (!(receivedObject instanceof Packet)) {
+                    Metrics.DATAGRAMS_DROPPED.increment();
+                    System.err.println("Invalid packet format received.");
+                    continue;
+                }
+                Packet packet = (Packet) receivedObject;
+
+                //set the status and files in the hashmap to the corresponding node
+                if (Metrics.TRACE) {
+                    System.out.println("Received message from client: " + packet);
+                    System.out.println("Client Details: PORT " + incomingPacket.getPort()
+                            + ", IP Address: " + incomingPacket.getAddress()
+                            + ", File Listing: " + packet.getData());
+                }
+                failureDetector.heartbeat(packet.getNodeId());
+                configLoader.setNodeStatus(packet.getNodeId(), "Online");
+                configLoader.setNodeFiles(packet.getNodeId(), Arrays.asList(packet.getData().split(",")));
+                configLoader.forgetCatalogVersion(packet.getNodeId());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This function encodes our whole file listing, as a snapshot delta or, on the legacy wire, as the legacy packet
+     *
+     * @return the encoded frame
+     * @throws IOException if the legacy encoder fails
      */
-    private byte[] serialize(Object obj) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(obj);
-        oos.flush();
-        return bos.toByteArray();
+    private byte[] listingFrame() throws IOException {
+        return Packet.isLegacyWire() ? Packet.encode(shared.legacyPacket()) : Packet.encode(shared.snapshot());
     }
 
     /**
-     * This function deserializes incoming data.
-     * 
-     * @param data the byte array that is to be turned back into an object
-     * @return The byte array converted back into an object
-     * @throws IOException for any of the usual input/output exceptions
-     * @throws ClassNotFoundException when the class of a serialized object cannot be found
+     * This function sends a frame to one address, in fragments if it is too big for one datagram
+     *
+     * @param frame the encoded frame
+     * @param target where to send it
+     * @throws IOException if a datagram cannot be sent
      */
-    private Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return ois.readObject();
+    private void sendFrame(byte[] frame, SocketAddress target) throws IOException {
+        for (ByteBuffer datagram : FragmentLayer.split(frame)) {
+            channel.send(datagram, target);
+            Metrics.DATAGRAMS_SENT.increment();
+        }
     }
 
     /**
@@ -87,92 +198,67 @@ public class UDPPeer{
      */
     public void createAndListenSocket() {
         //listens for incoming packets
-        Runnable listenerTask = () -> {
-            try {
-                byte[] incomingData = new byte[1024];
-                while (true) {
-                    //receive any incoming packets
-                    DatagramPacket incomingPacket = new DatagramPacket(incomingData, incomingData.length);
-                    System.out.println("Listening...");
-                    socket.receive(incomingPacket);
-
-                    //extract the custom data structure form the incoming packet
-                    Packet packet = (Packet) deserialize(incomingPacket.getData());
+        Runnable listenerTask = this::listen;
 
-                    //set the status and files in the hashmap to the corresponding node
-                    System.out.println("Received message from client: " + packet);
-                    System.out.println("Client Details: PORT " + incomingPacket.getPort()
-                            + ", IP Address: " + incomingPacket.getAddress()
-                            + ", File Listing: " + packet.getData());
-                    configLoader.setNodeStatus(packet.getNodeId(), "Online");
-                    configLoader.setNodeFiles(packet.getNodeId(), Arrays.asList(packet.getData().split(",")));
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-            }
-        };
-
-        //sends to each other peer a packet after every 0-30 secs
+        //sends each other peer our file changes as they happen, and a heartbeat while nothing changes
         Runnable sendTask = () -> {
-            SecureRandom rand = new SecureRandom();
-            int seconds = rand.nextInt(0,31);
-            while(true){
-                //wait 0-30 seconds
-                try {
-                    TimeUnit.SECONDS.sleep(seconds);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                try {
-                    //send to a packet with corresponding files to each other peer
-                    for(int i=1; i <= configLoader.getNodes().size(); i++){
-                        if(i != this.nodeId){
-                            //define variables
-                            Packet packet;
-                            byte version = 0;
-                            String fileList = String.join(",", configLoader.getNodes().get(nodeId).files);
-                            int dataLength = fileList.length();
-
-                            packet = new Packet(version, this.nodeId, dataLength, fileList);
-                            byte[] data = serialize(packet); //serialize the packet
-                            DatagramSocket Socket = new DatagramSocket();
-                            InetAddress IPAddress = InetAddress.getByName(configLoader.getNodes().get(i).ip); //get ip from hashmap
-                            DatagramPacket sendPacket = new DatagramPacket(data, data.length, IPAddress, configLoader.getNodes().get(i).port); //put the custom data structure in the datagramsocket
-                            Socket.send(sendPacket);
-                            System.out.println("Message sent to peer " + i);
-                            Socket.close();
+            PeerSendPipeline pipeline = new PeerSendPipeline(nodeId, channel, configLoader,
+                    TaskExecutors.isVirtual() ? TaskExecutors.newPerTaskExecutor() : null); //a sender per peer on virtual threads
+            try {
+                int peers = pipeline.broadcast(listingFrame());
+                System.out.println("File listing sent to " + peers + " peers");
+                while (true) {
+                    Packet.FilesDelta change = shared.poll(HEARTBEAT_MS);
+                    if (change != null) {
+                        configLoader.setNodeFiles(nodeId, shared.getFiles());
+                    }
+                    try {
+                        if (Packet.isLegacyWire()) {
+                            peers = pipeline.broadcast(listingFrame()); //legacy peers only take the full list, as the heartbeat
+                            if (change != null) {
+                                System.out.println("File listing sent to " + peers + " peers");
+                            }
+                        } else if (change != null) {
+                            peers = pipeline.broadcast(Packet.encode(change));
+                            System.out.println("File changes sent to " + peers + " peers");
+                        } else {
+                            pipeline.broadcast(Packet.encode(new Packet.Heartbeat(nodeId, shared.getVersion())));
                         }
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
                 }
-                catch (UnknownHostException e) {
-                    e.printStackTrace();
-                } 
-                catch (SocketException e) {
-                    e.printStackTrace();
-                } 
-                catch (IOException e) {
-                    e.printStackTrace();
-                }
-                seconds = rand.nextInt(0,31);//randomly generate next interval
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); //node is shutting down
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         };
 
         Runnable heartbeatTask = () -> {
-            //timer for each other peer
+            //marks each other peer offline once the failure detector suspects it
             try {
+                configLoader.setNodeStatus(nodeId, "Online");
+                long nextPrint = System.currentTimeMillis() + STATUS_PRINT_MS;
                 while (true) {
-                    
-                    //set all node statuses in hashmap to Offline
-                    for(int i=1; i <= configLoader.getNodes().size(); i++){
-                        if(i != this.nodeId){
+                    for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+                        int i = entry.getKey();
+                        if (i != this.nodeId && !"Offline".equals(entry.getValue().status)
+                                && !failureDetector.isAvailable(i)) {
                             configLoader.setNodeStatus(i, "Offline");
-                        }else{
-                            configLoader.setNodeStatus(i, "Online");
+                            if (failureDetector.phi(i) >= PhiAccrualDetector.THRESHOLD) {
+                                Metrics.TIMEOUTS_EXPIRED.increment(); //went quiet, rather than never heard from
+                            }
                         }
                     }
-                    Thread.sleep(30000);
-                    for(int i=1; i <= configLoader.getNodes().size(); i++){
-                        System.out.println("Server " + i + ": " + configLoader.getNodes().get(i).status);
+                    Thread.sleep(DETECTOR_TICK_MS);
+                    if (System.currentTimeMillis() >= nextPrint) {
+                        nextPrint += STATUS_PRINT_MS;
+                        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+                            int i = entry.getKey();
+                            String suspicion = (i == nodeId) ? "" : String.format(" (phi %.1f)", failureDetector.phi(i));
+                            System.out.println("Server " + i + ": " + entry.getValue().status + suspicion);
+                        }
                     }
                 }
             } catch (InterruptedException e) {
@@ -181,17 +267,99 @@ public class UDPPeer{
             }
         };
         //execute runnables
+        executor.execute(transfers);
+        executor.execute(shared);
         executor.execute(heartbeatTask);
         executor.execute(listenerTask);
         executor.execute(sendTask);
+        executor.execute(configLoader::watch);
         executor.shutdown();
         
     }
 
+    /**
+     * This function runs the peer in SWIM gossip mode: the listener plus the
+     * membership protocol, instead of the all-to-all sender and the blanket
+     * Offline timer.
+     */
+    public void createAndListenSocketSwim() {
+        swim = new SwimMembership(nodeId, socket, configLoader);
+        configLoader.setNodeStatus(nodeId, "Online");
+        executor.execute(transfers);
+        executor.execute(shared);
+        executor.execute(this::listen);
+        executor.execute(swim);
+        executor.execute(configLoader::watch);
+        //gossip our file listing again whenever the shared directory changes
+        executor.execute(() -> {
+            try {
+                while (true) {
+                    shared.poll(Long.MAX_VALUE);
+                    configLoader.setNodeFiles(nodeId, shared.getFiles());
+                    swim.filesChanged();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * This function downloads a file from another node into the download directory,
+     * fetching only the blocks that differ from any copy already there
+     *
+     * @param sourceId the node to download from
+     * @param fileName the name of the file on that node
+     * @return where the file was written
+     * @throws IOException if the node is unknown, does not have the file, or the transfer fails
+     */
+    public Path downloadFile(int sourceId, String fileName) throws IOException {
+        ConfigLoader.NodeInfo source = configLoader.getNodes().get(sourceId);
+        if (source == null) {
+            throw new IOException("No configuration found for Node " + sourceId);
+        }
+        Files.createDirectories(FileTransferService.DOWNLOAD_DIR);
+        Path destination = FileTransferService.DOWNLOAD_DIR.resolve(Path.of(fileName).getFileName());
+        DeltaSync.Result result = DeltaSync.sync(FileTransferService.transferAddress(source), fileName, destination);
+        System.out.println("Reused " + result.getReusedBytes() + " bytes locally, fetched " + result.getFetchedBytes());
+        return destination;
+    }
+
+    /**
+     * This function downloads a file from every online peer listing it at once
+     *
+     * @param fileName the name of the file
+     * @return where the file was written
+     * @throws IOException if no online peer lists the file or the download fails
+     */
+    public Path swarmDownload(String fileName) throws IOException {
+        Map<Integer, InetSocketAddress> holders = new TreeMap<>();
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+            ConfigLoader.NodeInfo node = entry.getValue();
+            if (entry.getKey() != nodeId && "Online".equals(node.status) && node.files.contains(fileName)) {
+                holders.put(entry.getKey(), FileTransferService.transferAddress(node));
+            }
+        }
+        if (holders.isEmpty()) {
+            throw new IOException("No other online peer lists " + fileName);
+        }
+        holders = DeltaSync.sameContentHolders(fileName, holders); //never mix two versions of the file
+        if (holders.isEmpty()) {
+            throw new IOException("No peer listing " + fileName + " is serving it");
+        }
+        Files.createDirectories(FileTransferService.DOWNLOAD_DIR);
+        Path destination = FileTransferService.DOWNLOAD_DIR.resolve(Path.of(fileName).getFileName());
+        SwarmDownload swarm = new SwarmDownload(fileName, holders, destination);
+        swarm.run();
+        System.out.println("Bytes from each peer: " + swarm.bytesByHolder());
+        return destination;
+    }
+
     /**
      * The function that runs first
      * 
-     * @param args
+     * @param args pass --swim to use SWIM gossip membership instead of all-to-all sends
      * @throws NumberFormatException for if the user inputs a non-number
      */
     public static void main(String[] args) {
@@ -199,18 +367,18 @@ public class UDPPeer{
         ConfigLoader configLoader = new ConfigLoader();
         int nodeId;
 
-        //prompts user for a node ID that is between 1 and 6
+        //prompts user for a node ID listed in the config file
         while (true) {
-            System.out.print("Enter a Node ID (1-6): ");
+            System.out.print("Enter a Node ID: ");
             try {
                 nodeId = Integer.parseInt(scanner.nextLine().trim());
-                if (nodeId >= 1 && nodeId <= 6) {
+                if (configLoader.getNodes().containsKey(nodeId)) {
                     break;
                 } else {
-                    System.err.println("Invalid Node ID! Please enter a number between 1 and 6.");
+                    System.err.println("Invalid Node ID! Please enter a node listed in nodes.config.");
                 }
             } catch (NumberFormatException e) {
-                System.err.println("Invalid input! Please enter a number between 1 and 6.");
+                System.err.println("Invalid input! Please enter a number.");
             }
         }
 
@@ -223,6 +391,32 @@ public class UDPPeer{
 
         // Create and start the UDP client
         UDPPeer server = new UDPPeer(nodeId, nodeInfo);
-        server.createAndListenSocket();
+        if (Arrays.asList(args).contains("--swim")) {
+            server.createAndListenSocketSwim();
+        } else {
+            server.createAndListenSocket();
+        }
+
+        //commands typed while the peer runs, e.g. "get 2 file4.mp4"
+        while (scanner.hasNextLine()) {
+            String[] command = scanner.nextLine().trim().split("\\s+", 3);
+            boolean swarm = command.length == 2 && command[0].equals("swarm");
+            if (swarm || (command.length == 3 && command[0].equals("get"))) {
+                try {
+                    long start = System.nanoTime();
+                    Path saved = swarm ? server.swarmDownload(command[1])
+                            : server.downloadFile(Integer.parseInt(command[1]), command[2]);
+                    long ms = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+                    long bytes = Files.size(saved);
+                    System.out.println("Saved " + saved + " (" + bytes + " bytes, " + (bytes / 1024 * 1000 / ms) + " KB/s)");
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid Node ID: " + command[1]);
+                } catch (IOException e) {
+                    System.err.println("Download failed: " + e.getMessage());
+                }
+            } else if (!command[0].isEmpty()) {
+                System.err.println("Unknown command. Usage: get <node id> <file> | swarm <file>");
+            }
+        }
     }
 }
@@ -0,0 +1,55 @@
+/**
+ * BufferPool hands out reusable direct ByteBuffers so the receive path does
+ * not allocate a new buffer for every datagram.
+ *
+ * <p>Buffers are created up front and recycled through a bounded queue. If
+ * the pool runs dry a fresh buffer is allocated so callers never block, and
+ * surplus buffers are simply dropped on release.</p>
+ */
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class BufferPool {
+    private final BlockingQueue<ByteBuffer> free; // Buffers ready to be handed out
+    private final int bufferSize; // Capacity of every buffer in the pool
+
+    /**
+     * Constructs a pool and preallocates all of its buffers.
+     *
+     * @param count      The number of buffers to keep in the pool
+     * @param bufferSize The capacity of each buffer in bytes
+     */
+    public BufferPool(int count, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(count);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < count; i++) {
+            free.offer(ByteBuffer.allocateDirect(bufferSize));
+        }
+    }
+
+    /**
+     * Takes a cleared buffer from the pool.
+     *
+     * @return A buffer ready to be filled
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool once the caller is done with it.
+     *
+     * @param buf The buffer to recycle
+     */
+    public void release(ByteBuffer buf) {
+        if (buf != null && buf.isDirect() && buf.capacity() == bufferSize) {
+            free.offer(buf);
+        }
+    }
+}
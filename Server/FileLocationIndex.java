@@ -0,0 +1,145 @@
+/**
+ * FileLocationIndex maps each advertised file name to the set of nodes
+ * that list it, so "who has file X" is a single hash lookup instead of a
+ * scan over every node's file list.
+ *
+ * <p>The index registers itself as a listener on the registry and applies
+ * only the difference between a node's old and new file lists. Indexes
+ * built on the set of distinct names, such as {@link FileSearchIndex}, can
+ * listen for names entering and leaving the catalog.</p>
+ */
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class FileLocationIndex implements ConfigLoader.NodeListener {
+    private final Map<String, Set<Integer>> holders = new ConcurrentHashMap<>(); // File name to node IDs
+    private final List<NameListener> nameListeners = new CopyOnWriteArrayList<>(); // Told when names come and go
+
+    /**
+     * Receives the names entering and leaving the catalog.
+     */
+    public interface NameListener {
+        /**
+         * Called when the first node lists a name, while the name is locked.
+         *
+         * @param fileName the new name
+         */
+        void nameAdded(String fileName);
+
+        /**
+         * Called when the last node holding a name drops it, while the name is locked.
+         *
+         * @param fileName the name that left the catalog
+         */
+        void nameRemoved(String fileName);
+    }
+
+    /**
+     * Constructs an index over the current registry and keeps it up to date.
+     *
+     * @param configLoader the registry to index
+     */
+    public FileLocationIndex(ConfigLoader configLoader) {
+        configLoader.addListener(this);
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+            add(entry.getKey(), entry.getValue().files);
+        }
+    }
+
+    /**
+     * Registers a listener for names entering and leaving the catalog, and
+     * replays the names already indexed to it.
+     *
+     * @param listener the listener to add
+     */
+    public void addNameListener(NameListener listener) {
+        nameListeners.add(listener);
+        for (String fileName : holders.keySet()) {
+            holders.computeIfPresent(fileName, (f, nodes) -> {
+                listener.nameAdded(f);
+                return nodes;
+            });
+        }
+    }
+
+    /**
+     * Gets the nodes that list a file.
+     *
+     * @param fileName the exact file name
+     * @return the IDs of the nodes holding it, possibly empty
+     */
+    public Set<Integer> holders(String fileName) {
+        Set<Integer> nodes = holders.get(fileName);
+        return (nodes == null) ? Collections.emptySet() : Collections.unmodifiableSet(nodes);
+    }
+
+    /**
+     * Gets the number of distinct file names in the index.
+     *
+     * @return the number of indexed names
+     */
+    public int size() {
+        return holders.size();
+    }
+
+    @Override
+    public void nodeChanged(int nodeId, ConfigLoader.NodeInfo before, ConfigLoader.NodeInfo after) {
+        FileSet oldFiles = (before == null) ? FileSet.EMPTY : before.files;
+        FileSet newFiles = (after == null) ? FileSet.EMPTY : after.files;
+        if (oldFiles == newFiles) {
+            return; // Status-only change
+        }
+
+        for (String file : oldFiles.minus(newFiles)) {
+            remove(nodeId, file);
+        }
+        for (String file : newFiles.minus(oldFiles)) {
+            add(nodeId, file);
+        }
+    }
+
+    /**
+     * Adds every file of a node to the index.
+     */
+    private void add(int nodeId, List<String> files) {
+        for (String file : files) {
+            add(nodeId, file);
+        }
+    }
+
+    /**
+     * Adds a node to a file's holders. Done inside compute so it cannot race
+     * with the removal of the file's last holder.
+     */
+    private void add(int nodeId, String file) {
+        holders.compute(file, (f, nodes) -> {
+            if (nodes == null) {
+                nodes = ConcurrentHashMap.newKeySet();
+                for (NameListener listener : nameListeners) {
+                    listener.nameAdded(f);
+                }
+            }
+            nodes.add(nodeId);
+            return nodes;
+        });
+    }
+
+    /**
+     * Removes a node from a file's holders, dropping the file once nobody has it.
+     */
+    private void remove(int nodeId, String file) {
+        holders.computeIfPresent(file, (f, nodes) -> {
+            if (!nodes.remove(nodeId) || !nodes.isEmpty()) {
+                return nodes;
+            }
+            for (NameListener listener : nameListeners) {
+                listener.nameRemoved(f);
+            }
+            return null;
+        });
+    }
+}
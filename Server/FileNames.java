@@ -0,0 +1,115 @@
+/**
+ * FileNames is the symbol table of every file name a node process knows,
+ * so each distinct name is stored once however many nodes advertise it
+ * and however often they do.
+ *
+ * <p>A name is interned to a small int ID, and {@link FileSet} keeps a
+ * node's files as a sorted array of those IDs. Each ID carries a count of
+ * the file sets holding it. When the last one is collected the name is
+ * dropped and its ID reused, so names nobody advertises any more do not
+ * pile up in a long-running registry.</p>
+ *
+ * <p>Interning and releasing take one lock; looking a name up by ID takes
+ * none. An ID is only freed once no file set holds it, so a reader that
+ * got the ID from a live file set always finds its name.</p>
+ */
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class FileNames {
+    private static final Map<String, Integer> ids = new HashMap<>(); // ID of each interned name
+    private static volatile String[] names = new String[1024]; // Name of each ID, null when free
+    private static int[] references = new int[1024]; // File sets holding each ID
+    private static int[] free = new int[64]; // IDs released and ready for reuse
+    private static int freeCount; // Number of IDs in free
+    private static int nextId; // Lowest ID never handed out
+
+    private FileNames() {
+    }
+
+    /**
+     * Gets the ID of a name, interning it if it is new, and counts one more
+     * reference to it. Every call must be matched by a {@link #release}.
+     *
+     * @param name the file name
+     * @return its ID
+     */
+    static synchronized int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = (freeCount > 0) ? free[--freeCount] : nextId++;
+            if (id == names.length) {
+                references = Arrays.copyOf(references, id * 2);
+                String[] grown = Arrays.copyOf(names, id * 2);
+                grown[id] = name;
+                names = grown; // Published with the name already in place
+            } else {
+                names[id] = name;
+            }
+            ids.put(name, id);
+        }
+        references[id]++;
+        return id;
+    }
+
+    /**
+     * Counts one more reference to each of some IDs already held.
+     *
+     * @param held the IDs
+     */
+    static synchronized void retain(int[] held) {
+        for (int id : held) {
+            references[id]++;
+        }
+    }
+
+    /**
+     * Drops one reference to each of some IDs, forgetting the names nothing
+     * refers to any more.
+     *
+     * @param held the IDs
+     */
+    static synchronized void release(int[] held) {
+        for (int id : held) {
+            if (--references[id] == 0) {
+                ids.remove(names[id]);
+                names[id] = null;
+                if (freeCount == free.length) {
+                    free = Arrays.copyOf(free, freeCount * 2);
+                }
+                free[freeCount++] = id;
+            }
+        }
+    }
+
+    /**
+     * Gets the name of an ID held by a live file set.
+     *
+     * @param id the ID
+     * @return the interned name
+     */
+    static String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Looks up the ID of a name without interning it.
+     *
+     * @param name the file name
+     * @return its ID, or -1 if no file set holds the name
+     */
+    static synchronized int find(String name) {
+        Integer id = ids.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Gets the number of distinct names held.
+     *
+     * @return the number of interned names
+     */
+    public static synchronized int size() {
+        return ids.size();
+    }
+}
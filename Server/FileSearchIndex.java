@@ -0,0 +1,440 @@
+/**
+ * FileSearchIndex answers glob searches such as {@code report_2025*} or
+ * {@code *.mp4} over every file name in the catalog.
+ *
+ * <p>Names are kept in a radix trie whose edges hold whole label runs, so a
+ * pattern with a literal prefix walks straight to the matching subtree.
+ * Every trie node counts the names below it, which lets a pure prefix
+ * search report its total and skip to a page without visiting the names
+ * before it. Patterns starting with {@code *} are served by a trigram
+ * index instead: the candidates are the names sharing every trigram of
+ * the longest literal piece of the pattern, and only those are matched
+ * against the full pattern. Both indexes are updated one name at a time
+ * as the {@link FileLocationIndex} reports names entering and leaving the
+ * catalog.</p>
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class FileSearchIndex implements FileLocationIndex.NameListener {
+    private final TrieNode root = new TrieNode(""); // Root of the radix trie, with an empty label
+    private final Map<String, Set<String>> trigrams = new HashMap<>(); // Trigram to the names containing it
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); // Searches share, updates are exclusive
+
+    /**
+     * One node of the radix trie. The node stands for the concatenation of
+     * the labels on the path from the root.
+     */
+    private static class TrieNode {
+        String label; // Characters on the edge into this node
+        final TreeMap<Character, TrieNode> children = new TreeMap<>(); // Keyed by first label character
+        boolean terminal; // Whether a name ends here
+        int count; // Names ending in this subtree
+
+        TrieNode(String label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * One page of search results.
+     */
+    public static class Page {
+        private final List<String> names; // Matching names on this page, in order
+        private final int total; // Matching names across all pages
+
+        Page(List<String> names, int total) {
+            this.names = names;
+            this.total = total;
+        }
+
+        /**
+         * Gets the matching names on this page.
+         *
+         * @return the names, sorted
+         */
+        public List<String> getNames() {
+            return names;
+        }
+
+        /**
+         * Gets the number of matching names across all pages.
+         *
+         * @return the total number of matches
+         */
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Constructs a search index over a location index and keeps it up to date.
+     *
+     * @param locations the index whose names should be searchable
+     */
+    public FileSearchIndex(FileLocationIndex locations) {
+        locations.addNameListener(this);
+    }
+
+    @Override
+    public void nameAdded(String fileName) {
+        lock.writeLock().lock();
+        try {
+            if (insert(fileName)) {
+                for (String trigram : trigramsOf(fileName)) {
+                    trigrams.computeIfAbsent(trigram, t -> new HashSet<>()).add(fileName);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void nameRemoved(String fileName) {
+        lock.writeLock().lock();
+        try {
+            if (delete(fileName)) {
+                for (String trigram : trigramsOf(fileName)) {
+                    Set<String> names = trigrams.get(trigram);
+                    names.remove(fileName);
+                    if (names.isEmpty()) {
+                        trigrams.remove(trigram);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of names in the index.
+     *
+     * @return the number of searchable names
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return root.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Searches for the names matching a glob pattern, in which {@code *}
+     * matches any run of characters and {@code ?} any single character.
+     *
+     * @param pattern the glob pattern; a pattern without wildcards is an exact lookup
+     * @param offset  the number of matches to skip
+     * @param limit   the largest number of matches to return
+     * @return the requested page of matches, sorted by name
+     */
+    public Page search(String pattern, int offset, int limit) {
+        offset = Math.max(0, offset);
+        limit = Math.max(0, limit);
+        String prefix = literalPrefix(pattern);
+
+        lock.readLock().lock();
+        try {
+            if (prefix.length() == pattern.length() - 1 && pattern.endsWith("*")) {
+                return prefixPage(prefix, offset, limit); // Pure prefix, served from counts
+            }
+
+            List<String> matches = new ArrayList<>();
+            if (!prefix.isEmpty() || longestLiteral(pattern).length() < 3) {
+                Located start = find(prefix);
+                if (start != null) {
+                    collect(start.node, start.path, pattern, matches);
+                }
+            } else {
+                for (String candidate : trigramCandidates(longestLiteral(pattern))) {
+                    if (matches(pattern, candidate)) {
+                        matches.add(candidate);
+                    }
+                }
+                Collections.sort(matches);
+            }
+
+            int from = Math.min(offset, matches.size());
+            int to = (int) Math.min((long) from + limit, matches.size());
+            return new Page(new ArrayList<>(matches.subList(from, to)), matches.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pages through every name starting with a prefix, skipping whole
+     * subtrees by their counts instead of visiting the names in them.
+     */
+    private Page prefixPage(String prefix, int offset, int limit) {
+        Located start = find(prefix);
+        if (start == null) {
+            return new Page(Collections.emptyList(), 0);
+        }
+        List<String> names = new ArrayList<>();
+        page(start.node, start.path, new int[] { offset }, limit, names);
+        return new Page(names, start.node.count);
+    }
+
+    private void page(TrieNode node, String path, int[] skip, int limit, List<String> out) {
+        if (out.size() >= limit) {
+            return;
+        }
+        if (skip[0] >= node.count) {
+            skip[0] -= node.count; // Whole subtree lies before the page
+            return;
+        }
+        if (node.terminal) {
+            if (skip[0] > 0) {
+                skip[0]--;
+            } else {
+                out.add(path);
+            }
+        }
+        for (TrieNode child : node.children.values()) {
+            page(child, path + child.label, skip, limit, out);
+        }
+    }
+
+    /**
+     * Adds the names below a node that match the pattern, in sorted order.
+     */
+    private void collect(TrieNode node, String path, String pattern, List<String> out) {
+        if (node.terminal && matches(pattern, path)) {
+            out.add(path);
+        }
+        for (TrieNode child : node.children.values()) {
+            collect(child, path + child.label, pattern, out);
+        }
+    }
+
+    /**
+     * Gets the names containing every trigram of a literal, smallest
+     * posting list first so the intersection shrinks quickly.
+     */
+    private Set<String> trigramCandidates(String literal) {
+        List<Set<String>> postings = new ArrayList<>();
+        for (String trigram : trigramsOf(literal)) {
+            Set<String> names = trigrams.get(trigram);
+            if (names == null) {
+                return Collections.emptySet();
+            }
+            postings.add(names);
+        }
+        postings.sort((a, b) -> Integer.compare(a.size(), b.size()));
+
+        Set<String> candidates = new HashSet<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !candidates.isEmpty(); i++) {
+            candidates.retainAll(postings.get(i));
+        }
+        return candidates;
+    }
+
+    /**
+     * A trie node found for a key, along with the full string it stands
+     * for, which may extend past the key when the key ends mid-edge.
+     */
+    private static class Located {
+        final TrieNode node; // Node at or below the end of the key
+        final String path; // String the node stands for
+
+        Located(TrieNode node, String path) {
+            this.node = node;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Finds the highest node whose string starts with a prefix.
+     *
+     * @return the node and its string, or null if no name has the prefix
+     */
+    private Located find(String prefix) {
+        TrieNode node = root;
+        int depth = 0;
+        while (depth < prefix.length()) {
+            TrieNode child = node.children.get(prefix.charAt(depth));
+            if (child == null) {
+                return null;
+            }
+            int common = commonLength(child.label, prefix, depth);
+            if (depth + common == prefix.length()) {
+                return new Located(child, prefix.substring(0, depth) + child.label);
+            }
+            if (common < child.label.length()) {
+                return null;
+            }
+            depth += common;
+            node = child;
+        }
+        return new Located(node, prefix);
+    }
+
+    /**
+     * Inserts a name into the trie.
+     *
+     * @return true if the name was not already present
+     */
+    private boolean insert(String name) {
+        List<TrieNode> path = new ArrayList<>();
+        TrieNode node = root;
+        int depth = 0;
+        while (true) {
+            path.add(node);
+            if (depth == name.length()) {
+                if (node.terminal) {
+                    return false;
+                }
+                node.terminal = true;
+                break;
+            }
+            TrieNode child = node.children.get(name.charAt(depth));
+            if (child == null) {
+                TrieNode leaf = new TrieNode(name.substring(depth));
+                leaf.terminal = true;
+                leaf.count = 1;
+                node.children.put(leaf.label.charAt(0), leaf);
+                break;
+            }
+            int common = commonLength(child.label, name, depth);
+            if (common < child.label.length()) {
+                // Split the edge where the name leaves it
+                TrieNode middle = new TrieNode(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                middle.children.put(child.label.charAt(0), child);
+                middle.count = child.count;
+                node.children.put(middle.label.charAt(0), middle);
+                child = middle;
+            }
+            depth += common;
+            node = child;
+        }
+        for (TrieNode onPath : path) {
+            onPath.count++;
+        }
+        return true;
+    }
+
+    /**
+     * Deletes a name from the trie, merging away nodes left with a single
+     * child and no name of their own.
+     *
+     * @return true if the name was present
+     */
+    private boolean delete(String name) {
+        List<TrieNode> path = new ArrayList<>();
+        TrieNode node = root;
+        int depth = 0;
+        while (depth < name.length()) {
+            path.add(node);
+            TrieNode child = node.children.get(name.charAt(depth));
+            if (child == null || commonLength(child.label, name, depth) < child.label.length()) {
+                return false;
+            }
+            depth += child.label.length();
+            node = child;
+        }
+        if (!node.terminal) {
+            return false;
+        }
+        node.terminal = false;
+        path.add(node);
+        for (TrieNode onPath : path) {
+            onPath.count--;
+        }
+
+        for (int i = path.size() - 1; i > 0; i--) {
+            TrieNode current = path.get(i);
+            TrieNode parent = path.get(i - 1);
+            if (current.count == 0) {
+                parent.children.remove(current.label.charAt(0));
+            } else if (!current.terminal && current.children.size() == 1) {
+                TrieNode only = current.children.firstEntry().getValue();
+                only.label = current.label + only.label;
+                parent.children.put(only.label.charAt(0), only);
+            }
+        }
+        return true;
+    }
+
+    private static int commonLength(String label, String key, int from) {
+        int max = Math.min(label.length(), key.length() - from);
+        int i = 0;
+        while (i < max && label.charAt(i) == key.charAt(from + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Set<String> trigramsOf(String s) {
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= s.length(); i++) {
+            result.add(s.substring(i, i + 3));
+        }
+        return result;
+    }
+
+    /**
+     * Gets the characters of a pattern before its first wildcard.
+     */
+    private static String literalPrefix(String pattern) {
+        int i = 0;
+        while (i < pattern.length() && pattern.charAt(i) != '*' && pattern.charAt(i) != '?') {
+            i++;
+        }
+        return pattern.substring(0, i);
+    }
+
+    /**
+     * Gets the longest run of a pattern without wildcards.
+     */
+    private static String longestLiteral(String pattern) {
+        String longest = "";
+        for (String piece : pattern.split("[*?]")) {
+            if (piece.length() > longest.length()) {
+                longest = piece;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Matches a name against a glob pattern, backtracking only to the most
+     * recent {@code *}.
+     */
+    static boolean matches(String pattern, String name) {
+        int p = 0;
+        int n = 0;
+        int star = -1;
+        int resume = 0;
+        while (n < name.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == name.charAt(n))) {
+                p++;
+                n++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                resume = n;
+            } else if (star >= 0) {
+                p = star + 1;
+                n = ++resume;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
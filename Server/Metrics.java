@@ -0,0 +1,319 @@
+/**
+ * Metrics counts what a node does, cheaply enough to leave on in
+ * production, and exposes the numbers for monitoring.
+ *
+ * <p>Counters are LongAdders, so threads updating them on every datagram
+ * do not contend on one cache line. Latencies go into histograms with
+ * log-linear buckets in the manner of HdrHistogram: every power of two is
+ * split into 16 equal buckets, so any value up to Long.MAX_VALUE is kept
+ * within about 6% in a fixed 960-slot array and recording is one
+ * increment. Gauges are read from the node only when the metrics are.</p>
+ *
+ * <p>Once {@link #start} is called the metrics are published as the
+ * attributes of the MBean {@code p2p:type=Metrics,node=<name>}, and, if
+ * {@code -Dmetrics.port} is set, as plain {@code name value} lines at
+ * {@code http://127.0.0.1:<port>/metrics}, a format Prometheus can
+ * scrape. The HTTP endpoint is off by default because several nodes may
+ * share a host.</p>
+ *
+ * <p>The counters replace the console line nodes used to print for every
+ * packet they received; {@code -Dnode.trace=true} brings those lines back
+ * for debugging.</p>
+ */
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+public class Metrics {
+    private static final int HTTP_PORT = Integer.getInteger("metrics.port", 0); // Port of the HTTP endpoint, 0 for none
+    public static final boolean TRACE = Boolean.getBoolean("node.trace"); // Print a line for every packet received
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>(); // Counters by name
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>(); // Histograms by name
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>(); // Gauges by name
+
+    public static final LongAdder DATAGRAMS_RECEIVED = counter("datagrams_received"); // Datagrams read from the socket
+    public static final LongAdder DATAGRAMS_SENT = counter("datagrams_sent"); // Datagrams handed to the socket
+    public static final LongAdder DATAGRAMS_DROPPED = counter("datagrams_dropped"); // Malformed, unknown or unassembled datagrams
+    public static final LongAdder TIMEOUTS_EXPIRED = counter("timeouts_expired"); // Nodes marked Offline for going quiet
+    public static final Histogram DECODE_NANOS = histogram("decode_nanos"); // Time to decode one received frame
+    public static final Histogram FANOUT_NANOS = histogram("broadcast_fanout_nanos"); // Time to send one broadcast to every node
+
+    private static boolean started; // Whether start has published the metrics
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets the counter with a name, creating it at zero if there is none.
+     *
+     * @param name the metric name
+     * @return the counter
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Gets the histogram with a name, creating it empty if there is none.
+     *
+     * @param name the metric name
+     * @return the histogram
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Adds a metric whose value is read from the node whenever the
+     * metrics are, replacing any gauge with the same name.
+     *
+     * @param name  the metric name
+     * @param value reads the current value
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Adds gauges for the size of a node registry, how many of its nodes
+     * are Online and Offline, and how many distinct file names they share.
+     *
+     * @param configLoader the registry
+     */
+    public static void registryGauges(ConfigLoader configLoader) {
+        gauge("registry_nodes", () -> configLoader.getNodes().size());
+        gauge("nodes_online", () -> countStatus(configLoader, "Online"));
+        gauge("nodes_offline", () -> countStatus(configLoader, "Offline"));
+        gauge("file_names", FileNames::size);
+    }
+
+    private static long countStatus(ConfigLoader configLoader, String status) {
+        long count = 0;
+        for (ConfigLoader.NodeInfo node : configLoader.getNodes().values()) {
+            if (status.equals(node.status)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Publishes the metrics over JMX, and over HTTP if a port is set.
+     * Only the first call has any effect.
+     *
+     * @param node names this node in the MBean, e.g. "server" or "peer-3"
+     */
+    public static synchronized void start(String node) {
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(),
+                    new ObjectName("p2p:type=Metrics,node=" + ObjectName.quote(node)));
+        } catch (JMException e) {
+            System.err.println("Could not register metrics with JMX: " + e.getMessage());
+        }
+        if (HTTP_PORT > 0) {
+            try {
+                HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), HTTP_PORT), 0);
+                http.createContext("/metrics", exchange -> {
+                    byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                http.start();
+                System.out.println("Metrics at http://127.0.0.1:" + HTTP_PORT + "/metrics");
+            } catch (IOException e) {
+                System.err.println("Could not serve metrics on port " + HTTP_PORT + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads every metric. Each histogram appears as its count, mean, 50th,
+     * 90th, 99th and 99.9th percentiles and maximum.
+     *
+     * @return the values by name, in name order
+     */
+    public static Map<String, Long> values() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> histogram.summarize(name, values));
+        return values;
+    }
+
+    /**
+     * Renders every metric as one "name value" line.
+     *
+     * @return the text served over HTTP
+     */
+    static String render() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : values().entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * A histogram of non-negative values, such as durations in nanoseconds.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4; // 2^4 buckets per power of two
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS) << SUB_BITS); // Counts by bucket
+        private final LongAdder count = new LongAdder(); // Values recorded
+        private final LongAdder sum = new LongAdder(); // Total of the values recorded
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0); // Largest value recorded
+
+        /**
+         * Records one value. Negative values count as 0.
+         *
+         * @param value the value
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        /**
+         * Finds the bucket of a value: values below 16 have one each, and
+         * each later power of two is split into 16 buckets.
+         */
+        static int bucketOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // Bits below the sub-bucket bits
+            return ((magnitude + 1) << SUB_BITS) + (int) (value >>> magnitude) - SUB_COUNT;
+        }
+
+        /**
+         * Gets the largest value that falls in a bucket.
+         */
+        static long highestIn(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int magnitude = (bucket >>> SUB_BITS) - 1;
+            long low = (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << magnitude;
+            return low + (1L << magnitude) - 1;
+        }
+
+        /**
+         * Adds this histogram's summary to a map of metric values.
+         *
+         * @param name   the histogram's name, which prefixes each entry
+         * @param values the map to add to
+         */
+        void summarize(String name, Map<String, Long> values) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            long largest = max.get();
+            values.put(name + "_count", total);
+            values.put(name + "_mean", sum.sum() / Math.max(1, count.sum()));
+            values.put(name + "_p50", percentile(counts, total, 0.5, largest));
+            values.put(name + "_p90", percentile(counts, total, 0.9, largest));
+            values.put(name + "_p99", percentile(counts, total, 0.99, largest));
+            values.put(name + "_p999", percentile(counts, total, 0.999, largest));
+            values.put(name + "_max", largest);
+        }
+
+        private static long percentile(long[] counts, long total, double fraction, long largest) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(highestIn(i), largest);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Shows every metric as a read-only long attribute over JMX.
+     */
+    private static class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = values();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Node metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * PacketView is a reusable, read-only view over a single-packet frame held
+ * in a ByteBuffer. It exposes the header fields and the comma separated
+ * payload without building a {@link Packet}, a joined String or a String[].
+ *
+ * <p>A view is meant to be owned by one receiving thread and re-pointed at
+ * each datagram with {@link #wrap(ByteBuffer)}.</p>
+ */
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PacketView {
+    private ByteBuffer buf; // Buffer holding the current frame
+    private byte version; // Packet version
+    private int nodeId; // Node that sent the packet
+    private int dataLength; // Data length claimed by the sender
+    private int payloadStart; // Absolute index of the first payload byte
+    private int payloadLength; // Payload length in bytes, -1 for no payload
+    private byte[] scratch = new byte[256]; // Reused for decoding single entries
+
+    /**
+     * Points this view at the frame between the buffer's position and limit.
+     *
+     * @param buf The buffer holding a received frame
+     * @return true if the frame is a well-formed binary single-packet frame,
+     *         false if it must go through {@link Packet#decode(ByteBuffer)}
+     */
+    public boolean wrap(ByteBuffer buf) {
+        int p = buf.position();
+        if (buf.remaining() < 2 + Packet.HEADER_BYTES
+                || buf.get(p) != Packet.WIRE_VERSION || buf.get(p + 1) != Packet.KIND_PACKET) {
+            return false;
+        }
+        int length = buf.getInt(p + 11);
+        if (length < -1 || p + 15 + Math.max(length, 0) > buf.limit()) {
+            return false;
+        }
+        this.buf = buf;
+        this.version = buf.get(p + 2);
+        this.nodeId = buf.getInt(p + 3);
+        this.dataLength = buf.getInt(p + 7);
+        this.payloadStart = p + 15;
+        this.payloadLength = length;
+        return true;
+    }
+
+    /**
+     * Gets the version of the viewed packet.
+     *
+     * @return The packet version
+     */
+    public byte getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the node ID of the viewed packet.
+     *
+     * @return The node ID
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets the data length of the viewed packet.
+     *
+     * @return The data length
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Checks whether the comma separated payload holds exactly the given
+     * entries, without decoding it. Only ASCII entries are compared in place;
+     * anything else reports a mismatch so the caller decodes normally.
+     *
+     * @param entries The entries to compare against
+     * @return true if the payload is the entries joined with commas
+     */
+    public boolean payloadEquals(List<String> entries) {
+        if (payloadLength < 0 || entries == null) {
+            return false;
+        }
+        int pos = payloadStart;
+        int end = payloadStart + payloadLength;
+        for (int i = 0; i < entries.size(); i++) {
+            if (i > 0) {
+                if (pos >= end || buf.get(pos++) != ',') {
+                    return false;
+                }
+            }
+            String entry = entries.get(i);
+            for (int j = 0; j < entry.length(); j++) {
+                char c = entry.charAt(j);
+                if (c >= 0x80 || pos >= end || buf.get(pos++) != c) {
+                    return false;
+                }
+            }
+        }
+        return pos == end;
+    }
+
+    /**
+     * Checks whether the comma separated payload names the same files as a
+     * set, in any order, without decoding it. The payload's entries are
+     * counted and hashed in place the way {@link FileSet#setHash} hashes
+     * names, so a steady heartbeat costs no allocation whatever order its
+     * sender lists the files in. Only ASCII payloads are compared; anything
+     * else reports a mismatch so the caller decodes normally. The hash is 64
+     * bits, so a change being taken for no change is not a practical
+     * concern.
+     *
+     * @param files The set to compare against
+     * @return true if the payload lists each file of the set exactly once
+     */
+    public boolean payloadMatches(FileSet files) {
+        if (payloadLength <= 0) {
+            return files.isEmpty(); // No payload lists no files
+        }
+        int end = payloadStart + payloadLength;
+        int count = 0;
+        long sum = 0;
+        long hash = FileSet.FNV_OFFSET;
+        for (int i = payloadStart; i <= end; i++) {
+            if (i == end || buf.get(i) == ',') {
+                sum += FileSet.mix(hash);
+                count++;
+                hash = FileSet.FNV_OFFSET;
+            } else {
+                byte b = buf.get(i);
+                if (b < 0) {
+                    return false;
+                }
+                hash = (hash ^ b) * FileSet.FNV_PRIME;
+            }
+        }
+        return count == files.size() && sum == files.setHash();
+    }
+
+    /**
+     * Decodes the comma separated payload into a new list of entries,
+     * matching the result of {@code Arrays.asList(data.split(","))}, except
+     * that a missing or empty payload gives no entries rather than a file
+     * named "null" or "".
+     *
+     * @return The payload entries
+     */
+    public List<String> payloadEntries() {
+        List<String> entries = new ArrayList<>();
+        if (payloadLength <= 0) {
+            return entries;
+        }
+        int end = payloadStart + payloadLength;
+        int start = payloadStart;
+        for (int i = payloadStart; i <= end; i++) {
+            if (i == end || buf.get(i) == ',') {
+                entries.add(decode(start, i - start));
+                start = i + 1;
+            }
+        }
+        // String.split drops trailing empty strings but keeps a lone empty one
+        while (entries.size() > 1 && entries.get(entries.size() - 1).isEmpty()) {
+            entries.remove(entries.size() - 1);
+        }
+        return entries;
+    }
+
+    /**
+     * Decodes the payload as a single string.
+     *
+     * @return The payload, or null if the packet had none
+     */
+    public String payload() {
+        return payloadLength < 0 ? null : decode(payloadStart, payloadLength);
+    }
+
+    /**
+     * Decodes a run of UTF-8 bytes at an absolute index of the buffer.
+     */
+    private String decode(int index, int length) {
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + index, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buf.get(index, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
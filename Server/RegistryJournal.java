@@ -0,0 +1,339 @@
+/**
+ * RegistryJournal keeps the node registry across server restarts.
+ *
+ * <p>Every change to a node's status or files is appended as a record to
+ * an append-only journal. The journal is memory-mapped a region at a time,
+ * so an append is a copy into memory that survives the process dying; the
+ * mapping is forced to disk by {@link #maintain}, about once a second. Once
+ * the journal grows past a threshold it is compacted: it is set aside, a
+ * fresh one is started, the state it led to is written to a snapshot, and
+ * the old journal is deleted.</p>
+ *
+ * <p>Every record carries a sequence number and the snapshot names the last
+ * one it covers, so on startup the snapshot plus the records after it
+ * restore the registry in one pass, and a crash part way through a
+ * compaction neither replays a change twice nor loses one. A record torn by
+ * a crash fails its checksum and ends the replay. Strings are
+ * length-prefixed UTF-8, a null status marking a removed node:</p>
+ * <pre>
+ * record:   [length:4][crc32:4][sequence:8][nodeId:4][status][file count:4] count x [file]
+ * snapshot: [magic:4][sequence:8][node count:4] count x ([nodeId:4][status][file count:4] count x [file]) [crc32:4]
+ * </pre>
+ */
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class RegistryJournal implements ConfigLoader.NodeListener {
+    public static final Path DIRECTORY = Path.of(System.getProperty("registry.dir", "registry")); // Where the files live
+    public static final long FLUSH_MS = Long.getLong("registry.flushMs", 1000); // How often maintain should run
+    private static final long COMPACT_BYTES = Long.getLong("registry.compactBytes", 16 << 20); // Journal size that triggers a compaction
+    private static final int REGION_BYTES = 1 << 20; // Journal bytes mapped at a time
+    private static final int SNAPSHOT_MAGIC = 0x52474a31; // "RGJ1"
+
+    private final Path journalPath; // Records since the last compaction
+    private final Path oldJournalPath; // Journal set aside while its snapshot is written
+    private final Path snapshotPath; // State as of the last compaction
+    private final Map<Integer, ConfigLoader.NodeInfo> state = new HashMap<>(); // Registry as of the last record
+    private final CRC32 crc = new CRC32(); // Checksums appended records
+    private FileChannel journal; // Open journal
+    private MappedByteBuffer region; // Mapped part of the journal being appended to
+    private long position; // Journal offset of the next record
+    private long sequence; // Sequence number of the last record
+    private boolean dirty; // Records appended since the last force
+
+    /**
+     * State of one node as read back from disk.
+     */
+    private static class Entry {
+        final String status; // Null for a removed node
+        final List<String> files;
+
+        Entry(String status, List<String> files) {
+            this.status = status;
+            this.files = files;
+        }
+    }
+
+    /**
+     * Constructs a RegistryJournal over the files in a directory, creating
+     * the directory if needed. Nothing is read until {@link #attach}.
+     *
+     * @param directory the directory holding the journal and snapshot
+     * @throws IOException if the directory cannot be created
+     */
+    public RegistryJournal(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        journalPath = directory.resolve("registry.journal");
+        oldJournalPath = directory.resolve("registry.journal.old");
+        snapshotPath = directory.resolve("registry.snapshot");
+    }
+
+    /**
+     * Restores the last state saved for every node in the registry, then
+     * records every later change. Nodes that are not in the registry any
+     * more are ignored.
+     *
+     * @param configLoader the registry to restore and follow
+     * @return the number of nodes restored
+     * @throws IOException if the files cannot be read or written
+     */
+    public synchronized int attach(ConfigLoader configLoader) throws IOException {
+        long start = System.nanoTime();
+        Map<Integer, Entry> saved = new HashMap<>();
+        long covered = readSnapshot(saved);
+        sequence = covered;
+        boolean interrupted = Files.exists(oldJournalPath); // A compaction did not finish
+        if (interrupted) {
+            replay(oldJournalPath, covered, saved);
+        }
+        position = replay(journalPath, covered, saved);
+
+        int restored = 0;
+        for (Map.Entry<Integer, Entry> entry : saved.entrySet()) {
+            Entry node = entry.getValue();
+            if (node.status != null && configLoader.getNodes().containsKey(entry.getKey())) {
+                configLoader.updateNode(entry.getKey(), node.status, node.files);
+                restored++;
+            }
+        }
+        state.putAll(configLoader.getNodes());
+
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        configLoader.addListener(this);
+        if (interrupted) {
+            writeSnapshot(new HashMap<>(state), sequence); // Covers both journals
+            Files.delete(oldJournalPath);
+        }
+        System.out.println("Restored " + restored + " nodes from " + journalPath.getParent() + " in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return restored;
+    }
+
+    /**
+     * Appends a record of the change to the journal.
+     */
+    @Override
+    public synchronized void nodeChanged(int nodeId, ConfigLoader.NodeInfo before, ConfigLoader.NodeInfo after) {
+        if (after == null) {
+            state.remove(nodeId);
+        } else {
+            state.put(nodeId, after);
+        }
+        try {
+            append(nodeId, after);
+        } catch (IOException e) {
+            System.err.println("Failed to journal change to Node " + nodeId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forces appended records to disk, and compacts the journal once it has
+     * grown past the threshold. Called regularly from one thread, every
+     * {@link #FLUSH_MS} milliseconds.
+     */
+    public void maintain() {
+        try {
+            synchronized (this) {
+                if (dirty) {
+                    region.force();
+                    dirty = false;
+                }
+                if (position < COMPACT_BYTES) {
+                    return;
+                }
+            }
+            compact();
+        } catch (IOException e) {
+            System.err.println("Failed to maintain the registry journal: " + e.getMessage());
+        }
+    }
+
+    private void append(int nodeId, ConfigLoader.NodeInfo node) throws IOException {
+        String status = (node == null) ? null : node.status;
+        List<String> files = (node == null) ? List.of() : node.files;
+        int length = 8 + 4 + 4 + (status == null ? 0 : Packet.utf8Length(status)) + 4;
+        for (String file : files) {
+            length += 4 + Packet.utf8Length(file);
+        }
+
+        if (region == null || region.remaining() < 8 + length) {
+            if (region != null) {
+                region.force();
+            }
+            region = journal.map(FileChannel.MapMode.READ_WRITE, position, Math.max(REGION_BYTES, 8 + length));
+        }
+        int start = region.position();
+        region.position(start + 8);
+        region.putLong(++sequence).putInt(nodeId);
+        Packet.putString(region, status);
+        region.putInt(files.size());
+        for (String file : files) {
+            Packet.putString(region, file);
+        }
+
+        crc.reset();
+        crc.update(region.duplicate().position(start + 8).limit(start + 8 + length));
+        region.putInt(start + 4, (int) crc.getValue());
+        region.putInt(start, length); // Written last, so a record is never seen half-made
+        position += 8 + length;
+        dirty = true;
+    }
+
+    /**
+     * Sets the journal aside, starts a new one and writes the state the old
+     * one led to as the new snapshot.
+     */
+    private void compact() throws IOException {
+        Map<Integer, ConfigLoader.NodeInfo> copy;
+        long covered;
+        synchronized (this) {
+            if (region != null) {
+                region.force();
+            }
+            journal.close();
+            region = null;
+            Files.move(journalPath, oldJournalPath, StandardCopyOption.ATOMIC_MOVE);
+            journal = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            position = 0;
+            dirty = false;
+            copy = new HashMap<>(state);
+            covered = sequence;
+        }
+        writeSnapshot(copy, covered);
+        Files.delete(oldJournalPath);
+    }
+
+    /**
+     * Writes the snapshot through a temporary file, so a crash leaves either
+     * the old snapshot or the new one.
+     */
+    private void writeSnapshot(Map<Integer, ConfigLoader.NodeInfo> copy, long covered) throws IOException {
+        int size = 4 + 8 + 4 + 4;
+        for (ConfigLoader.NodeInfo node : copy.values()) {
+            size += 4 + 4 + Packet.utf8Length(node.status) + 4;
+            for (String file : node.files) {
+                size += 4 + Packet.utf8Length(file);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(SNAPSHOT_MAGIC).putLong(covered).putInt(copy.size());
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : copy.entrySet()) {
+            buf.putInt(entry.getKey());
+            Packet.putString(buf, entry.getValue().status);
+            buf.putInt(entry.getValue().files.size());
+            for (String file : entry.getValue().files) {
+                Packet.putString(buf, file);
+            }
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(buf.array(), 0, buf.position());
+        buf.putInt((int) checksum.getValue());
+        buf.flip();
+
+        Path temporary = snapshotPath.resolveSibling("registry.snapshot.tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+        Files.move(temporary, snapshotPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the snapshot into a map of node states.
+     *
+     * @return the sequence number of the last record it covers, 0 if there is none
+     */
+    private long readSnapshot(Map<Integer, Entry> saved) throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        try {
+            CRC32 checksum = new CRC32();
+            checksum.update(buf.array(), 0, buf.limit() - 4);
+            if (buf.getInt() != SNAPSHOT_MAGIC || buf.getInt(buf.limit() - 4) != (int) checksum.getValue()) {
+                throw new IOException("Registry snapshot " + snapshotPath + " is damaged");
+            }
+            long covered = buf.getLong();
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                int nodeId = buf.getInt();
+                saved.put(nodeId, readEntry(buf));
+            }
+            return covered;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Registry snapshot " + snapshotPath + " is truncated", e);
+        }
+    }
+
+    /**
+     * Applies the journal records after a sequence number to a map of node
+     * states, stopping at the first record that is missing or damaged.
+     *
+     * @return the journal offset just past the last good record
+     */
+    private long replay(Path path, long after, Map<Integer, Entry> saved) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            CRC32 checksum = new CRC32();
+            while (buf.remaining() >= 8) {
+                int start = buf.position();
+                int length = buf.getInt();
+                int expected = buf.getInt();
+                if (length <= 0 || length > buf.remaining()) {
+                    buf.position(start);
+                    break;
+                }
+                checksum.reset();
+                checksum.update(buf.duplicate().limit(buf.position() + length));
+                if ((int) checksum.getValue() != expected) {
+                    buf.position(start);
+                    break;
+                }
+                ByteBuffer record = buf.slice(buf.position(), length);
+                buf.position(buf.position() + length);
+                long recordSequence = record.getLong();
+                int nodeId = record.getInt();
+                if (recordSequence > after) {
+                    saved.put(nodeId, readEntry(record));
+                    sequence = Math.max(sequence, recordSequence);
+                }
+            }
+            return buf.position();
+        }
+    }
+
+    private static Entry readEntry(ByteBuffer buf) throws IOException {
+        int statusLength = buf.getInt();
+        String status = (statusLength < 0) ? null : Packet.getUtf8(buf, statusLength);
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining() / 4) {
+            throw new IOException("Invalid file count " + count);
+        }
+        List<String> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(Packet.getUtf8(buf, buf.getInt()));
+        }
+        return new Entry(status, files);
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * ServerEventLoop drives a non-blocking DatagramChannel from a single thread
+ * with a Selector. Incoming datagrams, queued outgoing datagrams and timer
+ * events all run on the loop thread, so a burst of sends never stalls
+ * reception and no task ever sleeps on the socket.
+ *
+ * <p>Several loops can share one UDP port when their channels are bound
+ * with SO_REUSEPORT; the kernel then spreads datagrams across them.</p>
+ */
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ServerEventLoop implements Runnable {
+    private static final int MAX_READS_PER_WAKEUP = 64; // Keeps timers and writes from starving
+
+    private final Selector selector; // Waits for channel readiness and wakeups
+    private final DatagramChannel channel; // Non-blocking channel owned by this loop
+    private final SelectionKey key; // Registration of the channel with the selector
+    private final Handler handler; // Consumes every received datagram
+    private final BufferPool bufferPool; // Source of receive buffers
+    private final PacketView view = new PacketView(); // Reused for every datagram on this loop
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Pending timer events
+    private final Queue<PendingSend> pendingSends = new ArrayDeque<>(); // Datagrams waiting for buffer space
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work handed in from other threads
+    private long timerSequence; // Breaks ties between timers due at the same time
+    private volatile Thread loopThread; // Thread running the loop, null before it starts
+    private volatile boolean running = true; // Cleared to stop the loop
+
+    /**
+     * Receives the datagrams read by a loop.
+     */
+    public interface Handler {
+        /**
+         * Handles one received datagram on the loop thread.
+         *
+         * @param buf    the frame, between position and limit
+         * @param sender the address the datagram came from
+         * @param view   a view owned by the calling loop
+         */
+        void onDatagram(ByteBuffer buf, SocketAddress sender, PacketView view);
+    }
+
+    /**
+     * A task due at a point in time.
+     */
+    private static class Timer implements Comparable<Timer> {
+        final long dueAt; // Due time in milliseconds
+        final long sequence; // Scheduling order
+        final Runnable task; // Work to run
+
+        Timer(long dueAt, long sequence, Runnable task) {
+            this.dueAt = dueAt;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            int c = Long.compare(dueAt, other.dueAt);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * A datagram that could not be sent immediately.
+     */
+    private static class PendingSend {
+        final ByteBuffer data; // Frame to send
+        final SocketAddress target; // Destination
+
+        PendingSend(ByteBuffer data, SocketAddress target) {
+            this.data = data;
+            this.target = target;
+        }
+    }
+
+    /**
+     * Constructs a loop around a bound channel and switches it to
+     * non-blocking mode.
+     *
+     * @param channel    the bound channel to serve
+     * @param handler    the consumer of received datagrams
+     * @param bufferPool the pool receive buffers are taken from
+     * @throws IOException if the selector cannot be opened
+     */
+    public ServerEventLoop(DatagramChannel channel, Handler handler, BufferPool bufferPool) throws IOException {
+        this.selector = Selector.open();
+        this.channel = channel;
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        channel.configureBlocking(false);
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Schedules a task to run on the loop thread after a delay. Must be
+     * called from the loop thread or before the loop is started.
+     *
+     * @param delayMs the delay in milliseconds
+     * @param task    the task to run
+     */
+    public void schedule(long delayMs, Runnable task) {
+        timers.add(new Timer(System.currentTimeMillis() + delayMs, timerSequence++, task));
+    }
+
+    /**
+     * Hands a task to the loop thread from any thread.
+     *
+     * @param task the task to run on the loop
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Sends a datagram, queueing it if the socket buffer is full. Called
+     * from any other thread, such as another loop sharing the port, the
+     * send is handed to this loop's thread, which owns the queue and the
+     * selection key.
+     *
+     * @param data   the frame to send, not to be reused by the caller
+     * @param target the destination
+     */
+    public void send(ByteBuffer data, SocketAddress target) {
+        if (Thread.currentThread() != loopThread) {
+            execute(() -> send(data, target));
+            return;
+        }
+        if (pendingSends.isEmpty() && trySend(data, target)) {
+            return;
+        }
+        pendingSends.add(new PendingSend(data, target));
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Stops the loop after its current iteration.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the loop until it is stopped.
+     */
+    @Override
+    public void run() {
+        loopThread = Thread.currentThread();
+        try {
+            while (running) {
+                selector.select(nextTimeout());
+                if (key.isValid() && key.isReadable()) {
+                    readAvailable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flushPending();
+                }
+                selector.selectedKeys().clear();
+                runTasks();
+                runTimers();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Works out how long select may block before the next timer is due.
+     */
+    private long nextTimeout() {
+        if (!tasks.isEmpty()) {
+            return 1;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0; // Block until a datagram or wakeup arrives
+        }
+        return Math.max(1, next.dueAt - System.currentTimeMillis());
+    }
+
+    /**
+     * Reads datagrams until the channel is drained or the per-wakeup budget
+     * is used up.
+     */
+    private void readAvailable() throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+                buffer.clear();
+                SocketAddress sender = channel.receive(buffer);
+                if (sender == null) {
+                    break;
+                }
+                Metrics.DATAGRAMS_RECEIVED.increment();
+                buffer.flip();
+                try {
+                    handler.onDatagram(buffer, sender, view);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Sends queued datagrams until the socket buffer fills up again.
+     */
+    private void flushPending() {
+        while (!pendingSends.isEmpty()) {
+            PendingSend next = pendingSends.peek();
+            if (!trySend(next.data, next.target)) {
+                return;
+            }
+            pendingSends.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Attempts a single non-blocking send.
+     *
+     * @return true if the datagram was sent or failed for good, false if
+     *         the socket buffer is full and the send should be retried
+     */
+    private boolean trySend(ByteBuffer data, SocketAddress target) {
+        try {
+            return channel.send(data, target) > 0 || !data.hasRemaining();
+        } catch (IOException e) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Failed to send to " + target + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Runs the tasks handed in from other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Runs every timer that is due.
+     */
+    private void runTimers() {
+        long now = System.currentTimeMillis();
+        while (!timers.isEmpty() && timers.peek().dueAt <= now) {
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
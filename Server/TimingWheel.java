@@ -0,0 +1,168 @@
+/**
+ * TimingWheel tracks one expiry deadline per node in a hashed timing wheel.
+ *
+ * <p>Time is cut into ticks, and each slot of the wheel holds a doubly
+ * linked list of the timeouts due in that tick. Arming, re-arming and
+ * cancelling a timeout are O(1) list operations. Advancing the clock only
+ * visits the slots whose ticks have passed and fires the timeouts found
+ * there. When the wheel spans more time than the longest delay in use,
+ * every timeout in a visited slot is due, so nothing is ever scanned
+ * without being fired. Longer delays still work; they wait out extra
+ * turns of the wheel.</p>
+ */
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+public class TimingWheel {
+    private final long tickMs; // Length of one tick
+    private final Timeout[] slots; // Sentinel heads of the per-slot lists
+    private final int mask; // slots.length - 1, the length is a power of two
+    private final Map<Integer, Timeout> timeouts = new HashMap<>(); // Armed timeout for each key
+    private final IntConsumer onExpire; // Called with the key of every timeout that fires
+    private long currentTick; // Last tick that has been processed
+
+    /**
+     * One armed timeout, linked into the list of its slot.
+     */
+    private static class Timeout {
+        final int key; // Key the timeout was armed for
+        long deadlineTick; // Tick the timeout is due in
+        Timeout prev; // Previous entry in the slot
+        Timeout next; // Next entry in the slot
+
+        Timeout(int key) {
+            this.key = key;
+        }
+
+        void unlink() {
+            if (prev != null) {
+                prev.next = next;
+                next.prev = prev;
+                prev = null;
+                next = null;
+            }
+        }
+    }
+
+    /**
+     * Constructs a timing wheel.
+     *
+     * @param tickMs    The length of one tick in milliseconds
+     * @param wheelSize The number of slots, rounded up to a power of two
+     * @param onExpire  Called with the key of every timeout that fires
+     */
+    public TimingWheel(long tickMs, int wheelSize, IntConsumer onExpire) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickMs = tickMs;
+        this.slots = new Timeout[size];
+        this.mask = size - 1;
+        this.onExpire = onExpire;
+        this.currentTick = System.currentTimeMillis() / tickMs;
+        for (int i = 0; i < size; i++) {
+            Timeout head = new Timeout(-1);
+            head.prev = head;
+            head.next = head;
+            slots[i] = head;
+        }
+    }
+
+    /**
+     * Arms the timeout for a key, replacing any timeout already armed for it.
+     *
+     * @param key     The key, normally a node ID
+     * @param delayMs How long from now the timeout should fire
+     */
+    public synchronized void schedule(int key, long delayMs) {
+        Timeout timeout = timeouts.get(key);
+        if (timeout == null) {
+            timeout = new Timeout(key);
+            timeouts.put(key, timeout);
+        } else {
+            timeout.unlink();
+        }
+
+        // Round up so a timeout never fires early
+        long deadlineTick = Math.max(currentTick + 1, (System.currentTimeMillis() + delayMs + tickMs - 1) / tickMs);
+        timeout.deadlineTick = deadlineTick;
+        Timeout head = slots[(int) (deadlineTick & mask)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    /**
+     * Disarms the timeout for a key, if any.
+     *
+     * @param key The key to cancel
+     */
+    public synchronized void cancel(int key) {
+        Timeout timeout = timeouts.remove(key);
+        if (timeout != null) {
+            timeout.unlink();
+        }
+    }
+
+    /**
+     * Processes every tick up to the current time and fires the timeouts
+     * that fell due. Callbacks run on the calling thread, outside the
+     * wheel's lock, so they may re-arm timeouts. A timeout re-armed after
+     * it fell due but before its callback ran, e.g. by a heartbeat that
+     * arrived in between, is not fired. A re-arm can still land while the
+     * callback runs; callbacks that must not undo one should check
+     * {@link #isArmed} atomically with their own effect.
+     */
+    public void advance() {
+        List<Integer> expired = new ArrayList<>();
+        synchronized (this) {
+            long nowTick = System.currentTimeMillis() / tickMs;
+            // A long pause only needs one full turn to visit every slot
+            long firstTick = Math.max(currentTick + 1, nowTick - mask);
+            for (long tick = firstTick; tick <= nowTick; tick++) {
+                Timeout head = slots[(int) (tick & mask)];
+                Timeout timeout = head.next;
+                while (timeout != head) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= nowTick) {
+                        timeout.unlink();
+                        timeouts.remove(timeout.key);
+                        expired.add(timeout.key);
+                    }
+                    timeout = next;
+                }
+            }
+            currentTick = Math.max(currentTick, nowTick);
+        }
+        for (int key : expired) {
+            synchronized (this) {
+                if (timeouts.containsKey(key)) {
+                    continue; // Re-armed since it fell due
+                }
+            }
+            onExpire.accept(key);
+        }
+    }
+
+    /**
+     * Tells whether a timeout is armed for a key.
+     *
+     * @param key The key to check
+     * @return true if the key has a timeout that has not fired or been cancelled
+     */
+    public synchronized boolean isArmed(int key) {
+        return timeouts.containsKey(key);
+    }
+
+    /**
+     * Gets the length of one tick, which is how often {@link #advance}
+     * should be called.
+     *
+     * @return The tick length in milliseconds
+     */
+    public long getTickMs() {
+        return tickMs;
+    }
+}
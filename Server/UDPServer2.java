@@ -4,68 +4,654 @@
  * to all clients.
  * 
  * <p>It uses multiple threads to handle packet reception, timeout checking,
- * and broadcasting of node data.</p>
+ * and broadcasting of node data. Alternatively it can run the same work as
+ * an event loop over a non-blocking channel (see {@link #runEventLoops}).</p>
+ * 
+ * <p>With {@code -Dmulticast.group} set, node lists are published once to
+ * that multicast group for every subscribed client, and only nodes that
+ * fall behind are sent them individually (see {@link #broadcastNodeList}).</p>
+ * 
+ * <p>Where multicast is not available, {@code -Drelay.fanout=k} has the
+ * clients carry the load instead: each node list goes to k clients, each of
+ * which applies it and passes it on to k more, down a tree of the Online
+ * nodes, so the server sends k frames however many nodes there are.</p>
+ * 
+ * <p>With {@code -Dserver.shards} set, several servers split the registry
+ * between them on a {@link ShardRing}. Each one is started with its own
+ * {@code -Dserver.nodeId}, listens on the port of that entry in
+ * nodes.config and only holds, times out and answers for the nodes it
+ * owns. Clients send to their owning shard and query every shard.</p>
  * 
  * @author Ethan Kulawiak
  * @date 3/6/2025
  */
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class UDPServer2 {
-    private DatagramSocket socket; // UDP socket for communication
+    private DatagramChannel channel; // UDP channel for communication
+    private BufferPool bufferPool = new BufferPool(4, Packet.MAX_DATAGRAM); // Reusable receive buffers
     private ExecutorService executor; // Thread pool for managing tasks
+    private ServerEventLoop eventLoop; // Main loop when running in event-loop mode, otherwise null
     private ConfigLoader configLoader; // Manages node configurations
     private SecureRandom random = new SecureRandom(); // For random delays in broadcasting
-    private Map<Integer, Long> lastReceivedTime = new HashMap<>(); // Stores last received time for each node
+    private TimingWheel livenessWheel; // Expires nodes that stop sending heartbeats
+    private PhiAccrualDetector failureDetector = new PhiAccrualDetector(); // Decides how long each node may stay quiet
+    private Map<Integer, Long> ackedEpoch = new ConcurrentHashMap<>(); // Last node list epoch each node acknowledged
+    private FragmentLayer fragments = new FragmentLayer(); // Reassembles frames split across datagrams
+    private FileLocationIndex fileIndex; // Which nodes hold each file
+    private FileSearchIndex searchIndex; // Pattern search over every file name
+    private RegistryJournal journal; // Keeps the registry across restarts, null when embedded
+    private ExecutorService requestHandlers; // Answers queries off the listener thread, null unless on virtual threads
+    private InetSocketAddress multicastGroup; // Where node lists are published, null when only unicasting
+    private long publishedEpoch; // Epoch the last publication brought subscribers up to
+    private int[] relayOrder = new int[0]; // Online nodes in the order the relay tree is cut from
+    private volatile boolean relayTreeStale = true; // Whether membership changed since relayOrder was built
+    private int port = SERVER_PORT; // Port this server listens on
 
-    private static final int TIMEOUT_MS = 30 * 1000; // Timeout period (30 seconds)
+    private static final int TIMEOUT_MS = 30 * 1000; // Grace period for nodes not heard from yet (30 seconds)
+    private static final int TICK_MS = 100; // Resolution of liveness expiry
+    private static final int SERVER_NODE_ID = Integer.getInteger("server.nodeId", 6); // Registry entry describing this server
+    private static final int SERVER_PORT = 9876; // Port the server listens on
+    private static final int MAX_SEARCH_PAGE = 500; // Largest page of search results sent at once
+    private static final int INGEST_THREADS = Integer.getInteger("server.ingestThreads", 1); // Listener threads
+    private static final String MULTICAST_GROUP = System.getProperty("multicast.group"); // Group to publish node lists to, unset to unicast only
+    private static final int MULTICAST_PORT = Integer.getInteger("multicast.port", 9880); // Port subscribers receive the group on
+    private static final int MULTICAST_TTL = Integer.getInteger("multicast.ttl", 1); // Router hops a publication may cross, 1 keeps it on the segment
+    private static final int RELAY_FANOUT = Integer.getInteger("relay.fanout", 0); // Children per relay, 0 to not relay
+    private static final ShardRing SHARDS = ShardRing.fromProperties(); // How servers split the registry, null when this one holds it all
 
     /**
-     * Constructs a UDPServer2 instance, initializing the socket, thread pool,
+     * Constructs a UDPServer2 instance, initializing the channel, thread pool,
      * and configuration loader.
      */
     public UDPServer2() {
+        this(loadRegistry()); // Load node configurations
         try {
-            socket = new DatagramSocket(9876); // Bind server to port 9876
-            executor = Executors.newFixedThreadPool(3); // Use 3 threads: listener, broadcaster, timeout checker
-            configLoader = new ConfigLoader(); // Load node configurations
-        } catch (SocketException e) {
+            if (SHARDS != null) {
+                port = shardPort();
+            }
+            channel = openChannel(); // Bind server to port 9876, or this shard's port
+            multicastGroup = prepareMulticast(channel);
+            executor = TaskExecutors.newNodeExecutor(4 + INGEST_THREADS); // Listeners, broadcaster, timeout checker, journal, config watcher
+        } catch (IOException e) {
             e.printStackTrace();
         }
+        restoreRegistry();
+        Metrics.registryGauges(configLoader);
+        Metrics.start("server");
+    }
+
+    /**
+     * Loads the nodes this server is responsible for: every node in the
+     * config, or only those this shard owns.
+     */
+    private static ConfigLoader loadRegistry() {
+        if (SHARDS == null) {
+            return new ConfigLoader();
+        }
+        if (SHARDS.indexOf(SERVER_NODE_ID) < 0) {
+            throw new IllegalArgumentException("server.nodeId " + SERVER_NODE_ID + " is not one of the shards "
+                    + SHARDS.getShards());
+        }
+        ConfigLoader shard = new ConfigLoader(nodeId -> SHARDS.ownerOf(nodeId) == SERVER_NODE_ID);
+        System.out.println("Shard " + SERVER_NODE_ID + " of " + SHARDS.getShards() + ", holding "
+                + shard.getNodes().size() + " nodes");
+        return shard;
+    }
+
+    /**
+     * Gets the port of this shard's entry in the config.
+     */
+    private int shardPort() throws IOException {
+        ConfigLoader.NodeInfo self = configLoader.getNodes().get(SERVER_NODE_ID);
+        if (self == null) {
+            throw new IOException("No entry for shard " + SERVER_NODE_ID + " in the config");
+        }
+        return self.port;
     }
 
     /**
-     * Serializes an object into a byte array for transmission.
+     * Restores every node's last known status and files from the registry
+     * journal and keeps journaling changes from then on. Nodes restored as
+     * Online get one timeout to be heard from before they are marked Offline.
+     */
+    private void restoreRegistry() {
+        try {
+            journal = new RegistryJournal((SHARDS == null) ? RegistryJournal.DIRECTORY
+                    : RegistryJournal.DIRECTORY.resolve("shard-" + SERVER_NODE_ID)); // Shards may share a directory
+            journal.attach(configLoader);
+        } catch (IOException e) {
+            System.err.println("Registry journal unavailable, starting from the config: " + e.getMessage());
+            journal = null;
+            return;
+        }
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+            if (entry.getKey() != SERVER_NODE_ID && "Online".equals(entry.getValue().status)) {
+                livenessWheel.schedule(entry.getKey(), TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * Constructs a UDPServer2 around an existing registry without opening
+     * any socket, for embedding the server logic (benchmarks, tests).
      * 
-     * @param obj the object to serialize
-     * @return the serialized byte array
-     * @throws IOException if an I/O error occurs
+     * @param configLoader the node registry to serve
      */
-    private byte[] serialize(Object obj) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        oos.writeObject(obj);
-        oos.flush();
-        return bos.toByteArray();
+    UDPServer2(ConfigLoader configLoader) {
+        this.configLoader = configLoader;
+        this.fileIndex = new FileLocationIndex(configLoader);
+        this.searchIndex = new FileSearchIndex(fileIndex);
+
+        // One wheel turn covers the whole timeout, so each tick only visits nodes that lapsed
+        livenessWheel = new TimingWheel(TICK_MS, TIMEOUT_MS / TICK_MS + 1,
+                nodeId -> {
+                    // Heartbeats re-arm before marking a node Online, so one that got in first is seen here
+                    if (configLoader.setNodeStatusIf(nodeId, "Offline", () -> !livenessWheel.isArmed(nodeId))) {
+                        Metrics.TIMEOUTS_EXPIRED.increment();
+                    }
+                });
+        for (int nodeId : configLoader.getNodes().keySet()) {
+            if (nodeId != SERVER_NODE_ID) {
+                configLoader.setNodeStatus(nodeId, "Offline"); // Not heard from yet
+            }
+        }
+
+        // Nodes added to the config at runtime get one timeout to check in, removed ones are forgotten
+        configLoader.addListener((nodeId, before, after) -> {
+            if (before == null || after == null || !before.status.equals(after.status)) {
+                relayTreeStale = true; // Someone joined, left, came Online or went Offline
+            }
+            if (before == null && after != null && nodeId != SERVER_NODE_ID) {
+                livenessWheel.schedule(nodeId, TIMEOUT_MS);
+            } else if (after == null) {
+                livenessWheel.cancel(nodeId);
+                failureDetector.remove(nodeId);
+                ackedEpoch.remove(nodeId);
+            }
+        });
     }
 
     /**
-     * Deserializes a byte array back into an object.
+     * Applies one received datagram to the node registry.
+     * 
+     * <p>Single-packet heartbeats are read in place through the view, and the
+     * file list is only decoded when it differs from the one already stored,
+     * so a steady stream of unchanged heartbeats does not build any strings.
+     * Anything else goes through the general decoder.</p>
      * 
-     * @param data the byte array to deserialize
-     * @return the deserialized object
-     * @throws IOException if an I/O error occurs
-     * @throws ClassNotFoundException if the class of the serialized object cannot be found
+     * @param buf    the received frame, between position and limit
+     * @param sender the address the datagram came from
+     * @param view   the caller's reusable view
      */
-    private Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        ObjectInputStream ois = new ObjectInputStream(bis);
-        return ois.readObject();
+    void handleDatagram(ByteBuffer buf, SocketAddress sender, PacketView view) {
+        if (FragmentLayer.isFragment(buf)) {
+            ByteBuffer whole = fragments.accept(buf, sender);
+            if (whole != null) {
+                handleDatagram(whole, sender, view);
+            }
+            return;
+        }
+
+        long decodeStart = System.nanoTime();
+        if (view.wrap(buf)) {
+            Metrics.DECODE_NANOS.record(System.nanoTime() - decodeStart);
+            int nodeId = view.getNodeId();
+            String status = (view.getDataLength() > 0) ? "Online" : "Offline";
+            ConfigLoader.NodeInfo node = registeredNode(nodeId);
+            if (node == null) {
+                return;
+            }
+
+            // Re-arm this node's expiry first, so an expiry racing this heartbeat sees it and backs off
+            livenessWheel.schedule(nodeId, failureDetector.heartbeat(nodeId));
+
+            // Update node info in ConfigLoader
+            boolean unchanged = view.payloadEquals(node.files) || view.payloadMatches(node.files);
+            FileSet files = unchanged ? node.files : FileSet.of(view.payloadEntries()); // Interned only on change
+            if (!files.equals(node.files)) {
+                configLoader.updateNode(nodeId, status, files);
+                configLoader.forgetCatalogVersion(nodeId);
+                System.out.println("Updated Node " + nodeId + ": Status = " + status + ", Files = " + files);
+            } else {
+                configLoader.setNodeStatus(nodeId, status);
+            }
+            return;
+        }
+
+        Object receivedObject;
+        try {
+            receivedObject = Packet.decode(buf);
+        } catch (IOException e) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Dropped malformed packet: " + e.getMessage());
+            return;
+        }
+        Metrics.DECODE_NANOS.record(System.nanoTime() - decodeStart);
+
+        if (receivedObject instanceof Packet) {
+            Packet packet = (Packet) receivedObject;
+            int nodeId = packet.getNodeId();
+            String files = packet.getData();
+            int dataSize = packet.getDataLength();
+            String status = (dataSize > 0) ? "Online" : "Offline";
+            if (registeredNode(nodeId) == null) {
+                return;
+            }
+
+            // Re-arm this node's expiry before marking it, see above
+            livenessWheel.schedule(nodeId, failureDetector.heartbeat(nodeId));
+
+            // Update node info in ConfigLoader
+            configLoader.updateNode(nodeId, status, (files == null || files.isEmpty()) ? Collections.emptyList()
+                    : Arrays.asList(files.split(","))); // No payload means no files
+            configLoader.forgetCatalogVersion(nodeId);
+
+            if (Metrics.TRACE) {
+                System.out.println("Updated Node " + nodeId + ": Status = " + status + ", Files = " + files);
+            }
+        } else if (receivedObject instanceof Packet.FilesDelta) {
+            Packet.FilesDelta delta = (Packet.FilesDelta) receivedObject;
+            int nodeId = delta.getNodeId();
+            if (registeredNode(nodeId) == null) {
+                return;
+            }
+            livenessWheel.schedule(nodeId, failureDetector.heard(nodeId)); // Sent on change, not on a period
+            if (configLoader.applyFilesDelta(nodeId, "Online", delta.getBaseVersion(), delta.getVersion(),
+                    delta.getAdded(), delta.getRemoved())) {
+                System.out.println("Updated Node " + nodeId + ": Added = " + delta.getAdded()
+                        + ", Removed = " + delta.getRemoved());
+            } else {
+                requestFilesResync(nodeId, sender);
+            }
+        } else if (receivedObject instanceof Packet.Heartbeat) {
+            Packet.Heartbeat heartbeat = (Packet.Heartbeat) receivedObject;
+            int nodeId = heartbeat.getNodeId();
+            if (registeredNode(nodeId) == null) {
+                return;
+            }
+            if (configLoader.hasCatalogVersion(nodeId, heartbeat.getVersion())) {
+                livenessWheel.schedule(nodeId, failureDetector.heartbeat(nodeId)); // Before marking it Online
+                configLoader.setNodeStatus(nodeId, "Online");
+            } else {
+                requestFilesResync(nodeId, sender); // A delta was lost, or the server restarted
+            }
+        } else if (receivedObject instanceof Packet.Ack) {
+            Packet.Ack ack = (Packet.Ack) receivedObject;
+            if (ack.getEpoch() > 0) {
+                ackedEpoch.merge(ack.getNodeId(), ack.getEpoch(), Math::max); // Acks may arrive out of order
+                return;
+            }
+
+            // Epoch 0 is a snapshot request, answer it right away
+            ackedEpoch.remove(ack.getNodeId());
+            try {
+                long epoch = configLoader.getEpoch();
+                sendFrame(buildNodeList(0, epoch), sender);
+            } catch (IOException e) {
+                System.err.println("Failed to send snapshot to Node " + ack.getNodeId());
+            }
+        } else if (receivedObject instanceof Packet.FileQuery || receivedObject instanceof Packet.FileSearch) {
+            Object request = receivedObject;
+            if (!isAnswerable(request)) {
+                Metrics.DATAGRAMS_DROPPED.increment();
+                System.err.println("Dropped malformed file request.");
+                return;
+            }
+            if (requestHandlers != null) {
+                requestHandlers.execute(() -> answerRequest(request, sender)); // One virtual thread per request
+            } else {
+                answerRequest(request, sender);
+            }
+        } else {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Invalid packet format received.");
+        }
+    }
+
+    /**
+     * Looks up the registry entry a node's frame is about, dropping the
+     * frame if the node is not registered, so that unknown IDs never reach
+     * the failure detector or the expiry wheel.
+     * 
+     * @param nodeId the node the frame names
+     * @return the node's entry, or null if the frame was dropped
+     */
+    private ConfigLoader.NodeInfo registeredNode(int nodeId) {
+        ConfigLoader.NodeInfo node = configLoader.getNodes().get(nodeId);
+        if (node == null) {
+            Metrics.DATAGRAMS_DROPPED.increment();
+            System.err.println("Node ID " + nodeId + " not found.");
+        }
+        return node;
+    }
+
+    /**
+     * Checks that a file query names a file, and that a file search has a
+     * pattern and a page within bounds, so that it can be looked up.
+     * 
+     * @param request the decoded FileQuery or FileSearch
+     * @return true if the request can be answered
+     */
+    private boolean isAnswerable(Object request) {
+        if (request instanceof Packet.FileQuery) {
+            String fileName = ((Packet.FileQuery) request).getFileName();
+            return fileName != null && !fileName.isEmpty();
+        }
+        Packet.FileSearch search = (Packet.FileSearch) request;
+        return search.getPattern() != null && search.getOffset() >= 0
+                && search.getLimit() >= 0 && search.getLimit() <= MAX_SEARCH_PAGE;
+    }
+
+    /**
+     * Answers a file query or search. Only reads the registry, so requests
+     * can be answered on any thread and in any order.
+     * 
+     * @param request the decoded FileQuery or FileSearch
+     * @param sender  the address to answer
+     */
+    private void answerRequest(Object request, SocketAddress sender) {
+        if (request instanceof Packet.FileQuery) {
+            Packet.FileQuery query = (Packet.FileQuery) request;
+            int[] holders = findOnlineHolders(query.getFileName());
+            try {
+                sendFrame(Packet.encode(new Packet.FileQueryResult(query.getRequestId(), query.getFileName(), holders)),
+                        sender);
+            } catch (IOException e) {
+                System.err.println("Failed to answer file query from Node " + query.getNodeId());
+            }
+        } else {
+            Packet.FileSearch search = (Packet.FileSearch) request;
+            try {
+                sendFrame(Packet.encode(searchFiles(search)), sender);
+            } catch (IOException e) {
+                System.err.println("Failed to answer file search from Node " + search.getNodeId());
+            }
+        }
+    }
+
+    /**
+     * Asks a node for a full snapshot of its shared files, because its
+     * latest delta or heartbeat does not follow on from what the registry has.
+     * 
+     * @param nodeId the node to ask
+     * @param sender the address its frame came from
+     */
+    private void requestFilesResync(int nodeId, SocketAddress sender) {
+        try {
+            sendFrame(Packet.encode(new Packet.FilesResync(0)), sender);
+        } catch (IOException e) {
+            System.err.println("Failed to request a file snapshot from Node " + nodeId);
+        }
+    }
+
+    /**
+     * Runs a file search and attaches the holders of each matching name,
+     * with their current status.
+     * 
+     * @param search the search to run, already checked by isAnswerable
+     * @return one page of results
+     */
+    Packet.FileSearchResult searchFiles(Packet.FileSearch search) {
+        FileSearchIndex.Page page = searchIndex.search(search.getPattern(), search.getOffset(), search.getLimit());
+        Map<Integer, ConfigLoader.NodeInfo> nodes = configLoader.getNodes();
+
+        List<Packet.SearchHit> hits = new ArrayList<>(page.getNames().size());
+        for (String fileName : page.getNames()) {
+            int[] nodeIds = fileIndex.holders(fileName).stream().mapToInt(Integer::intValue).sorted().toArray();
+            String[] statuses = new String[nodeIds.length];
+            for (int i = 0; i < nodeIds.length; i++) {
+                ConfigLoader.NodeInfo node = nodes.get(nodeIds[i]);
+                statuses[i] = (node == null) ? "Unknown" : node.status;
+            }
+            hits.add(new Packet.SearchHit(fileName, nodeIds, statuses));
+        }
+        return new Packet.FileSearchResult(search.getRequestId(), search.getOffset(),
+                page.getTotal(), hits);
+    }
+
+    /**
+     * Looks up the nodes that hold a file and are currently online.
+     * 
+     * @param fileName the exact file name
+     * @return the IDs of the online holders, in ascending order
+     */
+    int[] findOnlineHolders(String fileName) {
+        Map<Integer, ConfigLoader.NodeInfo> nodes = configLoader.getNodes();
+        return fileIndex.holders(fileName).stream()
+                .filter(nodeId -> {
+                    ConfigLoader.NodeInfo node = nodes.get(nodeId);
+                    return node != null && "Online".equals(node.status);
+                })
+                .mapToInt(Integer::intValue)
+                .sorted()
+                .toArray();
+    }
+
+    /**
+     * Marks every node whose failure detector deadline has passed as
+     * Offline. Only the nodes whose expiry fell due are touched.
+     */
+    private void checkTimeouts() {
+        livenessWheel.advance();
+    }
+
+    /**
+     * Builds a node list frame holding every entry that changed after a base
+     * epoch, or every entry when the base epoch is 0.
+     * 
+     * @param baseEpoch the epoch the receiver has already applied
+     * @param epoch     the epoch the receiver reaches by applying the frame
+     * @return the encoded frame
+     */
+    byte[] buildNodeList(long baseEpoch, long epoch) {
+        return Packet.encodeDelta(baseEpoch, epoch, nodeEntries(baseEpoch));
+    }
+
+    /**
+     * Gets the registry entries that changed after a base epoch, or every
+     * entry when the base epoch is 0, as the packets a node list is made of.
+     * 
+     * @param baseEpoch the epoch the receiver has already applied
+     * @return one packet per node
+     */
+    private List<Packet> nodeEntries(long baseEpoch) {
+        List<Packet> packetList = new ArrayList<>();
+        byte version = 1;
+
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+            int nodeId = entry.getKey();
+            ConfigLoader.NodeInfo node = entry.getValue();
+            if (baseEpoch != 0 && node.version <= baseEpoch) continue; // Unchanged since the base
+
+            String fileListWithStatus = node.status + "|" + String.join(",", node.files);
+            int dataLength = fileListWithStatus.length();
+            Packet packet = new Packet(version, nodeId, dataLength, fileListWithStatus);
+            packetList.add(packet);
+        }
+        return packetList;
+    }
+
+    /**
+     * Sends every client the node list changes it has not acknowledged yet.
+     * 
+     * <p>A node that never acknowledged an epoch gets a full snapshot, a node
+     * that is up to date gets nothing. Each distinct base epoch is encoded
+     * only once per round.</p>
+     * 
+     * <p>When publishing to a multicast group, the changes since the last
+     * publication go to the group in one datagram (or one set of
+     * fragments). Unicast is then only a fallback: a node gets its own copy
+     * once it has had a whole round to acknowledge a publication and has
+     * not, because it missed it or is not subscribed. A subscriber that
+     * missed a publication also notices the gap when the next one arrives,
+     * and asks for a snapshot right away.</p>
+     * 
+     * <p>Relaying works the same way, with the relay tree in place of the
+     * group: the server sends only to the roots of the tree, and nodes the
+     * tree did not reach, such as ones that were Offline when it was cut,
+     * fall back to unicast a round later.</p>
+     * 
+     * <p>With {@code -Dpacket.legacyWire} set, clients that predate node
+     * list deltas may be listening, and they never acknowledge. Every node
+     * is then sent the full list in the legacy format each round, as before
+     * deltas existed (see {@link #broadcastLegacyNodeList}).</p>
+     */
+    private void broadcastNodeList() {
+        if (Packet.isLegacyWire()) {
+            broadcastLegacyNodeList();
+            return;
+        }
+        long start = System.nanoTime();
+        Map<Integer, ConfigLoader.NodeInfo> nodes = configLoader.getNodes();
+        long epoch = configLoader.getEpoch();
+        Map<Long, byte[]> framesByBase = new HashMap<>();
+        long behind = epoch; // Nodes that acknowledged less than this are sent their own copy
+        if (multicastGroup != null || RELAY_FANOUT > 0) {
+            behind = publishedEpoch; // Published a round ago, so every subscriber has had time to ack it
+            if (epoch > publishedEpoch) {
+                long base = publishedEpoch;
+                byte[] data = framesByBase.computeIfAbsent(base, b -> buildNodeList(b, epoch));
+                try {
+                    if (multicastGroup != null) {
+                        sendFrame(data, multicastGroup);
+                    } else {
+                        relayNodeList(data, nodes);
+                    }
+                    publishedEpoch = epoch;
+                } catch (IOException e) {
+                    System.err.println("Failed to publish node list epoch " + epoch + ": " + e.getMessage());
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : nodes.entrySet()) {
+            int nodeId = entry.getKey();
+            ConfigLoader.NodeInfo node = entry.getValue();
+            if (nodeId == SERVER_NODE_ID) continue;
+
+            Long acked = ackedEpoch.get(nodeId);
+            long baseEpoch = (acked == null) ? 0 : acked;
+            if (acked != null && baseEpoch >= behind) continue; // Nothing new, or left to the multicast
+            if (acked == null && behind == 0) continue; // First publication, give subscribers a round to ack
+
+            byte[] data = framesByBase.computeIfAbsent(baseEpoch, base -> buildNodeList(base, epoch));
+            try {
+                InetAddress nodeAddress = InetAddress.getByName(node.ip);
+                sendFrame(data, new InetSocketAddress(nodeAddress, node.port));
+            } catch (IOException e) {
+                System.err.println("Failed to send update to Node " + nodeId);
+            }
+        }
+        if (!framesByBase.isEmpty()) {
+            Metrics.FANOUT_NANOS.record(System.nanoTime() - start); // Only rounds that sent something
+        }
+    }
+
+    /**
+     * Sends every node the full node list in the legacy format.
+     */
+    private void broadcastLegacyNodeList() {
+        long start = System.nanoTime();
+        byte[] data;
+        try {
+            data = Packet.encode(nodeEntries(0));
+        } catch (IOException e) {
+            System.err.println("Failed to encode node list: " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<Integer, ConfigLoader.NodeInfo> entry : configLoader.getNodes().entrySet()) {
+            int nodeId = entry.getKey();
+            ConfigLoader.NodeInfo node = entry.getValue();
+            if (nodeId == SERVER_NODE_ID) continue;
+            try {
+                sendFrame(data, new InetSocketAddress(InetAddress.getByName(node.ip), node.port));
+            } catch (IOException e) {
+                System.err.println("Failed to send update to Node " + nodeId);
+            }
+        }
+        Metrics.FANOUT_NANOS.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Sends a node list frame to the roots of the relay tree, each with the
+     * subtree it is to pass the frame down.
+     * 
+     * @param data  the encoded node list frame
+     * @param nodes the registry the frame was built from
+     * @throws IOException if a blocking send fails
+     */
+    private void relayNodeList(byte[] data, Map<Integer, ConfigLoader.NodeInfo> nodes) throws IOException {
+        int[] order = relayOrder(nodes);
+        for (Packet.Relay relay : Packet.Relay.subtrees(RELAY_FANOUT, order, 0, order.length, data)) {
+            ConfigLoader.NodeInfo root = nodes.get(relay.getTargets()[0]);
+            if (root != null) {
+                sendFrame(Packet.encode(relay), new InetSocketAddress(InetAddress.getByName(root.ip), root.port));
+            }
+        }
+    }
+
+    /**
+     * Gets the Online nodes in node ID order, which the relay tree is cut
+     * from. The order is only rebuilt after membership changes, so the tree
+     * stays the same from round to round while nobody joins or leaves.
+     * 
+     * @param nodes the registry
+     * @return the node IDs of the relay tree in pre-order
+     */
+    private int[] relayOrder(Map<Integer, ConfigLoader.NodeInfo> nodes) {
+        if (relayTreeStale) {
+            relayTreeStale = false; // Cleared first, so a change while rebuilding marks it again
+            relayOrder = nodes.entrySet().stream()
+                    .filter(entry -> entry.getKey() != SERVER_NODE_ID && "Online".equals(entry.getValue().status))
+                    .mapToInt(Map.Entry::getKey)
+                    .sorted()
+                    .toArray();
+        }
+        return relayOrder;
+    }
+
+    /**
+     * Sends an encoded frame, split into MTU-sized fragments when it does
+     * not fit in a single datagram.
+     * 
+     * @param frame  the encoded frame
+     * @param target the destination
+     * @throws IOException if a blocking send fails
+     */
+    private void sendFrame(byte[] frame, SocketAddress target) throws IOException {
+        for (ByteBuffer datagram : FragmentLayer.split(frame)) {
+            sendTo(datagram, target);
+        }
+    }
+
+    /**
+     * Sends a datagram through the event loop when one is running, or
+     * directly on the blocking channel otherwise.
+     * 
+     * @param data   the frame to send
+     * @param target the destination
+     * @throws IOException if a blocking send fails
+     */
+    private void sendTo(ByteBuffer data, SocketAddress target) throws IOException {
+        if (eventLoop != null) {
+            eventLoop.send(data, target);
+        } else {
+            try {
+                channel.send(data, target);
+            } catch (IOException e) {
+                Metrics.DATAGRAMS_DROPPED.increment();
+                throw e;
+            }
+        }
+        Metrics.DATAGRAMS_SENT.increment();
     }
 
     /**
@@ -73,42 +659,39 @@ public class UDPServer2 {
      * 
      * <p>This method launches three concurrent tasks:</p>
      * <ul>
-     * <li>Packet Listener - Receives data from nodes.</li>
+     * <li>Packet Listener - Receives data from nodes ({@code -Dserver.ingestThreads}
+     * threads, one by default).</li>
      * <li>Node Timeout Checker - Marks nodes as Offline if inactive.</li>
      * <li>Broadcaster - Sends node list updates to clients.</li>
+     * <li>Journal - Flushes and compacts the registry journal.</li>
+     * <li>Config Watcher - Applies edits to nodes.config while running.</li>
      * </ul>
      */
     public void createAndListenSocket() {
+        if (TaskExecutors.isVirtual()) {
+            requestHandlers = TaskExecutors.newPerTaskExecutor();
+        }
+
         // **Packet Listener Task** (Receives data from nodes)
         Runnable listenerTask = () -> {
+            PacketView view = new PacketView();
             try {
                 while (true) {
-                    byte[] buffer = new byte[4096]; // Buffer for incoming packets
-                    DatagramPacket incomingPacket = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(incomingPacket); // Wait for a packet from a node
-
-                    Object receivedObject = deserialize(incomingPacket.getData());
-
-                    if (receivedObject instanceof Packet) {
-                        Packet packet = (Packet) receivedObject;
-                        int nodeId = packet.getNodeId();
-                        String files = packet.getData();
-                        int dataSize = packet.getDataLength();
-                        String status = (dataSize > 0) ? "Online" : "Offline";
-
-                        // Update node info in ConfigLoader
-                        configLoader.setNodeFiles(nodeId, Arrays.asList(files.split(",")));
-                        configLoader.setNodeStatus(nodeId, status);
-
-                        // Store last received timestamp for this node
-                        lastReceivedTime.put(nodeId, System.currentTimeMillis());
-
-                        System.out.println("Updated Node " + nodeId + ": Status = " + status + ", Files = " + files);
-                    } else {
-                        System.err.println("Invalid packet format received.");
+                    ByteBuffer buffer = bufferPool.acquire(); // Pooled buffer for incoming packets
+                    try {
+                        SocketAddress sender = channel.receive(buffer); // Wait for a packet from a node
+                        Metrics.DATAGRAMS_RECEIVED.increment();
+                        buffer.flip();
+                        try {
+                            handleDatagram(buffer, sender, view);
+                        } catch (RuntimeException e) {
+                            e.printStackTrace(); // One bad datagram must not stop this listener
+                        }
+                    } finally {
+                        bufferPool.release(buffer);
                     }
                 }
-            } catch (IOException | ClassNotFoundException e) {
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         };
@@ -117,22 +700,8 @@ public class UDPServer2 {
         Runnable timeoutCheckerTask = () -> {
             try {
                 while (true) {
-                    long currentTime = System.currentTimeMillis();
-                    for (int nodeId = 1; nodeId <= 5; nodeId++) { // Check all nodes 1-5
-                        Long lastTime = lastReceivedTime.get(nodeId);
-
-                        // If node never sent a packet, assume it's Offline
-                        if (lastTime == null) {
-                            configLoader.setNodeStatus(nodeId, "Offline");
-                            continue;
-                        }
-
-                        // If node hasn't sent data in TIMEOUT_MS, mark as Offline
-                        if (currentTime - lastTime > TIMEOUT_MS) {
-                            configLoader.setNodeStatus(nodeId, "Offline");
-                        }
-                    }
-                    Thread.sleep(5000); // Check every 5 seconds
+                    checkTimeouts();
+                    Thread.sleep(TICK_MS); // Advance the wheel every tick
                 }
             } catch (InterruptedException e) {
                 System.err.println("Timeout checker interrupted.");
@@ -144,50 +713,156 @@ public class UDPServer2 {
         Runnable broadcasterTask = () -> {
             try {
                 while (true) {
-                    Map<Integer, ConfigLoader.NodeInfo> nodes = configLoader.getNodes();
-                    List<Packet> packetList = new ArrayList<>();
-                    byte version = 1;
-
-                    for (int nodeId = 1; nodeId <= 6; nodeId++) { 
-                        ConfigLoader.NodeInfo node = nodes.get(nodeId);
-                        if (node == null) continue;
-
-                        String fileListWithStatus = node.status + "|" + String.join(",", node.files);
-                        int dataLength = fileListWithStatus.length();
-                        Packet packet = new Packet(version, nodeId, dataLength, fileListWithStatus);
-                        packetList.add(packet);
-                    }
-
-                    byte[] data = serialize(packetList);
-
-                    for (int nodeId = 1; nodeId <= 5; nodeId++) {
-                        ConfigLoader.NodeInfo node = nodes.get(nodeId);
-                        if (node == null) continue;
-
-                        try {
-                            InetAddress nodeAddress = InetAddress.getByName(node.ip);
-                            DatagramPacket sendPacket = new DatagramPacket(data, data.length, nodeAddress, node.port);
-                            socket.send(sendPacket);
-                        } catch (IOException e) {
-                            System.err.println("Failed to send update to Node " + nodeId);
-                        }
-                    }
+                    broadcastNodeList();
                     Thread.sleep((1 + random.nextInt(30)) * 1000);
                 }
-            } catch (IOException | InterruptedException e) {
+            } catch (InterruptedException e) {
                 e.printStackTrace();
             }
         };
 
-        executor.execute(listenerTask);
+        // **Journal Task** (Flushes and compacts the registry journal)
+        Runnable journalTask = () -> {
+            try {
+                while (journal != null) {
+                    journal.maintain();
+                    Thread.sleep(RegistryJournal.FLUSH_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        for (int i = 0; i < INGEST_THREADS; i++) {
+            executor.execute(listenerTask);
+        }
         executor.execute(timeoutCheckerTask);
         executor.execute(broadcasterTask);
+        executor.execute(journalTask);
+        executor.execute(configLoader::watch);
         executor.shutdown();
     }
 
+    /**
+     * Starts the UDP server in event-loop mode.
+     * 
+     * <p>Each loop owns a non-blocking channel on the server port and a
+     * Selector. The first loop also runs the timeout checker and the
+     * broadcaster as timer events, so no thread ever sleeps or blocks on
+     * the socket. Extra loops open their own channels with SO_REUSEPORT and
+     * only receive.</p>
+     * 
+     * @param loopCount the number of loops to run, normally one per core
+     */
+    public void runEventLoops(int loopCount) {
+        try {
+            eventLoop = new ServerEventLoop(channel, this::handleDatagram, bufferPool);
+            executor = TaskExecutors.newNodeExecutor(loopCount + 1); // Loops and the config watcher
+
+            // **Node Timeout Checker Timer** (Marks nodes Offline if inactive)
+            eventLoop.schedule(TICK_MS, new Runnable() {
+                @Override
+                public void run() {
+                    checkTimeouts();
+                    eventLoop.schedule(TICK_MS, this); // Advance the wheel every tick
+                }
+            });
+
+            // **Broadcaster Timer** (Sends node list to clients)
+            eventLoop.schedule(0, new Runnable() {
+                @Override
+                public void run() {
+                    broadcastNodeList();
+                    eventLoop.schedule((1 + random.nextInt(30)) * 1000L, this);
+                }
+            });
+
+            // **Journal Timer** (Flushes and compacts the registry journal)
+            if (journal != null) {
+                eventLoop.schedule(RegistryJournal.FLUSH_MS, new Runnable() {
+                    @Override
+                    public void run() {
+                        journal.maintain();
+                        eventLoop.schedule(RegistryJournal.FLUSH_MS, this);
+                    }
+                });
+            }
+
+            executor.execute(eventLoop);
+            for (int i = 1; i < loopCount; i++) {
+                executor.execute(new ServerEventLoop(openChannel(), this::handleDatagram, bufferPool));
+            }
+            executor.execute(configLoader::watch);
+            executor.shutdown();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prepares a channel to publish node lists to the configured multicast
+     * group, through the interface named by {@code -Dmulticast.interface}
+     * or the system's default one.
+     * 
+     * @param channel the channel node lists are sent from
+     * @return the group's address, or null if no group is configured or it cannot be used
+     */
+    private InetSocketAddress prepareMulticast(DatagramChannel channel) {
+        if (MULTICAST_GROUP == null) {
+            return null;
+        }
+        try {
+            InetAddress group = InetAddress.getByName(MULTICAST_GROUP);
+            if (!group.isMulticastAddress()) {
+                throw new IOException(MULTICAST_GROUP + " is not a multicast address");
+            }
+            String interfaceName = System.getProperty("multicast.interface");
+            if (interfaceName != null) {
+                NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+                if (networkInterface == null) {
+                    throw new IOException("No network interface named " + interfaceName);
+                }
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+            int groupPort = MULTICAST_PORT + ((SHARDS == null) ? 0 : SHARDS.indexOf(SERVER_NODE_ID)); // A port per shard
+            System.out.println("Publishing node lists to " + group.getHostAddress() + ":" + groupPort);
+            return new InetSocketAddress(group, groupPort);
+        } catch (IOException e) {
+            System.err.println("Multicast unavailable, sending node lists by unicast: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens a channel bound to the server port, allowing other channels to
+     * share the port where the platform supports it.
+     * 
+     * @return the bound channel
+     * @throws IOException if the channel cannot be opened or bound
+     */
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        return channel;
+    }
+
+    /**
+     * Starts the server. Passing {@code --event-loop [loops]} selects the
+     * Selector-based mode instead of the three blocking threads.
+     * 
+     * @param args command-line arguments
+     */
     public static void main(String[] args) {
         UDPServer2 server = new UDPServer2();
-        server.createAndListenSocket();
+        if (args.length > 0 && args[0].equals("--event-loop")) {
+            int loops = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+            server.runEventLoops(loops);
+        } else {
+            server.createAndListenSocket();
+        }
     }
 }
-
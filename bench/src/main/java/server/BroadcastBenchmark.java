@@ -0,0 +1,65 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the frames the broadcaster sends each round: a full snapshot, a
+ * delta with a single changed node, and the snapshot split into datagrams.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    int nodeCount;
+
+    @Param({"10", "100"})
+    int fileCount;
+
+    private UDPServer2 server;
+    private ConfigLoader registry;
+    private long epoch;
+    private byte[] snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        registry = Fleet.load(nodeCount, fileCount);
+        server = new UDPServer2(registry);
+        registry.setNodeStatus(1, "Online"); // One change on top of the loaded state
+        epoch = registry.getEpoch();
+        snapshot = server.buildNodeList(0, epoch);
+    }
+
+    @Benchmark
+    public byte[] buildSnapshot() {
+        return server.buildNodeList(0, epoch);
+    }
+
+    @Benchmark
+    public byte[] buildSingleChangeDelta() {
+        return server.buildNodeList(epoch - 1, epoch);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> splitSnapshot() {
+        return FragmentLayer.split(snapshot);
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turns a received heartbeat into a file list: the original decode and
+ * String.split, the in-place PacketView decode, and the PacketView
+ * comparison used when the list has not changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileListParsingBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int fileCount;
+
+    private ByteBuffer frame;
+    private List<String> stored;
+    private final PacketView view = new PacketView();
+
+    @Setup
+    public void setUp() throws IOException {
+        stored = Fleet.files(1, fileCount);
+        String files = String.join(",", stored);
+        byte[] encoded = Packet.encode(new Packet((byte) 1, 1, files.length(), files));
+        frame = ByteBuffer.allocateDirect(encoded.length);
+        frame.put(encoded).flip();
+    }
+
+    @Benchmark
+    public List<String> decodeAndSplit() throws IOException {
+        Packet packet = (Packet) Packet.decode(frame.duplicate());
+        return Arrays.asList(packet.getData().split(","));
+    }
+
+    @Benchmark
+    public List<String> viewEntries() {
+        view.wrap(frame);
+        return view.payloadEntries();
+    }
+
+    @Benchmark
+    public boolean viewUnchanged() {
+        view.wrap(frame);
+        return view.payloadEquals(stored);
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds synthetic fleets for the benchmarks: a config file with a given
+ * number of nodes, each advertising a given number of files.
+ */
+final class Fleet {
+    private Fleet() {
+    }
+
+    /**
+     * Writes a config file for the fleet and loads it.
+     *
+     * @param nodeCount number of nodes, with IDs 1..nodeCount
+     * @param fileCount number of files per node
+     * @return a registry holding the fleet
+     */
+    static ConfigLoader load(int nodeCount, int fileCount) throws IOException {
+        Path config = Files.createTempFile("bench-nodes", ".config");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(config))) {
+            for (int nodeId = 1; nodeId <= nodeCount; nodeId++) {
+                out.println(nodeId + " 127.0.0.1 " + (20000 + nodeId % 40000) + " Online "
+                        + String.join(",", files(nodeId, fileCount)));
+            }
+        }
+        try {
+            return new ConfigLoader(config.toString());
+        } finally {
+            Files.delete(config);
+        }
+    }
+
+    /**
+     * Generates a node's file names, shaped like the ones in nodes.config.
+     */
+    static List<String> files(int nodeId, int fileCount) {
+        String[] extensions = {".txt", ".mp4", ".pdf", ".jpg", ".docx", ".pptx", ".zip", ".png"};
+        List<String> files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            files.add("node" + nodeId + "_file" + i + extensions[i % extensions.length]);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes and decodes a single heartbeat packet with the binary codec and
+ * with the legacy Java serialization it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    int fileCount;
+
+    private Packet packet;
+    private byte[] binary;
+    private byte[] legacy;
+
+    @Setup
+    public void setUp() throws IOException {
+        String files = String.join(",", Fleet.files(1, fileCount));
+        packet = new Packet((byte) 1, 1, files.length(), files);
+        binary = Packet.encode(packet);
+        legacy = legacyEncode(packet);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return Packet.encode(packet);
+    }
+
+    @Benchmark
+    public Object decodeBinary() throws IOException {
+        return Packet.decode(binary, 0, binary.length);
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws IOException {
+        return legacyEncode(packet);
+    }
+
+    @Benchmark
+    public Object decodeLegacy() throws IOException {
+        return Packet.decode(legacy, 0, legacy.length);
+    }
+
+    private static byte[] legacyEncode(Object obj) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(obj);
+        oos.flush();
+        return bos.toByteArray();
+    }
+}
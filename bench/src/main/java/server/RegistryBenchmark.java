@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updates node status and files from several threads at once, the way the
+ * listener, timeout checker and broadcaster share the registry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class RegistryBenchmark {
+    @Param({"10", "1000", "100000"})
+    int nodeCount;
+
+    @Param({"10"})
+    int fileCount;
+
+    private ConfigLoader registry;
+    private List<String> filesA;
+    private List<String> filesB;
+
+    @Setup
+    public void setUp() throws IOException {
+        registry = Fleet.load(nodeCount, fileCount);
+        filesA = Fleet.files(1, fileCount);
+        filesB = Fleet.files(2, fileCount);
+    }
+
+    @Benchmark
+    public void setNodeStatus() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        registry.setNodeStatus(1 + random.nextInt(nodeCount), random.nextBoolean() ? "Online" : "Offline");
+    }
+
+    @Benchmark
+    public void setNodeStatusUnchanged() {
+        registry.setNodeStatus(1 + ThreadLocalRandom.current().nextInt(nodeCount), "Online");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void setNodeFiles() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        registry.setNodeFiles(1 + random.nextInt(nodeCount), random.nextBoolean() ? filesA : filesB);
+    }
+
+    @Benchmark
+    public void updateNode() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        registry.updateNode(1 + random.nextInt(nodeCount), "Online", random.nextBoolean() ? filesA : filesB);
+    }
+}